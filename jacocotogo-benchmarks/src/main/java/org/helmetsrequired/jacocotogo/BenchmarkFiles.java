@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Temporary file handling shared by the benchmarks.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile("jacocotogo-" + prefix + "-", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create temporary directory: '" + directory.getAbsolutePath() + "'");
+        }
+        return directory;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures collecting from a {@link SyntheticFleet} into a single
+ * {@link ExecutionDataAggregate}, as the batch goal does with
+ * 'writeSourceFiles' disabled.
+ *
+ * @author Matthew C. Jenkins
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FleetFetchBenchmark {
+
+    @Param({"16"})
+    public int tcpAgents;
+
+    @Param({"16"})
+    public int jmxRuntimes;
+
+    @Param({"1000"})
+    public int classCount;
+
+    @Param({"64"})
+    public int probeCount;
+
+    @Param({"10"})
+    public long latencyMillis;
+
+    @Param({"1", "8"})
+    public int parallelism;
+
+    private final Logger pluginLogger = Logger.getLogger("org.helmetsrequired.jacocotogo");
+    private SyntheticFleet fleet;
+    private ExecutorService executor;
+
+    @Setup
+    public void startFleet() throws IOException {
+        // fetches log at info level
+        pluginLogger.setLevel(Level.WARNING);
+        fleet = new SyntheticFleet(new SyntheticExecutionData(classCount, probeCount, 0.3), latencyMillis, 0);
+        fleet.start(tcpAgents, jmxRuntimes, 0);
+        for (Source source : fleet.getSources()) {
+            source.setResetAfterFetch(false);
+            source.validate();
+        }
+        executor = CollectionExecutors.newExecutor(parallelism, false);
+    }
+
+    @TearDown
+    public void stopFleet() {
+        executor.shutdownNow();
+        JaCoCoToGo.closeJmxConnections();
+        fleet.stop();
+    }
+
+    @Benchmark
+    public ExecutionDataAggregate collect() throws InterruptedException, ExecutionException {
+        final ExecutionDataAggregate aggregate = new ExecutionDataAggregate();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final Source source : fleet.getSources()) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws JaCoCoToGoValidationException {
+                    JaCoCoToGo.fetchJaCoCoData(source, aggregate);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        return aggregate;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures fetching and decoding the payload of an in-process JaCoCo MBean
+ * over a loopback JMX connection, so serialization of the dump and decoding
+ * it dominate.
+ *
+ * @author Matthew C. Jenkins
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JmxFetchBenchmark {
+
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    @Param({"256"})
+    public int probeCount;
+
+    @Param({"0.3"})
+    public double probeDensity;
+
+    private final Logger pluginLogger = Logger.getLogger("org.helmetsrequired.jacocotogo");
+    private SyntheticRuntime runtime;
+    private String serviceUrl;
+
+    @Setup
+    public void startRuntime() throws IOException {
+        // fetches log at info level
+        pluginLogger.setLevel(Level.WARNING);
+        runtime = new SyntheticRuntime(new SyntheticExecutionData(classCount, probeCount, probeDensity).toByteArray(0));
+        serviceUrl = runtime.start(0);
+    }
+
+    @TearDown
+    public void stopRuntime() throws IOException {
+        JaCoCoToGo.closeJmxConnections();
+        runtime.stop();
+    }
+
+    @Benchmark
+    public ExecutionDataAggregate fetch() throws JaCoCoToGoValidationException {
+        ExecutionDataAggregate aggregate = new ExecutionDataAggregate();
+        JaCoCoToGo.fetchJaCoCoDataOverJmx(serviceUrl, null, null, aggregate, false);
+        return aggregate;
+    }
+}
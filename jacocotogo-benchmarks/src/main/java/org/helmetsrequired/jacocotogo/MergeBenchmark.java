@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link JaCoCoToGo#mergeJaCoCoData(java.util.List, java.io.File)}
+ * over synthetic execution data files.
+ *
+ * @author Matthew C. Jenkins
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeBenchmark {
+
+    @Param({"8"})
+    public int fileCount;
+
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    @Param({"16", "256"})
+    public int probeCount;
+
+    @Param({"0.3"})
+    public double probeDensity;
+
+    private File directory;
+    private List<File> inputFiles;
+    private File mergeFile;
+
+    @Setup(Level.Trial)
+    public void writeInputFiles() throws IOException {
+        directory = BenchmarkFiles.createTempDirectory("merge");
+        SyntheticExecutionData data = new SyntheticExecutionData(classCount, probeCount, probeDensity);
+        inputFiles = new ArrayList<File>();
+        for (int i = 0; i < fileCount; i++) {
+            File inputFile = new File(directory, "input" + i + ".exec");
+            data.writeFile(inputFile, i);
+            inputFiles.add(inputFile);
+        }
+        mergeFile = new File(directory, "merged.exec");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteMergeFile() {
+        // mergeJaCoCoData refuses to overwrite an existing file
+        mergeFile.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteInputFiles() {
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public File merge() {
+        JaCoCoToGo.mergeJaCoCoData(inputFiles, mergeFile);
+        return mergeFile;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of writing a dump received over JMX to disk.
+ *
+ * @author Matthew C. Jenkins
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveExecutionDataBenchmark {
+
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    @Param({"256"})
+    public int probeCount;
+
+    @Param({"0.3"})
+    public double probeDensity;
+
+    private byte[] executionData;
+    private File directory;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void createDump() throws IOException {
+        executionData = new SyntheticExecutionData(classCount, probeCount, probeDensity).toByteArray(0);
+        directory = BenchmarkFiles.createTempDirectory("save");
+        outputFile = new File(directory, "jacoco.exec");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutputFile() {
+        // saveExecutionData refuses to overwrite an existing file
+        outputFile.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() {
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public File save() {
+        JaCoCoToGo.saveExecutionData(executionData, outputFile);
+        return outputFile;
+    }
+}
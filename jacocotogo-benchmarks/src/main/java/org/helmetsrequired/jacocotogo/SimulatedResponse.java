@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.util.Random;
+
+/**
+ * The latency and failure rate with which a simulated agent answers.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class SimulatedResponse {
+
+    private final long latencyMillis;
+    private final double failureRate;
+    private final Random random;
+
+    /**
+     * @param latencyMillis the time to wait before answering a request.
+     * @param failureRate the fraction of requests which fail, between 0 and 1.
+     * @param seed the seed determining which requests fail.
+     */
+    SimulatedResponse(long latencyMillis, double failureRate, long seed) {
+        if (latencyMillis < 0 || failureRate < 0 || failureRate > 1) {
+            throw new IllegalArgumentException("Invalid simulated response: latency " + latencyMillis + "ms, failure rate " + failureRate);
+        }
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+        this.random = new Random(mix(seed));
+    }
+
+    /**
+     * Scrambles consecutive seeds, as the first numbers drawn by
+     * {@link Random} for nearby seeds are nearly the same.
+     */
+    private static long mix(long seed) {
+        long z = seed + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    void awaitLatency() throws InterruptedException {
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+    }
+
+    boolean shouldFail() {
+        return failureRate > 0 && random.nextDouble() < failureRate;
+    }
+
+    /**
+     * @return a random number between 0 (inclusive) and bound (exclusive).
+     */
+    int nextInt(int bound) {
+        return random.nextInt(bound);
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jacoco.core.runtime.IRemoteCommandVisitor;
+import org.jacoco.core.runtime.RemoteControlReader;
+
+/**
+ * A stand-in for the TCP server of the JaCoCo agent ('output=tcpserver'),
+ * answering dump commands with synthetic execution data.
+ *
+ * A failing dump either drops the connection before answering, or sends part
+ * of the dump and then drops the connection, as a JVM crashing mid-dump
+ * would.
+ *
+ * @author Matthew C. Jenkins
+ */
+public class SyntheticAgent {
+
+    private static final int HEADER_LENGTH = 5;
+
+    private final byte[] remoteDump;
+    private final SimulatedResponse response;
+    private final AtomicLong dumps = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private ServerSocket serverSocket;
+    private ExecutorService handlers;
+
+    /**
+     * @param remoteDump the dump sent in reply to every successful dump
+     * command, as created by {@link SyntheticExecutionData#toRemoteDump(long)}.
+     * @param latencyMillis the time to wait before answering a dump command.
+     * @param failureRate the fraction of dump commands which fail, between 0
+     * and 1.
+     * @param seed the seed determining which dump commands fail.
+     */
+    public SyntheticAgent(byte[] remoteDump, long latencyMillis, double failureRate, long seed) {
+        this.remoteDump = remoteDump;
+        this.response = new SimulatedResponse(latencyMillis, failureRate, seed);
+    }
+
+    /**
+     * Starts listening on the loopback address.
+     *
+     * @param port the port to listen on, or 0 to pick a free port.
+     * @return the port listened on.
+     * @throws IOException if the port can not be bound.
+     */
+    public int start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("localhost"));
+        handlers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "synthetic-agent-" + serverSocket.getLocalPort());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        handlers.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                // closed by stop()
+                return;
+            }
+            handlers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    private void handle(final Socket socket) {
+        try {
+            final OutputStream output = socket.getOutputStream();
+            output.write(remoteDump, 0, HEADER_LENGTH);
+            output.flush();
+            RemoteControlReader reader = new RemoteControlReader(socket.getInputStream());
+            reader.setRemoteCommandVisitor(new IRemoteCommandVisitor() {
+                @Override
+                public void visitDumpCommand(boolean dump, boolean reset) throws IOException {
+                    dump(socket, output);
+                }
+            });
+            reader.read();
+        } catch (IOException ex) {
+            // the client went away, or a failure was simulated
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // bummer
+            }
+        }
+    }
+
+    private void dump(Socket socket, OutputStream output) throws IOException {
+        try {
+            response.awaitLatency();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        int length = remoteDump.length - HEADER_LENGTH;
+        if (response.shouldFail()) {
+            failures.incrementAndGet();
+            output.write(remoteDump, HEADER_LENGTH, response.nextInt(length));
+            output.flush();
+            socket.close();
+            throw new IOException("Simulated failure");
+        }
+        output.write(remoteDump, HEADER_LENGTH, length);
+        output.flush();
+        dumps.incrementAndGet();
+    }
+
+    /**
+     * Stops listening and drops all open connections.
+     *
+     * @throws IOException if the server socket can not be closed.
+     */
+    public void stop() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+            handlers.shutdownNow();
+            serverSocket = null;
+        }
+    }
+
+    /**
+     * @return the number of dumps served.
+     */
+    public long getDumpCount() {
+        return dumps.get();
+    }
+
+    /**
+     * @return the number of simulated failures.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.SessionInfo;
+import org.jacoco.core.runtime.RemoteControlWriter;
+
+/**
+ * Generates reproducible JaCoCo execution data for benchmarks.
+ *
+ * Class ids and names only depend on the class index, so dumps generated with
+ * different seeds describe the same classes and collide when merged, just
+ * like dumps taken from several JVMs running the same application.  Only the
+ * covered probes differ between seeds.
+ *
+ * @author Matthew C. Jenkins
+ */
+public final class SyntheticExecutionData {
+
+    private final int classCount;
+    private final int probeCount;
+    private final double probeDensity;
+
+    /**
+     * @param classCount the number of classes in a dump.
+     * @param probeCount the number of probes of each class.
+     * @param probeDensity the fraction of probes which are covered, between 0
+     * and 1.
+     */
+    public SyntheticExecutionData(int classCount, int probeCount, double probeDensity) {
+        if (classCount < 0 || probeCount < 0 || probeDensity < 0 || probeDensity > 1) {
+            throw new IllegalArgumentException("Invalid synthetic execution data: " + classCount + " classes, " + probeCount + " probes, density " + probeDensity);
+        }
+        this.classCount = classCount;
+        this.probeCount = probeCount;
+        this.probeDensity = probeDensity;
+    }
+
+    /**
+     * Writes a session info and the execution data of all classes to writer.
+     *
+     * @param writer the {@link ExecutionDataWriter} to write to.
+     * @param seed the seed determining which probes are covered.
+     */
+    public void write(ExecutionDataWriter writer, long seed) {
+        Random random = new Random(seed);
+        writer.visitSessionInfo(new SessionInfo("synthetic-" + seed, 0, 0));
+        for (int i = 0; i < classCount; i++) {
+            boolean[] probes = new boolean[probeCount];
+            for (int j = 0; j < probeCount; j++) {
+                probes[j] = random.nextDouble() < probeDensity;
+            }
+            writer.visitClassExecution(new ExecutionData(classId(i), className(i), probes));
+        }
+    }
+
+    /**
+     * @param seed the seed determining which probes are covered.
+     * @return a dump in JaCoCo execution data file format, as returned by the
+     * JaCoCo MBean.
+     */
+    public byte[] toByteArray(long seed) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            write(new ExecutionDataWriter(output), seed);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * @param seed the seed determining which probes are covered.
+     * @return a dump as sent by the JaCoCo Java Agent TCP Server in reply to a
+     * dump command, terminated by the command ok block.
+     */
+    public byte[] toRemoteDump(long seed) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            RemoteControlWriter writer = new RemoteControlWriter(output);
+            write(writer, seed);
+            writer.sendCmdOk();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Writes a dump to file.
+     *
+     * @param file the file to write.
+     * @param seed the seed determining which probes are covered.
+     * @throws IOException if the file can not be written.
+     */
+    public void writeFile(File file, long seed) throws IOException {
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(new ExecutionDataWriter(output), seed);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static long classId(int index) {
+        // spread the ids like the CRC64 based ids of real classes
+        return (index + 1) * 0x9E3779B97F4A7C15L;
+    }
+
+    private static String className(int index) {
+        return "org/example/synthetic/Class" + index;
+    }
+}
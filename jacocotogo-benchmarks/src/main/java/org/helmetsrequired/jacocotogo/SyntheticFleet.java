@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fleet of simulated JaCoCo agents on the local machine, for load testing
+ * collection without real remote JVMs.
+ *
+ * The fleet consists of {@link SyntheticAgent}s, speaking the protocol of the
+ * JaCoCo agent TCP server, and {@link SyntheticRuntime}s, each exporting a
+ * JaCoCo runtime MBean through its own JMX connector server.  Every member
+ * serves a different dump of the same synthetic classes, so merging the
+ * fleet exercises the same collisions as merging a real cluster.
+ *
+ * Run {@link #main(String[])} to start a fleet and print the 'sources'
+ * configuration for the batch goal, e.g.
+ *
+ * <pre>
+ * java -Djacocotogo.fleet.tcpAgents=50 -Djacocotogo.fleet.failureRate=0.05 \
+ *      -cp target/benchmarks.jar org.helmetsrequired.jacocotogo.SyntheticFleet
+ * </pre>
+ *
+ * @author Matthew C. Jenkins
+ */
+public class SyntheticFleet {
+
+    private static final String PROPERTY_PREFIX = "jacocotogo.fleet.";
+
+    private final SyntheticExecutionData data;
+    private final long latencyMillis;
+    private final double failureRate;
+    private final List<SyntheticAgent> agents = new ArrayList<SyntheticAgent>();
+    private final List<SyntheticRuntime> runtimes = new ArrayList<SyntheticRuntime>();
+    private final List<Source> sources = new ArrayList<Source>();
+
+    /**
+     * @param data the synthetic execution data the fleet serves.
+     * @param latencyMillis the time each member waits before answering a
+     * dump request.
+     * @param failureRate the fraction of dump requests which fail, between 0
+     * and 1.
+     */
+    public SyntheticFleet(SyntheticExecutionData data, long latencyMillis, double failureRate) {
+        this.data = data;
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Starts the fleet.  Members listen on consecutive ports from basePort,
+     * TCP agents first.
+     *
+     * @param tcpAgents the number of {@link SyntheticAgent}s to start.
+     * @param jmxRuntimes the number of {@link SyntheticRuntime}s to start.
+     * @param basePort the first port to listen on, or 0 to pick free ports.
+     * @throws IOException if a member can not be started.
+     */
+    public void start(int tcpAgents, int jmxRuntimes, int basePort) throws IOException {
+        int member = 0;
+        try {
+            for (int i = 0; i < tcpAgents; i++, member++) {
+                SyntheticAgent agent = new SyntheticAgent(data.toRemoteDump(member), latencyMillis, failureRate, member);
+                agents.add(agent);
+                int port = agent.start(basePort == 0 ? 0 : basePort + member);
+                Source source = new Source();
+                source.setType("tcp");
+                source.setHostname("localhost");
+                source.setPort(port);
+                sources.add(source);
+            }
+            for (int i = 0; i < jmxRuntimes; i++, member++) {
+                SyntheticRuntime runtime = new SyntheticRuntime(data.toByteArray(member), latencyMillis, failureRate, member);
+                runtimes.add(runtime);
+                Source source = new Source();
+                source.setServiceURL(runtime.start(basePort == 0 ? 0 : basePort + member));
+                sources.add(source);
+            }
+        } catch (IOException ex) {
+            stop();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return a new {@link Source} for every member of the fleet, in start
+     * order.
+     */
+    public List<Source> getSources() {
+        return sources;
+    }
+
+    /**
+     * @return the 'sources' configuration of the batch goal for this fleet.
+     */
+    public String toSourcesXml() {
+        StringBuilder xml = new StringBuilder("<sources>\n");
+        for (Source source : sources) {
+            xml.append("    <source>\n");
+            if (source.getServiceURL() != null) {
+                xml.append("        <serviceURL>").append(source.getServiceURL()).append("</serviceURL>\n");
+            } else {
+                xml.append("        <type>tcp</type>\n");
+                xml.append("        <hostname>").append(source.getHostname()).append("</hostname>\n");
+                xml.append("        <port>").append(source.getPort()).append("</port>\n");
+            }
+            xml.append("    </source>\n");
+        }
+        return xml.append("</sources>").toString();
+    }
+
+    /**
+     * @return the number of dumps served by all members.
+     */
+    public long getDumpCount() {
+        long count = 0;
+        for (SyntheticAgent agent : agents) {
+            count += agent.getDumpCount();
+        }
+        for (SyntheticRuntime runtime : runtimes) {
+            count += runtime.getDumpCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of simulated failures of all members.
+     */
+    public long getFailureCount() {
+        long count = 0;
+        for (SyntheticAgent agent : agents) {
+            count += agent.getFailureCount();
+        }
+        for (SyntheticRuntime runtime : runtimes) {
+            count += runtime.getFailureCount();
+        }
+        return count;
+    }
+
+    /**
+     * Stops all members of the fleet.
+     */
+    public void stop() {
+        for (SyntheticAgent agent : agents) {
+            try {
+                agent.stop();
+            } catch (IOException ex) {
+                // bummer
+            }
+        }
+        for (SyntheticRuntime runtime : runtimes) {
+            try {
+                runtime.stop();
+            } catch (IOException ex) {
+                // bummer
+            }
+        }
+        agents.clear();
+        runtimes.clear();
+        sources.clear();
+    }
+
+    /**
+     * Starts a fleet configured by system properties prefixed with
+     * 'jacocotogo.fleet.' and runs it until the JVM is stopped.
+     *
+     * @param args ignored.
+     * @throws Exception if the fleet can not be started.
+     */
+    public static void main(String[] args) throws Exception {
+        SyntheticExecutionData data = new SyntheticExecutionData(
+                Integer.getInteger(PROPERTY_PREFIX + "classCount", 1000),
+                Integer.getInteger(PROPERTY_PREFIX + "probeCount", 64),
+                Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "probeDensity", "0.3")));
+        final SyntheticFleet fleet = new SyntheticFleet(data,
+                Long.getLong(PROPERTY_PREFIX + "latencyMillis", 0),
+                Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "failureRate", "0")));
+        fleet.start(
+                Integer.getInteger(PROPERTY_PREFIX + "tcpAgents", 10),
+                Integer.getInteger(PROPERTY_PREFIX + "jmxRuntimes", 10),
+                Integer.getInteger(PROPERTY_PREFIX + "basePort", 0));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                System.out.println("Served " + fleet.getDumpCount() + " dumps, simulated " + fleet.getFailureCount() + " failures.");
+                fleet.stop();
+            }
+        });
+        System.out.println(fleet.toSourcesXml());
+        System.out.println("Fleet of " + fleet.getSources().size() + " sources running, press Ctrl-C to stop.");
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.NoSuchObjectException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * An in-process stand-in for the MBean the JaCoCo agent registers as
+ * 'org.jacoco:type=Runtime', serving synthetic execution data through its own
+ * RMI registry and JMX connector server.
+ *
+ * @author Matthew C. Jenkins
+ */
+public class SyntheticRuntime implements SyntheticRuntimeMBean {
+
+    private static final String OBJECT_NAME = "org.jacoco:type=Runtime";
+
+    private final byte[] executionData;
+    private final SimulatedResponse response;
+    private final AtomicLong dumps = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private Registry registry;
+    private JMXConnectorServer connectorServer;
+
+    /**
+     * @param executionData the dump returned by every call of
+     * {@link #getExecutionData(boolean)}.
+     */
+    public SyntheticRuntime(byte[] executionData) {
+        this(executionData, 0, 0, 0);
+    }
+
+    /**
+     * @param executionData the dump returned by every successful call of
+     * {@link #getExecutionData(boolean)}.
+     * @param latencyMillis the time to wait before answering a call.
+     * @param failureRate the fraction of calls which fail, between 0 and 1.
+     * @param seed the seed determining which calls fail.
+     */
+    public SyntheticRuntime(byte[] executionData, long latencyMillis, double failureRate, long seed) {
+        this.executionData = executionData;
+        this.response = new SimulatedResponse(latencyMillis, failureRate, seed);
+    }
+
+    @Override
+    public byte[] getExecutionData(boolean reset) {
+        try {
+            response.awaitLatency();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (response.shouldFail()) {
+            failures.incrementAndGet();
+            throw new IllegalStateException("Simulated failure");
+        }
+        dumps.incrementAndGet();
+        return executionData;
+    }
+
+    /**
+     * Registers this MBean with a new MBean server and exports it through an
+     * RMI registry on port, like a JVM started with
+     * '-Dcom.sun.management.jmxremote.port'.
+     *
+     * @param port the registry port, or 0 to pick a free port.
+     * @return the service URL clients connect to.
+     * @throws IOException if the connector server can not be started.
+     */
+    public String start(int port) throws IOException {
+        if (port == 0) {
+            port = findFreePort();
+        }
+        MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+        try {
+            mBeanServer.registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            throw new IllegalStateException("Unable to register MBean", ex);
+        }
+        registry = LocateRegistry.createRegistry(port);
+        String serviceUrl = "service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jmxrmi";
+        connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL(serviceUrl), null, mBeanServer);
+        connectorServer.start();
+        return serviceUrl;
+    }
+
+    /**
+     * Stops the connector server and the registry.
+     *
+     * @throws IOException if the connector server can not be stopped.
+     */
+    public void stop() throws IOException {
+        if (connectorServer != null) {
+            connectorServer.stop();
+            connectorServer = null;
+        }
+        if (registry != null) {
+            try {
+                UnicastRemoteObject.unexportObject(registry, true);
+            } catch (NoSuchObjectException ex) {
+                // bummer
+            }
+            registry = null;
+        }
+    }
+
+    /**
+     * @return the number of dumps served.
+     */
+    public long getDumpCount() {
+        return dumps.get();
+    }
+
+    /**
+     * @return the number of simulated failures.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    private static int findFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+/**
+ * The part of the interface of the JaCoCo runtime MBean used by
+ * {@link JaCoCoToGo}.
+ *
+ * @author Matthew C. Jenkins
+ */
+public interface SyntheticRuntimeMBean {
+
+    /**
+     * @param reset whether the execution data should be reset.
+     * @return the execution data in JaCoCo execution data file format.
+     */
+    byte[] getExecutionData(boolean reset);
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.data.SessionInfoStore;
+import org.jacoco.core.runtime.RemoteControlReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures decoding a dump of the JaCoCo Java Agent TCP Server with
+ * {@link RemoteControlReader}, as done for every TCP fetch, without the
+ * network in the way.
+ *
+ * @author Matthew C. Jenkins
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TcpDumpDecodeBenchmark {
+
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    @Param({"16", "256"})
+    public int probeCount;
+
+    @Param({"0.3"})
+    public double probeDensity;
+
+    private byte[] dump;
+
+    @Setup
+    public void createDump() {
+        dump = new SyntheticExecutionData(classCount, probeCount, probeDensity).toRemoteDump(0);
+    }
+
+    @Benchmark
+    public ExecutionDataStore decodeIntoStore() throws IOException {
+        ExecutionDataStore executionDataStore = new ExecutionDataStore();
+        RemoteControlReader reader = new RemoteControlReader(new ByteArrayInputStream(dump));
+        reader.setSessionInfoVisitor(new SessionInfoStore());
+        reader.setExecutionDataVisitor(executionDataStore);
+        if (!reader.read()) {
+            throw new IllegalStateException("Incomplete dump");
+        }
+        return executionDataStore;
+    }
+
+    @Benchmark
+    public ExecutionDataAggregate decodeIntoAggregate() throws IOException {
+        ExecutionDataAggregate aggregate = new ExecutionDataAggregate();
+        RemoteControlReader reader = new RemoteControlReader(new ByteArrayInputStream(dump));
+        reader.setSessionInfoVisitor(aggregate);
+        reader.setExecutionDataVisitor(aggregate);
+        if (!reader.read()) {
+            throw new IllegalStateException("Incomplete dump");
+        }
+        return aggregate;
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo.cli;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.helmetsrequired.jacocotogo.JaCoCoCollector;
+import org.helmetsrequired.jacocotogo.JaCoCoToGo;
+import org.helmetsrequired.jacocotogo.Source;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects JaCoCo execution data from the sources listed in a properties
+ * file, without starting Maven.
+ *
+ * The global keys are named after the parameters of the batch goal, and the
+ * sources after the fields of {@link Source}, prefixed with 'sources.' and an
+ * index, for example:
+ *
+ * <pre>
+ * outputDir=/var/coverage
+ * merge=true
+ * sources.1.type=tcp
+ * sources.1.hostname=myserver.mydomain.com
+ * sources.1.port=6300
+ * sources.2.serviceURL=service:jmx:rmi:///jndi/rmi://otherserver:9999/jmxrmi
+ * </pre>
+ *
+ * Sources are fetched by a {@link JaCoCoCollector} and merged with
+ * {@link JaCoCoToGo}, so the command line only relies on the public API of
+ * the plugin.
+ *
+ * So that it can run repeatedly, for example from cron, sources without an
+ * 'outputFile' are fetched into a temporary directory next to the merged
+ * file when merging, which is deleted once the merge succeeded.  Without
+ * merging, their files are named after the run, such as
+ * 'jacoco1-20131231-235959-999.exec'.  Merging into an existing merged file
+ * requires 'accumulate', and is checked before anything is fetched.
+ *
+ * Only the classes a collection needs are loaded, so the jar lends itself to
+ * an AppCDS archive.  Flight Recorder events are disabled unless the system
+ * property 'jacocotogo.jfr' is set to 'true', as registering them takes
+ * longer than most collections.  The exit status is 0 on success, 1 if no
+ * source could be fetched, or if a source or the merge failed and
+ * 'failOnError' is set, and 2 if the configuration is invalid.
+ *
+ * @author Matthew C. Jenkins
+ * @since 1.2
+ */
+public final class JaCoCoToGoCli {
+
+    private static final Logger logger = LoggerFactory.getLogger(JaCoCoToGoCli.class);
+    /**
+     * The system property enabling Flight Recorder events, as documented in
+     * the README.
+     */
+    private static final String EVENTS_PROPERTY = "jacocotogo.jfr";
+    private static final String SOURCES_PREFIX = "sources.";
+    private static final String DEFAULT_OUTPUT_FILE_PREFIX = "jacoco";
+    private static final String DEFAULT_OUTPUT_FILE_SUFFIX = ".exec";
+    private static final int EXIT_FAILURE = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private final Properties properties;
+    private final List<Source> sources = new ArrayList<Source>();
+    /**
+     * The index of each source, as configured.
+     */
+    private final List<Integer> indexes = new ArrayList<Integer>();
+    /**
+     * The file each source is fetched to, null until the run directory has
+     * been created for those fetched into it.
+     */
+    private final List<File> outputFiles = new ArrayList<File>();
+    private File mergeFile;
+    private boolean merge;
+    private boolean accumulate;
+    private boolean failOnError;
+    private int parallelism;
+    private boolean useVirtualThreads;
+    private long retryBackoff;
+    private long memoryBudget;
+    private int failures;
+    private int fetchedCount;
+
+    private JaCoCoToGoCli(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Runs a collection and exits.
+     *
+     * @param args the path of the properties file.
+     */
+    public static void main(String[] args) {
+        if (System.getProperty(EVENTS_PROPERTY) == null) {
+            System.setProperty(EVENTS_PROPERTY, "false");
+        }
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs a collection.
+     *
+     * @param args the path of the properties file.
+     * @return the exit status.
+     */
+    static int run(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: java -jar jacocotogo-cli.jar <config.properties>");
+            return EXIT_USAGE;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream input = new FileInputStream(args[0]);
+            try {
+                properties.load(input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException ex) {
+            System.err.println("Unable to read configuration '" + args[0] + "': " + ex.getMessage());
+            return EXIT_USAGE;
+        }
+        JaCoCoToGoCli cli = new JaCoCoToGoCli(properties);
+        try {
+            cli.configure();
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid configuration '" + args[0] + "': " + ex.getMessage());
+            return EXIT_USAGE;
+        }
+        cli.collect();
+        if (cli.fetchedCount == 0) {
+            return EXIT_FAILURE;
+        }
+        return cli.failures > 0 && cli.failOnError ? EXIT_FAILURE : 0;
+    }
+
+    private void configure() {
+        File outputDir = new File(properties.getProperty("outputDir", "."));
+        String mergeFileName = properties.getProperty("mergeFile");
+        mergeFile = mergeFileName != null ? new File(mergeFileName) : new File(outputDir, "merged.exec");
+        merge = getBoolean(properties, "merge", false);
+        accumulate = getBoolean(properties, "accumulate", false);
+        failOnError = getBoolean(properties, "failOnError", false);
+        parallelism = getInt(properties, "parallelism", 1);
+        useVirtualThreads = getBoolean(properties, "useVirtualThreads", false);
+        retryBackoff = getLong(properties, "retryBackoff", JaCoCoCollector.DEFAULT_RETRY_BACKOFF_MILLIS);
+        memoryBudget = getLong(properties, "memoryBudget", 0);
+        long connectTimeout = getLong(properties, "connectTimeout", 0);
+        long readTimeout = getLong(properties, "readTimeout", 0);
+        long fetchTimeout = getLong(properties, "fetchTimeout", 0);
+        int retries = getInt(properties, "retries", 0);
+        for (String name : new String[]{"bufferSize", "dnsCacheTtl"}) {
+            if (properties.getProperty(name) != null) {
+                logger.warn("Ignoring '{}', which only the batch goal supports", name);
+            }
+        }
+        TreeSet<Integer> configured = new TreeSet<Integer>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(SOURCES_PREFIX)) {
+                int end = name.indexOf('.', SOURCES_PREFIX.length());
+                if (end < 0) {
+                    throw new IllegalArgumentException("Invalid key: '" + name + "'");
+                }
+                configured.add(Integer.valueOf(getInt(name, name.substring(SOURCES_PREFIX.length(), end))));
+            }
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid value of 'parallelism': '" + parallelism + "'");
+        }
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Invalid value of 'memoryBudget': '" + memoryBudget + "'");
+        }
+        if (retryBackoff < 0) {
+            throw new IllegalArgumentException("Invalid value of 'retryBackoff': '" + retryBackoff + "'");
+        }
+        if (configured.isEmpty()) {
+            throw new IllegalArgumentException("No sources specified.");
+        }
+        String runId = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        for (Integer index : configured) {
+            String prefix = SOURCES_PREFIX + index + ".";
+            Source source = new Source();
+            source.setType(properties.getProperty(prefix + "type"));
+            source.setHostname(properties.getProperty(prefix + "hostname"));
+            source.setPort(getInt(properties, prefix + "port", 0));
+            source.setServiceURL(properties.getProperty(prefix + "serviceURL"));
+            source.setUsername(properties.getProperty(prefix + "username"));
+            source.setPassword(properties.getProperty(prefix + "password"));
+            source.setResetAfterFetch(getBoolean(properties, prefix + "resetAfterFetch", true));
+            String outputFile = properties.getProperty(prefix + "outputFile");
+            if (outputFile != null) {
+                outputFiles.add(new File(outputFile));
+            } else if (merge) {
+                // set once the run directory has been created
+                outputFiles.add(null);
+            } else {
+                outputFiles.add(new File(outputDir, DEFAULT_OUTPUT_FILE_PREFIX + index + "-" + runId + DEFAULT_OUTPUT_FILE_SUFFIX));
+            }
+            if (properties.getProperty(prefix + "connectTimeout") != null) {
+                source.setConnectTimeout(getLong(properties, prefix + "connectTimeout", 0));
+            }
+            if (properties.getProperty(prefix + "readTimeout") != null) {
+                source.setReadTimeout(getLong(properties, prefix + "readTimeout", 0));
+            }
+            if (properties.getProperty(prefix + "timeout") != null) {
+                source.setTimeout(getLong(properties, prefix + "timeout", 0));
+            }
+            if (properties.getProperty(prefix + "retries") != null) {
+                source.setRetries(getInt(properties, prefix + "retries", 0));
+            }
+            source.setIncludes(properties.getProperty(prefix + "includes"));
+            source.setExcludes(properties.getProperty(prefix + "excludes"));
+            source.applyDefaults(connectTimeout, readTimeout, fetchTimeout, retries);
+            source.applyFilterDefaults(properties.getProperty("includes"), properties.getProperty("excludes"));
+            sources.add(source);
+            indexes.add(index);
+        }
+    }
+
+    private void collect() {
+        File runDirectory = null;
+        if (merge) {
+            if (!accumulate && mergeFile.exists()) {
+                // refuse before the agents are dumped and reset
+                logger.error("Not fetching: '{}' already exists.  Set 'accumulate' to merge into an existing file.", mergeFile.getAbsolutePath());
+                return;
+            }
+            if (outputFiles.contains(null)) {
+                File mergeDirectory = mergeFile.getAbsoluteFile().getParentFile();
+                try {
+                    mergeDirectory.mkdirs();
+                    runDirectory = Files.createTempDirectory(mergeDirectory.toPath(), "jacocotogo-run").toFile();
+                } catch (IOException ex) {
+                    logger.error("Unable to create a temporary directory in '{}': {}", mergeDirectory.getAbsolutePath(), ex.getMessage());
+                    return;
+                }
+                for (int i = 0; i < outputFiles.size(); i++) {
+                    if (outputFiles.get(i) == null) {
+                        outputFiles.set(i, new File(runDirectory, DEFAULT_OUTPUT_FILE_PREFIX + indexes.get(i) + DEFAULT_OUTPUT_FILE_SUFFIX));
+                    }
+                }
+            }
+        }
+        List<File> fetched = new ArrayList<File>();
+        JaCoCoCollector collector = new JaCoCoCollector(Math.min(parallelism, sources.size()), useVirtualThreads);
+        try {
+            collector.setRetryBackoff(retryBackoff);
+            collector.setMemoryBudget(memoryBudget);
+            List<CompletableFuture<File>> results = new ArrayList<CompletableFuture<File>>(sources.size());
+            for (int i = 0; i < sources.size(); i++) {
+                results.add(collector.fetch(sources.get(i), outputFiles.get(i)));
+            }
+            for (int i = 0; i < sources.size(); i++) {
+                try {
+                    fetched.add(results.get(i).join());
+                } catch (CompletionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    logger.warn("Unable to fetch from source {}: {}", indexes.get(i), cause.getMessage());
+                    failures++;
+                }
+            }
+        } finally {
+            collector.close();
+        }
+        fetchedCount = fetched.size();
+        logger.info("Fetched from {} of {} sources", fetched.size(), sources.size());
+        boolean merged = false;
+        if (merge && !fetched.isEmpty()) {
+            merged = merge(fetched);
+        }
+        if (runDirectory != null) {
+            if (merged || fetched.isEmpty()) {
+                deleteRunDirectory(runDirectory);
+            } else {
+                logger.warn("Keeping the fetched data in '{}'", runDirectory.getAbsolutePath());
+            }
+        }
+    }
+
+    private static void deleteRunDirectory(File runDirectory) {
+        File[] files = runDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    logger.warn("Unable to delete file: '{}'", file.getAbsolutePath());
+                }
+            }
+        }
+        if (!runDirectory.delete()) {
+            logger.warn("Unable to delete directory: '{}'", runDirectory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return whether the merge succeeded.
+     */
+    private boolean merge(List<File> files) {
+        try {
+            if (accumulate) {
+                JaCoCoToGo.accumulateJaCoCoData(files, mergeFile, 1);
+            } else {
+                JaCoCoToGo.mergeJaCoCoData(files, mergeFile);
+            }
+            return true;
+        } catch (RuntimeException ex) {
+            logger.warn("Unable to merge into '{}': {}", mergeFile.getAbsolutePath(), ex.getMessage());
+            failures++;
+            return false;
+        }
+    }
+
+    private static boolean getBoolean(Properties properties, String name, boolean defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    private static int getInt(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : getInt(name, value);
+    }
+
+    private static int getInt(String name, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value of '" + name + "': '" + value + "'", ex);
+        }
+    }
+
+    private static long getLong(Properties properties, String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value of '" + name + "': '" + value + "'", ex);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.jacoco.core.data.ExecutionDataWriter;
+
+/**
+ * Reads complete blocks, as framed by {@link ExecutionDataBlocks}, from a
+ * stream.  The buffer is taken from a {@link BufferPool} and only grown for
+ * blocks larger than a pooled buffer, so reading allocates nothing per block.
+ * It never grows beyond the largest valid block, so corrupt data can not
+ * exhaust the heap.
+ * Closing the reader returns the buffer to the pool and closes the stream.
+ *
+ * @author Matthew C. Jenkins
+ */
+class BlockReader implements Closeable {
+
+    private final InputStream input;
+    private final BufferPool pool;
+    private byte[] buffer;
+    private int offset;
+    private int length;
+    private int end;
+
+    /**
+     * @param input the stream to read from.  It is read in chunks of the
+     * pool's buffer size, so it need not be buffered.
+     * @param pool the pool to take the buffer from.
+     */
+    BlockReader(InputStream input, BufferPool pool) {
+        this.input = input;
+        this.pool = pool;
+        this.buffer = pool.acquire();
+    }
+
+    /**
+     * Advances to the next block.  The stream is only read if the buffer
+     * does not hold the complete block yet, so a reader may stop at a
+     * terminating block without waiting for more data.
+     *
+     * @return whether a complete block is available, false at the end of the
+     * stream.
+     * @throws IOException if the stream ends within a block, or holds an
+     * unknown block type or a block longer than any valid one.
+     */
+    boolean next() throws IOException {
+        offset += length;
+        while ((length = ExecutionDataBlocks.blockLength(buffer, offset, end)) < 0) {
+            if (offset > 0) {
+                System.arraycopy(buffer, offset, buffer, 0, end - offset);
+                end -= offset;
+                offset = 0;
+            }
+            if (end == buffer.length) {
+                if (buffer.length >= ExecutionDataBlocks.MAX_BLOCK_LENGTH) {
+                    throw new IOException("Execution data block longer than " + ExecutionDataBlocks.MAX_BLOCK_LENGTH + " bytes.");
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 2L, ExecutionDataBlocks.MAX_BLOCK_LENGTH));
+            }
+            int count = input.read(buffer, end, buffer.length - end);
+            if (count < 0) {
+                length = 0;
+                if (end > offset) {
+                    throw new EOFException("Truncated execution data.");
+                }
+                return false;
+            }
+            end += count;
+        }
+        return true;
+    }
+
+    /**
+     * Reads all remaining blocks of an execution data file, passing its
+     * session info and execution data blocks to handler.  The data must
+     * start with a valid header, and hold no other block types.
+     *
+     * @return the number of execution data blocks read.
+     * @throws IOException if the data can not be read or is invalid, or
+     * handler fails.
+     */
+    int read(BlockHandler handler) throws IOException {
+        int classes = 0;
+        boolean headerReceived = false;
+        while (next()) {
+            byte type = getType();
+            if (type == ExecutionDataWriter.BLOCK_HEADER) {
+                ExecutionDataBlocks.checkHeader(buffer, offset);
+                headerReceived = true;
+            } else if (!headerReceived) {
+                throw new IOException("Invalid execution data file.");
+            } else if (type == ExecutionDataWriter.BLOCK_SESSIONINFO) {
+                handler.sessionInfo(buffer, offset, length);
+            } else if (type == ExecutionDataWriter.BLOCK_EXECUTIONDATA) {
+                handler.executionData(buffer, offset, length);
+                classes++;
+            } else {
+                throw new IOException(String.format("Unexpected block type %x.", Byte.valueOf(type)));
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * @return the type of the current block.
+     */
+    byte getType() {
+        return buffer[offset];
+    }
+
+    /**
+     * @return the buffer holding the current block.  Only valid until the
+     * next call of {@link #next()}.
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the offset of the current block in the buffer.
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the current block, including its type.
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the buffer to the pool without closing the stream.
+     */
+    void release() {
+        if (buffer != null) {
+            // grown buffers are dropped by the pool
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        input.close();
+    }
+
+    /**
+     * Receives the blocks passed on by {@link BlockReader#read(BlockHandler)}.
+     * The buffer is only valid until the method returns.
+     */
+    abstract static class BlockHandler {
+
+        /**
+         * Receives a complete session info block.
+         */
+        abstract void sessionInfo(byte[] buffer, int offset, int length) throws IOException;
+
+        /**
+         * Receives a complete execution data block.
+         */
+        abstract void executionData(byte[] buffer, int offset, int length) throws IOException;
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of equally sized {@code byte[]} buffers shared by the streams and
+ * block readers of the collection pipeline.
+ *
+ * Fetching, saving, loading and writing execution data each need an I/O
+ * buffer for as long as a stream is open.  Taking those buffers from a pool
+ * and returning them when the stream is closed means repeated collections, in
+ * the daemon or in a long running build, reuse the same arrays instead of
+ * allocating and discarding new ones for every source.  At most
+ * {@code maxBuffers} idle buffers are retained; buffers beyond that, and
+ * buffers grown to hold an unusually large block, are left to the garbage
+ * collector.
+ *
+ * All methods are thread safe.  The streams returned are not.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class BufferPool {
+
+    /**
+     * The default size of a buffer.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The default number of idle buffers retained.
+     */
+    static final int DEFAULT_MAX_BUFFERS = 32;
+
+    private static BufferPool shared = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_BUFFERS);
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ArrayDeque<byte[]> buffers = new ArrayDeque<byte[]>();
+
+    /**
+     * @param bufferSize the size of each buffer in bytes.
+     * @param maxBuffers the maximum number of idle buffers retained.
+     */
+    BufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Invalid buffer size: '" + bufferSize + "'");
+        }
+        if (maxBuffers < 0) {
+            throw new IllegalArgumentException("Invalid maximum number of buffers: '" + maxBuffers + "'");
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * @return the pool used by the collection pipeline.
+     */
+    static synchronized BufferPool getShared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the shared pool, unless it already has the given
+     * configuration, in which case its idle buffers are kept.  Streams open on
+     * the previous pool return their buffers to it.
+     *
+     * @return the shared pool.
+     */
+    static synchronized BufferPool configureShared(int bufferSize, int maxBuffers) {
+        if (shared.bufferSize != bufferSize || shared.maxBuffers != maxBuffers) {
+            shared = new BufferPool(bufferSize, maxBuffers);
+        }
+        return shared;
+    }
+
+    /**
+     * @return the size of the buffers of this pool.
+     */
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Takes an idle buffer from this pool, allocating a new one if there is
+     * none.  The contents of the buffer are undefined.
+     */
+    synchronized byte[] acquire() {
+        byte[] buffer = buffers.pollFirst();
+        if (buffer == null) {
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to this pool.  Buffers of a different size, and
+     * buffers beyond the maximum number retained, are dropped.
+     */
+    synchronized void release(byte[] buffer) {
+        if (buffer.length == bufferSize && buffers.size() < maxBuffers) {
+            buffers.addFirst(buffer);
+        }
+    }
+
+    /**
+     * @return a buffered stream writing to output, whose buffer is returned
+     * to this pool when the stream is closed.
+     */
+    OutputStream newOutputStream(OutputStream output) {
+        return new PooledOutputStream(output);
+    }
+
+    /**
+     * @return a buffered stream reading from input, whose buffer is returned
+     * to this pool when the stream is closed.
+     */
+    InputStream newInputStream(InputStream input) {
+        return new PooledInputStream(input);
+    }
+
+    private class PooledOutputStream extends FilterOutputStream {
+
+        private byte[] buffer = acquire();
+        private int count;
+
+        PooledOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer().length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buffer().length) {
+                // larger than the buffer, bypass it
+                flushBuffer();
+                out.write(b, off, len);
+                return;
+            }
+            if (len > buffer.length - count) {
+                flushBuffer();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                byte[] released = buffer;
+                buffer = null;
+                release(released);
+                out.close();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        private byte[] buffer() throws IOException {
+            if (buffer == null) {
+                throw new IOException("Stream closed");
+            }
+            return buffer;
+        }
+    }
+
+    private class PooledInputStream extends FilterInputStream {
+
+        private byte[] buffer = acquire();
+        private int position;
+        private int count;
+
+        PooledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == count && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == count) {
+                if (len >= buffer().length) {
+                    // larger than the buffer, bypass it
+                    return in.read(b, off, len);
+                }
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, count - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            if (position < count) {
+                int skipped = (int) Math.min(n, count - position);
+                position += skipped;
+                return skipped;
+            }
+            return in.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (count - position) + in.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            // not supported
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            byte[] released = buffer;
+            buffer = null;
+            position = 0;
+            count = 0;
+            release(released);
+            in.close();
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(buffer(), 0, buffer.length);
+            if (n <= 0) {
+                return false;
+            }
+            position = 0;
+            count = n;
+            return true;
+        }
+
+        private byte[] buffer() throws IOException {
+            if (buffer == null) {
+                throw new IOException("Stream closed");
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import org.jacoco.core.runtime.WildcardMatcher;
+
+/**
+ * Decides which classes are kept from a dump, by include and exclude
+ * patterns on their names.
+ *
+ * The patterns use the syntax of the includes and excludes of the JaCoCo
+ * agent: a colon separated list of fully qualified class names, which may
+ * contain the wildcards '*' and '?'.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class ClassFilter {
+
+    /**
+     * A filter keeping all classes.
+     */
+    static final ClassFilter ALL = new ClassFilter(null, null);
+
+    private final WildcardMatcher includes;
+    private final WildcardMatcher excludes;
+
+    private ClassFilter(WildcardMatcher includes, WildcardMatcher excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * @param includes the classes to keep, null or empty keeps all classes.
+     * @param excludes the classes to drop, null or empty drops none.
+     * @return a filter for the given patterns.
+     */
+    static ClassFilter of(String includes, String excludes) {
+        boolean include = includes != null && !includes.trim().isEmpty() && !includes.trim().equals("*");
+        boolean exclude = excludes != null && !excludes.trim().isEmpty();
+        if (!include && !exclude) {
+            return ALL;
+        }
+        return new ClassFilter(include ? new WildcardMatcher(includes.trim()) : null, exclude ? new WildcardMatcher(excludes.trim()) : null);
+    }
+
+    /**
+     * @return whether this filter keeps all classes.
+     */
+    boolean isAll() {
+        return includes == null && excludes == null;
+    }
+
+    /**
+     * @param vmName the name of a class, in VM notation, with '/' separating
+     * the packages.
+     * @return whether the class is kept.
+     */
+    boolean accepts(String vmName) {
+        if (isAll()) {
+            return true;
+        }
+        String name = vmName.replace('/', '.');
+        return (includes == null || includes.matches(name)) && (excludes == null || !excludes.matches(name));
+    }
+}
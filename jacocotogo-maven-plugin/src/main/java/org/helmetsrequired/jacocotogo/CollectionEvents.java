@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits Java Flight Recorder events for the phases of a collection run, so a
+ * run can be profiled alongside GC and I/O.
+ *
+ * The JFR event classes are only loaded when the running JVM provides the
+ * {@code jdk.jfr} API, the plugin still runs on JVMs without it.  When no
+ * recording is enabled {@link #begin(Kind)} returns a span which does
+ * nothing, and callers can use {@link Span#isRecording()} to skip work which
+ * is only needed for the event.
+ *
+ * Setting the system property {@value #EVENTS_PROPERTY} to 'false' keeps the
+ * JFR classes from being loaded at all, which saves short lived JVMs the
+ * cost of registering the events.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class CollectionEvents {
+
+    /**
+     * The system property which disables the events when set to 'false'.
+     */
+    static final String EVENTS_PROPERTY = "jacocotogo.jfr";
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectionEvents.class);
+    private static final boolean AVAILABLE = isAvailable();
+
+    /**
+     * A span which is never recorded.
+     */
+    static final Span NONE = new Span();
+
+    /**
+     * The kinds of events.
+     */
+    enum Kind {
+
+        /**
+         * Fetching a dump from a source.
+         */
+        FETCH,
+        /**
+         * Decoding execution data into memory.
+         */
+        DECODE,
+        /**
+         * Writing execution data to a file.
+         */
+        SAVE,
+        /**
+         * Merging execution data files into one.
+         */
+        MERGE
+    }
+
+    private CollectionEvents() {
+    }
+
+    /**
+     * Starts timing an event of the given kind.
+     *
+     * @return the span to end once the phase is done, {@link #NONE} if events
+     * of this kind are not being recorded.
+     */
+    static Span begin(Kind kind) {
+        return AVAILABLE ? JfrCollectionEvents.begin(kind) : NONE;
+    }
+
+    private static boolean isAvailable() {
+        if ("false".equalsIgnoreCase(System.getProperty(EVENTS_PROPERTY))) {
+            logger.debug("Java Flight Recorder events are disabled by system property '{}'.", EVENTS_PROPERTY);
+            return false;
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            logger.debug("Java Flight Recorder is not available on this JVM, no events will be emitted.");
+            return false;
+        } catch (LinkageError ex) {
+            logger.debug("Java Flight Recorder is not available on this JVM, no events will be emitted.");
+            return false;
+        }
+    }
+
+    /**
+     * A started event.  The base class records nothing.
+     */
+    static class Span {
+
+        /**
+         * @return whether this span is recorded, and the values passed to
+         * {@link #end(Object, long, int)} are used.
+         */
+        boolean isRecording() {
+            return false;
+        }
+
+        /**
+         * Ends the span and commits its event.
+         *
+         * @param source the source, file or address the phase worked on, its
+         * string value is only computed when the event is committed.
+         * @param bytes the number of bytes read or written.
+         * @param classes the number of classes read or written.
+         */
+        void end(Object source, long bytes, int classes) {
+        }
+    }
+}
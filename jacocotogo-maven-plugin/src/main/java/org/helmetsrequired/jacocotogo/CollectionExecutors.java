@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the thread pools used to fetch JaCoCo execution data from several
+ * sources concurrently.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class CollectionExecutors {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectionExecutors.class);
+    private static final String THREAD_NAME_PREFIX = "jacocotogo-fetch-";
+
+    private CollectionExecutors() {
+    }
+
+    /**
+     * Creates a fixed size pool of collection threads.
+     *
+     * @param parallelism the maximum number of concurrent fetches.
+     * @param virtualThreads whether to run fetches on virtual threads. Falls
+     * back to platform threads when the running JVM does not support them.
+     * @return a new {@link java.util.concurrent.ExecutorService}, the caller is
+     * responsible for shutting it down.
+     */
+    static ExecutorService newExecutor(int parallelism, boolean virtualThreads) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: '" + parallelism + "'");
+        }
+        ThreadFactory threadFactory = null;
+        if (virtualThreads) {
+            threadFactory = virtualThreadFactory();
+        }
+        if (threadFactory == null) {
+            threadFactory = platformThreadFactory();
+        }
+        logger.debug("Creating collection executor with parallelism: {}", parallelism);
+        return Executors.newFixedThreadPool(parallelism, threadFactory);
+    }
+
+    private static ThreadFactory platformThreadFactory() {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, THREAD_NAME_PREFIX + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Looks up {@code Thread.ofVirtual().factory()} reflectively so the plugin
+     * still runs on JVMs without virtual thread support.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception ex) {
+            logger.warn("Virtual threads are not available on this JVM, using platform threads instead.");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the {@link FetchMetrics} of every source and the duration of the
+ * merge during a run, and writes them as a JSON report.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class CollectionReport {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long started = System.currentTimeMillis();
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private long mergeMillis = -1;
+    private int mergeInputs;
+    private long mergeInputBytes;
+    private int mergeOutputFiles;
+    private long mergeOutputBytes;
+
+    /**
+     * Records a successful fetch.
+     */
+    synchronized void success(String key, Source source, long latencyMillis, FetchMetrics metrics) {
+        entries.add(new Entry(key, source, "success", null, latencyMillis, metrics));
+    }
+
+    /**
+     * Records a failed fetch.
+     */
+    synchronized void failure(String key, Source source, long latencyMillis, Exception ex) {
+        entries.add(new Entry(key, source, "failure", ex.getMessage(), latencyMillis, null));
+    }
+
+    /**
+     * Records a source which was not fetched from.
+     */
+    synchronized void skipped(String key, Source source, String reason) {
+        entries.add(new Entry(key, source, "skipped", reason, 0, null));
+    }
+
+    /**
+     * Records the merge of inputs into outputs.
+     */
+    synchronized void merged(long durationMillis, List<File> inputs, List<File> outputs) {
+        mergeMillis = durationMillis;
+        mergeInputs = inputs.size();
+        mergeInputBytes = 0;
+        for (File input : inputs) {
+            mergeInputBytes += input.length();
+        }
+        mergeOutputFiles = outputs.size();
+        mergeOutputBytes = 0;
+        for (File output : outputs) {
+            mergeOutputBytes += output.length();
+        }
+    }
+
+    /**
+     * Writes the report to file.
+     *
+     * @throws IOException if the report can not be written.
+     */
+    synchronized void write(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory: '" + directory.getAbsolutePath() + "'");
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+        try {
+            writer.write("{\n");
+            writer.write("  \"started\": " + quote(format.format(new Date(started))) + ",\n");
+            writer.write("  \"durationMillis\": " + (System.currentTimeMillis() - started) + ",\n");
+            writer.write("  \"sources\": [");
+            for (int i = 0; i < entries.size(); i++) {
+                writer.write(i == 0 ? "\n" : ",\n");
+                entries.get(i).write(writer);
+            }
+            writer.write(entries.isEmpty() ? "]" : "\n  ]");
+            if (mergeMillis >= 0) {
+                writer.write(",\n  \"merge\": {\"durationMillis\": " + mergeMillis
+                        + ", \"inputFiles\": " + mergeInputs
+                        + ", \"inputBytes\": " + mergeInputBytes
+                        + ", \"outputFiles\": " + mergeOutputFiles
+                        + ", \"outputBytes\": " + mergeOutputBytes + "}");
+            }
+            writer.write("\n}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder builder = new StringBuilder(value.length() + 2);
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * The outcome of a single source.
+     */
+    private static class Entry {
+
+        private final String key;
+        private final String type;
+        private final String outputFile;
+        private final String outcome;
+        private final String error;
+        private final long latencyMillis;
+        private final FetchMetrics metrics;
+
+        Entry(String key, Source source, String outcome, String error, long latencyMillis, FetchMetrics metrics) {
+            this.key = key;
+            this.type = source.getSourceType() == null ? source.getType() : source.getSourceType().name().toLowerCase();
+            this.outputFile = source.getOutputFile() == null ? null : source.getOutputFile().getAbsolutePath();
+            this.outcome = outcome;
+            this.error = error;
+            this.latencyMillis = latencyMillis;
+            this.metrics = metrics;
+        }
+
+        void write(Writer writer) throws IOException {
+            StringBuilder builder = new StringBuilder("    {");
+            builder.append("\"source\": ").append(quote(key));
+            builder.append(", \"type\": ").append(quote(type));
+            builder.append(", \"outputFile\": ").append(quote(outputFile));
+            builder.append(", \"outcome\": ").append(quote(outcome));
+            if (error != null) {
+                builder.append(", \"error\": ").append(quote(error));
+            }
+            builder.append(", \"latencyMillis\": ").append(latencyMillis);
+            if (metrics != null) {
+                builder.append(", \"attempts\": ").append(metrics.getAttempts());
+                for (FetchMetrics.Phase phase : FetchMetrics.Phase.values()) {
+                    builder.append(", \"").append(phase.name().toLowerCase()).append("Millis\": ").append(millis(metrics.getNanos(phase)));
+                }
+                builder.append(", \"bytes\": ").append(metrics.getBytes());
+                builder.append(", \"classes\": ").append(metrics.getClasses());
+                builder.append(", \"bytesPerSecond\": ").append(latencyMillis > 0 ? metrics.getBytes() * 1000 / latencyMillis : 0);
+            }
+            writer.write(builder.append('}').toString());
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.SessionInfoStore;
+
+/**
+ * Merges JaCoCo execution data files by copying the encoded blocks of
+ * classes which occur in only one input straight to the output.
+ *
+ * When data is collected from a sharded fleet most classes are only loaded,
+ * and so only dumped, by a single JVM.  Their blocks are kept as they were
+ * read, in an arena of large chunks, and written out unchanged.  Only when a
+ * class id shows up a second time are its blocks decoded, and their probes
+ * ORed, into a {@link ProbeBitsetStore}.  Neither names nor probes of the
+ * other classes are ever decoded, so the cost of a merge grows with the
+ * overlap of the inputs rather than with their size.
+ *
+ * Classes are written in ascending class id order, after all session infos,
+ * so the output is the same as that of merging the inputs into an
+ * {@link ExecutionDataAggregate}.
+ *
+ * Instances are not thread safe.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class CopyThroughMerge implements WritableExecutionData {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final int INITIAL_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    /**
+     * The length recorded for a class whose blocks have been merged into the
+     * store.  Empty slots have length 0.
+     */
+    private static final int MERGED = -1;
+
+    private final SessionInfoStore sessionInfoStore = new SessionInfoStore();
+    private final ProbeBitsetStore merged = new ProbeBitsetStore();
+    private long[] ids;
+    private byte[][] chunks;
+    private int[] offsets;
+    private int[] lengths;
+    private int size;
+    private int mergedCount;
+    private int shift;
+    private byte[] chunk;
+    private int chunkEnd;
+    private final BlockReader.BlockHandler loader = new BlockReader.BlockHandler() {
+        @Override
+        void sessionInfo(byte[] buffer, int offset, int length) throws IOException {
+            sessionInfoStore.visitSessionInfo(ExecutionDataBlocks.readSessionInfo(buffer, offset, length));
+        }
+
+        @Override
+        void executionData(byte[] buffer, int offset, int length) throws IOException {
+            add(buffer, offset, length);
+        }
+    };
+
+    CopyThroughMerge() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Loads inputFiles, scanning up to parallelism files concurrently.
+     *
+     * @throws JaCoCoToGoException if a file can not be read.
+     * @throws IllegalStateException if a class occurs with different names
+     * or probe counts.
+     */
+    static CopyThroughMerge load(List<File> inputFiles, int parallelism) {
+        if (parallelism == 1 || inputFiles.size() < 2) {
+            CopyThroughMerge merge = new CopyThroughMerge();
+            for (File inputFile : inputFiles) {
+                merge.load(inputFile);
+            }
+            return merge;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new ParallelLoad(inputFiles, 0, inputFiles.size()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Scans the blocks of inputFile.
+     *
+     * @throws JaCoCoToGoException if the file can not be read.
+     * @throws IllegalStateException if a class of the file has been loaded
+     * before with a different name or probe count.
+     */
+    void load(File inputFile) {
+        // most blocks are only copied, so this is not recorded as a decode
+        JaCoCoToGo.readJaCoCoData(inputFile, loader);
+    }
+
+    /**
+     * Adds a complete execution data block, copying it into the arena if its
+     * class has not been seen yet, and merging it otherwise.
+     */
+    private void add(byte[] buffer, int offset, int length) throws IOException {
+        long id = ExecutionDataBlocks.readClassId(buffer, offset);
+        int index = slot(id);
+        if (lengths[index] == 0) {
+            if (chunk == null || length > chunk.length - chunkEnd) {
+                // chunks double up to the maximum, and blocks larger than
+                // that get a chunk of their own
+                int chunkSize = chunk == null ? INITIAL_CHUNK_SIZE : Math.min(MAX_CHUNK_SIZE, chunk.length * 2);
+                chunk = new byte[Math.max(chunkSize, length)];
+                chunkEnd = 0;
+            }
+            System.arraycopy(buffer, offset, chunk, chunkEnd, length);
+            insert(index, id, chunk, chunkEnd, length);
+            chunkEnd += length;
+            return;
+        }
+        collide(index);
+        merged.mergeBlock(buffer, offset);
+    }
+
+    /**
+     * Moves the class in slot index to the store, unless it has been merged
+     * already.
+     */
+    private void collide(int index) throws IOException {
+        if (lengths[index] != MERGED) {
+            merged.mergeBlock(chunks[index], offsets[index]);
+            chunks[index] = null;
+            lengths[index] = MERGED;
+            mergedCount++;
+        }
+    }
+
+    /**
+     * Merges all data of other into this merge.  The session infos of other
+     * are added after those of this merge.  other must not be used
+     * afterwards, as its arena is shared.
+     *
+     * @throws IllegalStateException if a class occurs in both with different
+     * names or probe counts.
+     */
+    void merge(CopyThroughMerge other) {
+        other.sessionInfoStore.accept(sessionInfoStore);
+        try {
+            int mask = other.ids.length - 1;
+            for (int n = 0; n < other.ids.length; n++) {
+                int i = ProbeBitsetStore.scatter(n, mask);
+                if (other.lengths[i] == 0) {
+                    continue;
+                }
+                int index = slot(other.ids[i]);
+                if (other.lengths[i] == MERGED) {
+                    // merged below, with the rest of the store of other
+                    if (lengths[index] == 0) {
+                        insert(index, other.ids[i], null, 0, MERGED);
+                        mergedCount++;
+                    } else {
+                        collide(index);
+                    }
+                } else if (lengths[index] == 0) {
+                    insert(index, other.ids[i], other.chunks[i], other.offsets[i], other.lengths[i]);
+                } else {
+                    collide(index);
+                    merged.mergeBlock(other.chunks[i], other.offsets[i]);
+                }
+            }
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Error decoding execution data", ex);
+        }
+        merged.merge(other.merged);
+    }
+
+    /**
+     * Writes all session infos, followed by all classes in ascending class
+     * id order, in the format written by {@link ExecutionDataWriter}.
+     *
+     * @throws IOException if the data can not be written.
+     */
+    @Override
+    public void write(OutputStream output) throws IOException {
+        // writes the header straight to output
+        ExecutionDataWriter writer = new ExecutionDataWriter(output);
+        sessionInfoStore.accept(writer);
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        long[] sortedIds = new long[size];
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (lengths[i] != 0) {
+                sortedIds[n++] = ids[i];
+            }
+        }
+        Arrays.sort(sortedIds);
+        for (long id : sortedIds) {
+            int index = slot(id);
+            if (lengths[index] == MERGED) {
+                merged.writeBlock(dataOutput, id);
+            } else {
+                dataOutput.write(chunks[index], offsets[index], lengths[index]);
+            }
+        }
+        dataOutput.flush();
+    }
+
+    /**
+     * @return the number of distinct classes loaded.
+     */
+    @Override
+    public int getClassCount() {
+        return size;
+    }
+
+    /**
+     * @return the number of classes which occurred more than once, and so
+     * were decoded and merged.
+     */
+    int getMergedClassCount() {
+        return mergedCount;
+    }
+
+    private void allocate(int capacity) {
+        ids = new long[capacity];
+        chunks = new byte[capacity][];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int slot(long id) {
+        int mask = ids.length - 1;
+        int index = (int) ((id * HASH_MULTIPLIER) >>> shift);
+        while (lengths[index] != 0 && ids[index] != id) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void insert(int index, long id, byte[] blockChunk, int offset, int length) {
+        ids[index] = id;
+        chunks[index] = blockChunk;
+        offsets[index] = offset;
+        lengths[index] = length;
+        if (++size > ids.length >>> 1) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        long[] oldIds = ids;
+        byte[][] oldChunks = chunks;
+        int[] oldOffsets = offsets;
+        int[] oldLengths = lengths;
+        allocate(oldIds.length << 1);
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldLengths[i] != 0) {
+                int index = slot(oldIds[i]);
+                ids[index] = oldIds[i];
+                chunks[index] = oldChunks[i];
+                offsets[index] = oldOffsets[i];
+                lengths[index] = oldLengths[i];
+            }
+        }
+    }
+
+    /**
+     * Scans a range of files, splitting it in half until a single file
+     * remains, as {@link ParallelMerge} does.
+     */
+    private static class ParallelLoad extends RecursiveTask<CopyThroughMerge> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> inputFiles;
+        private final int from;
+        private final int to;
+
+        ParallelLoad(List<File> inputFiles, int from, int to) {
+            this.inputFiles = inputFiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected CopyThroughMerge compute() {
+            if (to - from <= 1) {
+                CopyThroughMerge merge = new CopyThroughMerge();
+                if (to > from) {
+                    merge.load(inputFiles.get(from));
+                }
+                return merge;
+            }
+            int middle = (from + to) >>> 1;
+            ParallelLoad left = new ParallelLoad(inputFiles, from, middle);
+            ParallelLoad right = new ParallelLoad(inputFiles, middle, to);
+            left.fork();
+            CopyThroughMerge rightResult = right.compute();
+            CopyThroughMerge leftResult = left.join();
+            leftResult.merge(rightResult);
+            return leftResult;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.IExecutionDataVisitor;
+import org.jacoco.core.data.ISessionInfoVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives the complete blocks of a single dump, as framed by
+ * {@link ExecutionDataBlocks}.  The terminating command ok block of the
+ * JaCoCo agent TCP protocol is not passed on.
+ *
+ * @author Matthew C. Jenkins
+ */
+abstract class DumpSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(DumpSink.class);
+
+    /**
+     * Receives a complete header, session info or execution data block.
+     *
+     * @param type the block type.
+     * @param buffer the buffer holding the block.
+     * @param offset the offset of the block type in buffer.
+     * @param length the length of the block, including its type.
+     * @throws IOException if the block can not be processed.
+     */
+    abstract void block(byte type, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Called once the dump has been received completely.
+     *
+     * @throws IOException if the dump can not be stored.
+     */
+    abstract void complete() throws IOException;
+
+    /**
+     * Called instead of {@link #complete()} if the dump failed, to discard
+     * partial results.
+     */
+    abstract void abort();
+
+    /**
+     * @return a sink writing the dump to outputFile, which must not exist yet.
+     * The data is written to a temporary file first and moved into place once
+     * the dump is complete.
+     */
+    static DumpSink toFile(File outputFile) {
+        return new FileDumpSink(outputFile);
+    }
+
+    /**
+     * @return a sink decoding the dump into the given visitors once it is
+     * complete.  Nothing is passed on for a dump which fails.  If both are
+     * the same {@link ExecutionDataAggregate}, the probes are merged into it
+     * without decoding them.
+     */
+    static DumpSink toVisitors(ISessionInfoVisitor sessionInfoVisitor, IExecutionDataVisitor executionDataVisitor) {
+        if (sessionInfoVisitor == executionDataVisitor && executionDataVisitor instanceof ExecutionDataAggregate) {
+            return new AggregateDumpSink((ExecutionDataAggregate) executionDataVisitor);
+        }
+        return new VisitorDumpSink(sessionInfoVisitor, executionDataVisitor);
+    }
+
+    /**
+     * @return a sink appending the dump to journal as a new segment.
+     */
+    static DumpSink toJournal(final ExecutionDataJournal journal) {
+        final File segmentFile = journal.newSegmentFile();
+        return new FileDumpSink(segmentFile) {
+            @Override
+            void complete() throws IOException {
+                super.complete();
+                journal.append(segmentFile);
+            }
+        };
+    }
+
+    private static class FileDumpSink extends DumpSink {
+
+        private final File outputFile;
+        private final File tempFile;
+        private OutputStream output;
+        private long count;
+
+        FileDumpSink(File outputFile) {
+            JaCoCoToGo.prepareOutputFile(outputFile);
+            this.outputFile = outputFile;
+            this.tempFile = JaCoCoToGo.createTempFile(outputFile);
+        }
+
+        @Override
+        void block(byte type, byte[] buffer, int offset, int length) throws IOException {
+            if (output == null) {
+                // opened on the first block, so sinks waiting for their
+                // connection do not hold a buffer
+                output = BufferPool.getShared().newOutputStream(new FileOutputStream(tempFile));
+            }
+            output.write(buffer, offset, length);
+            count += length;
+        }
+
+        @Override
+        void complete() throws IOException {
+            if (output != null) {
+                output.close();
+                output = null;
+            }
+            logger.debug("{} bytes of JaCoCo execution data received", count);
+            if (count <= ExecutionDataBlocks.HEADER_LENGTH) {
+                deleteTempFile();
+                throw new JaCoCoToGoException("No JaCoCo execution data received.");
+            }
+            logger.info("Saving JaCoCo execution data to file: '{}'", outputFile.getAbsolutePath());
+            try {
+                JaCoCoToGo.moveTempFile(tempFile, outputFile);
+            } catch (IOException ex) {
+                deleteTempFile();
+                throw ex;
+            }
+        }
+
+        @Override
+        void abort() {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ex) {
+                    // bummer
+                }
+                output = null;
+            }
+            deleteTempFile();
+        }
+
+        private void deleteTempFile() {
+            if (tempFile.exists() && !tempFile.delete()) {
+                logger.warn("Unable to delete temporary file: '{}'", tempFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Buffers the dump in a private aggregate and only passes it on once it
+     * is complete, so a failed or timed out attempt leaves nothing behind
+     * and its retry does not add the same session infos twice.
+     */
+    private static class VisitorDumpSink extends DumpSink {
+
+        private final ISessionInfoVisitor sessionInfoVisitor;
+        private final IExecutionDataVisitor executionDataVisitor;
+        private ExecutionDataAggregate attempt = new ExecutionDataAggregate();
+
+        VisitorDumpSink(ISessionInfoVisitor sessionInfoVisitor, IExecutionDataVisitor executionDataVisitor) {
+            this.sessionInfoVisitor = sessionInfoVisitor;
+            this.executionDataVisitor = executionDataVisitor;
+        }
+
+        @Override
+        void block(byte type, byte[] buffer, int offset, int length) throws IOException {
+            switch (type) {
+                case ExecutionDataWriter.BLOCK_SESSIONINFO:
+                    attempt.visitSessionInfo(ExecutionDataBlocks.readSessionInfo(buffer, offset, length));
+                    break;
+                case ExecutionDataWriter.BLOCK_EXECUTIONDATA:
+                    attempt.mergeBlock(buffer, offset);
+                    break;
+                default:
+                    // headers carry no data
+                    break;
+            }
+        }
+
+        @Override
+        void complete() {
+            ExecutionDataAggregate data = attempt;
+            attempt = null;
+            publish(data);
+        }
+
+        /**
+         * Passes a complete dump on.
+         */
+        void publish(ExecutionDataAggregate data) {
+            data.accept(sessionInfoVisitor, executionDataVisitor);
+        }
+
+        @Override
+        void abort() {
+            attempt = null;
+        }
+    }
+
+    private static class AggregateDumpSink extends VisitorDumpSink {
+
+        private final ExecutionDataAggregate aggregate;
+
+        AggregateDumpSink(ExecutionDataAggregate aggregate) {
+            super(aggregate, aggregate);
+            this.aggregate = aggregate;
+        }
+
+        @Override
+        void publish(ExecutionDataAggregate data) {
+            // merges the bitsets without decoding them
+            aggregate.merge(data);
+        }
+    }
+}
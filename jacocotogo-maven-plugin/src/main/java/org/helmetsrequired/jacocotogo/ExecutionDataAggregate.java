@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.IExecutionDataVisitor;
+import org.jacoco.core.data.ISessionInfoVisitor;
+import org.jacoco.core.data.SessionInfo;
+import org.jacoco.core.data.SessionInfoStore;
+
+/**
+ * An in-memory aggregate of JaCoCo execution data.  Session infos are
+ * collected and execution data for the same class is merged as it is
+ * visited, so data fetched from several sources can be decoded straight into
+ * a single aggregate.
+ *
+ * All methods are synchronized, so a single aggregate may be shared between
+ * concurrent fetches.
+ *
+ * @author Matthew C. Jenkins
+ * @since 1.2
+ */
+public class ExecutionDataAggregate implements ISessionInfoVisitor, IExecutionDataVisitor, WritableExecutionData {
+
+    private final SessionInfoStore sessionInfoStore = new SessionInfoStore();
+    private final ProbeBitsetStore probeStore = new ProbeBitsetStore();
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void visitSessionInfo(SessionInfo info) {
+        sessionInfoStore.visitSessionInfo(info);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException if the class has already been visited
+     * with a different name or probe count.
+     */
+    @Override
+    public synchronized void visitClassExecution(ExecutionData data) {
+        probeStore.visitClassExecution(data);
+    }
+
+    /**
+     * Merges a complete execution data block, as framed by
+     * {@link ExecutionDataBlocks}, into this aggregate without decoding it
+     * into an {@link ExecutionData}.
+     *
+     * @throws IOException if the class name can not be decoded.
+     * @throws IllegalStateException if the class has already been visited
+     * with a different name or probe count.
+     */
+    synchronized void mergeBlock(byte[] buffer, int offset) throws IOException {
+        probeStore.mergeBlock(buffer, offset);
+    }
+
+    /**
+     * Writes all session infos, followed by all execution data in ascending
+     * class id order, in the format written by {@link ExecutionDataWriter}.
+     * The probes are encoded straight from their bitsets.
+     *
+     * @param output the stream to write to.
+     * @throws IOException if the data can not be written.
+     * @since 1.2
+     */
+    @Override
+    public synchronized void write(OutputStream output) throws IOException {
+        // writes the header straight to output
+        ExecutionDataWriter writer = new ExecutionDataWriter(output);
+        sessionInfoStore.accept(writer);
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        probeStore.writeBlocks(dataOutput);
+        dataOutput.flush();
+    }
+
+    /**
+     * Visits all session infos, followed by all execution data, contained in
+     * this aggregate.  Execution data is visited in ascending class id order,
+     * so the output does not depend on the order in which data was merged.
+     *
+     * @param sessionInfoVisitor the visitor for session infos.
+     * @param executionDataVisitor the visitor for execution data.
+     */
+    public synchronized void accept(ISessionInfoVisitor sessionInfoVisitor, IExecutionDataVisitor executionDataVisitor) {
+        sessionInfoStore.accept(sessionInfoVisitor);
+        probeStore.accept(executionDataVisitor);
+    }
+
+    /**
+     * Merges all session infos and execution data of other into this
+     * aggregate.  Both aggregates are locked while merging, so other must not
+     * concurrently be merged with this aggregate in the opposite direction.
+     *
+     * @param other the {@link ExecutionDataAggregate} to merge.
+     */
+    public void merge(ExecutionDataAggregate other) {
+        synchronized (other) {
+            synchronized (this) {
+                other.sessionInfoStore.accept(sessionInfoStore);
+                probeStore.merge(other.probeStore);
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct classes in this aggregate.
+     */
+    @Override
+    public synchronized int getClassCount() {
+        return probeStore.size();
+    }
+
+    /**
+     * @return whether neither session infos nor execution data have been
+     * visited yet.
+     */
+    public synchronized boolean isEmpty() {
+        return sessionInfoStore.isEmpty() && probeStore.size() == 0;
+    }
+}
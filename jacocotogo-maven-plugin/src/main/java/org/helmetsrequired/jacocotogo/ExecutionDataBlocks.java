@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.SessionInfo;
+import org.jacoco.core.runtime.RemoteControlWriter;
+
+/**
+ * Splits JaCoCo execution data, in the block format written by
+ * {@link ExecutionDataWriter} and {@link RemoteControlWriter}, into complete
+ * blocks without consuming any input, so data arriving in arbitrary chunks
+ * can be framed incrementally and blocks can be copied or decoded
+ * individually.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class ExecutionDataBlocks {
+
+    /**
+     * The length of a header block.
+     */
+    static final int HEADER_LENGTH = 5;
+
+    /**
+     * The length of the largest valid block, an execution data block with
+     * the longest class name and {@link Integer#MAX_VALUE} probes.
+     */
+    static final int MAX_BLOCK_LENGTH = 1 + 8 + 2 + 0xFFFF + 5 + (int) ((Integer.MAX_VALUE + 7L) >>> 3);
+
+    private ExecutionDataBlocks() {
+    }
+
+    /**
+     * Determines the length of the block starting at offset.
+     *
+     * @param buffer the buffer holding the data.
+     * @param offset the offset of the block type.
+     * @param end the end of the data in buffer.
+     * @return the length of the block, including its type, or -1 if buffer
+     * does not hold the complete block yet.
+     * @throws IOException if the block type is unknown, or the probe count
+     * is invalid.
+     */
+    static int blockLength(byte[] buffer, int offset, int end) throws IOException {
+        if (offset >= end) {
+            return -1;
+        }
+        int position = offset + 1;
+        switch (buffer[offset]) {
+            case ExecutionDataWriter.BLOCK_HEADER:
+                return available(HEADER_LENGTH, offset, end);
+            case ExecutionDataWriter.BLOCK_SESSIONINFO:
+                // id, start and dump timestamps
+                if (position + 2 > end) {
+                    return -1;
+                }
+                return available(1 + 2 + readUnsignedShort(buffer, position) + 8 + 8, offset, end);
+            case ExecutionDataWriter.BLOCK_EXECUTIONDATA:
+                // id, name and probes
+                position += 8;
+                if (position + 2 > end) {
+                    return -1;
+                }
+                position += 2 + readUnsignedShort(buffer, position);
+                int probeCount = 0;
+                int shift = 0;
+                int b;
+                do {
+                    if (position >= end) {
+                        return -1;
+                    }
+                    if (shift > 28) {
+                        throw new IOException("Invalid probe count.");
+                    }
+                    b = buffer[position++];
+                    probeCount |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                if (probeCount < 0) {
+                    throw new IOException("Invalid probe count.");
+                }
+                long blockEnd = position + ((probeCount + 7L) >>> 3);
+                return blockEnd <= end ? (int) (blockEnd - offset) : -1;
+            case RemoteControlWriter.BLOCK_CMDOK:
+                return 1;
+            case RemoteControlWriter.BLOCK_CMDDUMP:
+                // dump and reset flags
+                return available(3, offset, end);
+            default:
+                throw new IOException(String.format("Unknown block type %x.", Byte.valueOf(buffer[offset])));
+        }
+    }
+
+    /**
+     * Counts the execution data blocks, that is the classes, in buffer.  The
+     * count is only used for metrics, so counting stops at an unknown block
+     * type instead of failing.
+     */
+    static int countExecutionData(byte[] buffer) {
+        int count = 0;
+        int offset = 0;
+        int length;
+        try {
+            while ((length = blockLength(buffer, offset, buffer.length)) > 0) {
+                if (buffer[offset] == ExecutionDataWriter.BLOCK_EXECUTIONDATA) {
+                    count++;
+                }
+                offset += length;
+            }
+        } catch (IOException ex) {
+            // unknown block type, count the classes before it
+        }
+        return count;
+    }
+
+    /**
+     * Copies the blocks of buffer whose classes filter keeps, together with
+     * all header and session info blocks, without decoding the probes.
+     *
+     * @return the filtered data, or buffer itself if filter keeps all
+     * classes.
+     * @throws IOException if buffer holds an unknown block type.
+     */
+    static byte[] filter(byte[] buffer, ClassFilter filter) throws IOException {
+        if (filter.isAll()) {
+            return buffer;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.min(buffer.length, 64 * 1024));
+        int offset = 0;
+        int length;
+        while ((length = blockLength(buffer, offset, buffer.length)) > 0) {
+            if (buffer[offset] != ExecutionDataWriter.BLOCK_EXECUTIONDATA || filter.accepts(readClassName(buffer, offset))) {
+                output.write(buffer, offset, length);
+            }
+            offset += length;
+        }
+        return output.toByteArray();
+    }
+
+    private static int available(int length, int offset, int end) {
+        return offset + length <= end ? length : -1;
+    }
+
+    private static int readUnsignedShort(byte[] buffer, int position) {
+        return ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+    }
+
+    /**
+     * Verifies a header block.
+     *
+     * @throws IOException if the block is not a header of a supported
+     * version.
+     */
+    static void checkHeader(byte[] buffer, int offset) throws IOException {
+        if (buffer[offset] != ExecutionDataWriter.BLOCK_HEADER || (char) readUnsignedShort(buffer, offset + 1) != ExecutionDataWriter.MAGIC_NUMBER) {
+            throw new IOException("Invalid execution data file.");
+        }
+        char version = (char) readUnsignedShort(buffer, offset + 3);
+        if (version != ExecutionDataWriter.FORMAT_VERSION) {
+            throw new IOException(String.format("Incompatible version %x.", Integer.valueOf(version)));
+        }
+    }
+
+    /**
+     * Decodes a complete session info block.
+     */
+    static SessionInfo readSessionInfo(byte[] buffer, int offset, int length) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer, offset + 1, length - 1));
+        String id = input.readUTF();
+        long start = input.readLong();
+        long dump = input.readLong();
+        return new SessionInfo(id, start, dump);
+    }
+
+    /**
+     * Decodes only the class id of a complete execution data block.
+     */
+    static long readClassId(byte[] buffer, int offset) {
+        long id = 0;
+        for (int i = 1; i <= 8; i++) {
+            id = (id << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return id;
+    }
+
+    /**
+     * Decodes only the class name of a complete execution data block.
+     */
+    static String readClassName(byte[] buffer, int offset) throws IOException {
+        // skip the block type and the class id
+        int position = offset + 1 + 8;
+        int length = readUnsignedShort(buffer, position);
+        return new DataInputStream(new ByteArrayInputStream(buffer, position, 2 + length)).readUTF();
+    }
+
+    /**
+     * Compares the class name of a complete execution data block to name
+     * without decoding it, unless it contains characters outside of ASCII.
+     */
+    static boolean classNameEquals(byte[] buffer, int offset, String name) throws IOException {
+        int position = offset + 1 + 8;
+        int length = readUnsignedShort(buffer, position);
+        position += 2;
+        if (length != name.length()) {
+            // modified UTF-8 only has one byte per character for ASCII
+            return length > name.length() && readClassName(buffer, offset).equals(name);
+        }
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c == 0 || c > 0x7F) {
+                return readClassName(buffer, offset).equals(name);
+            }
+            if (buffer[position + i] != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the offset of the packed probes of a complete execution data
+     * block.
+     */
+    static int probesOffset(byte[] buffer, int offset) {
+        int position = offset + 1 + 8;
+        position += 2 + readUnsignedShort(buffer, position);
+        while ((buffer[position++] & 0x80) != 0) {
+            // skip the probe count
+        }
+        return position;
+    }
+
+    /**
+     * Decodes only the probe count of a complete execution data block.
+     */
+    static int readProbeCount(byte[] buffer, int offset) {
+        int position = offset + 1 + 8;
+        position += 2 + readUnsignedShort(buffer, position);
+        int probeCount = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buffer[position++];
+            probeCount |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return probeCount;
+    }
+
+    /**
+     * Encodes an execution data block straight from probes packed 64 to a
+     * word, as kept by {@link ProbeBitsetStore}, without creating an
+     * {@link ExecutionData}.  The output is identical to that of
+     * {@link ExecutionDataWriter}.
+     */
+    static void writeExecutionData(DataOutputStream output, long id, String name, long[] bits, int probeCount) throws IOException {
+        output.writeByte(ExecutionDataWriter.BLOCK_EXECUTIONDATA);
+        output.writeLong(id);
+        output.writeUTF(name);
+        int value = probeCount;
+        while ((value & ~0x7F) != 0) {
+            output.writeByte(0x80 | (value & 0x7F));
+            value >>>= 7;
+        }
+        output.writeByte(value);
+        int byteCount = (probeCount + 7) >>> 3;
+        for (int i = 0; i < byteCount; i++) {
+            int b = (int) (bits[i >>> 3] >>> ((i & 7) << 3)) & 0xFF;
+            if (i == byteCount - 1 && (probeCount & 7) != 0) {
+                // ignore any bits beyond the last probe
+                b &= (1 << (probeCount & 7)) - 1;
+            }
+            output.write(b);
+        }
+    }
+
+    /**
+     * Decodes a complete execution data block.
+     */
+    static ExecutionData readExecutionData(byte[] buffer, int offset, int length) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer, offset + 1, length - 1));
+        long id = input.readLong();
+        String name = input.readUTF();
+        int probeCount = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = input.readByte();
+            probeCount |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        boolean[] probes = new boolean[probeCount];
+        int bits = 0;
+        for (int i = 0; i < probeCount; i++) {
+            if ((i & 7) == 0) {
+                bits = input.readUnsignedByte();
+            }
+            probes[i] = (bits & 1) != 0;
+            bits >>>= 1;
+        }
+        return new ExecutionData(id, name, probes);
+    }
+}
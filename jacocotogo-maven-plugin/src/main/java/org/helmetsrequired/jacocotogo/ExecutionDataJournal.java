@@ -0,0 +1,398 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only journal of JaCoCo execution data, kept in a directory.
+ *
+ * Each fetched dump is appended to 'journal.exec' as a segment.  Since
+ * JaCoCo execution data files may be concatenated, the journal is itself a
+ * valid execution data file.  The committed length of the journal is
+ * recorded in 'journal.idx' after every append, so a segment torn by a crash
+ * is cut off when the journal is next opened.  A journal without an index is
+ * taken to be complete, as the index is only deleted ahead of a compaction.
+ *
+ * Once the journal grows beyond the compaction threshold it is renamed to
+ * 'compacting.exec' and a background thread folds it into 'base.exec', while
+ * new segments go to a fresh journal.  Appends therefore only cost the size
+ * of the appended delta, and reads only have to merge the compacted base with
+ * a bounded journal.  Merging coverage is idempotent, so a compaction which
+ * was interrupted is simply repeated when the journal is opened again.
+ *
+ * @author Matthew C. Jenkins
+ * @since 1.2
+ */
+public class ExecutionDataJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExecutionDataJournal.class);
+    private static final String BASE_FILE_NAME = "base.exec";
+    private static final String JOURNAL_FILE_NAME = "journal.exec";
+    private static final String INDEX_FILE_NAME = "journal.idx";
+    private static final String COMPACTING_FILE_NAME = "compacting.exec";
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+    /**
+     * The default journal size, in bytes, which triggers a compaction.
+     */
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 64L * 1024 * 1024;
+
+    private final File directory;
+    private final File baseFile;
+    private final File journalFile;
+    private final File indexFile;
+    private final File compactingFile;
+    private final long compactionThreshold;
+    private final Object appendLock = new Object();
+    private final ReadWriteLock filesLock = new ReentrantReadWriteLock();
+    private final ExecutorService compactor;
+    private Future<?> compaction;
+    private FileChannel journal;
+    private RandomAccessFile index;
+    private volatile long committedLength;
+
+    /**
+     * Opens the journal in directory, creating it if necessary, and recovers
+     * from an interrupted append or compaction.
+     *
+     * @param directory the directory holding the journal files.
+     * @param compactionThreshold the journal size, in bytes, which triggers a
+     * compaction.
+     * @throws IOException if the journal can not be opened.
+     */
+    public ExecutionDataJournal(File directory, long compactionThreshold) throws IOException {
+        if (compactionThreshold < 1) {
+            throw new IllegalArgumentException("Invalid compaction threshold: '" + compactionThreshold + "'");
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory: '" + directory.getAbsolutePath() + "'");
+        }
+        this.directory = directory;
+        this.baseFile = new File(directory, BASE_FILE_NAME);
+        this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+        this.indexFile = new File(directory, INDEX_FILE_NAME);
+        this.compactingFile = new File(directory, COMPACTING_FILE_NAME);
+        this.compactionThreshold = compactionThreshold;
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jacocotogo-journal-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (compactingFile.exists()) {
+            logger.info("Resuming interrupted compaction in: '{}'", directory.getAbsolutePath());
+            try {
+                compact();
+            } catch (JaCoCoToGoException ex) {
+                throw new IOException("Unable to resume compaction in: '" + directory.getAbsolutePath() + "'", ex);
+            }
+        }
+        openJournal();
+    }
+
+    private void openJournal() throws IOException {
+        // the index is only ever missing next to a journal which was fully
+        // committed when the index was deleted ahead of a compaction
+        boolean indexed = indexFile.exists();
+        index = new RandomAccessFile(indexFile, "rw");
+        journal = new RandomAccessFile(journalFile, "rw").getChannel();
+        long size = journal.size();
+        if (!indexed) {
+            committedLength = size;
+        } else {
+            committedLength = index.length() >= 8 ? index.readLong() : 0;
+        }
+        if (size > committedLength) {
+            logger.warn("Discarding {} bytes of incomplete journal segment in: '{}'", size - committedLength, directory.getAbsolutePath());
+            journal.truncate(committedLength);
+        } else if (size < committedLength) {
+            // appending at the recorded length would leave a hole
+            logger.warn("Journal index in '{}' records {} bytes, but the journal only holds {}, resetting the index", directory.getAbsolutePath(), committedLength, size);
+            committedLength = size;
+            writeIndex();
+        } else if (!indexed) {
+            writeIndex();
+        }
+        journal.position(committedLength);
+    }
+
+    /**
+     * Appends a dump, in JaCoCo execution data format, as a new segment.
+     *
+     * @param executionData the dump to append.
+     * @throws IOException if the segment can not be written.
+     */
+    public void append(byte[] executionData) throws IOException {
+        synchronized (appendLock) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(executionData);
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer);
+                }
+            } catch (IOException ex) {
+                rollback();
+                throw ex;
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Appends the contents of segmentFile, in JaCoCo execution data format, as
+     * a new segment and deletes segmentFile.
+     *
+     * @param segmentFile a file created in the location given by
+     * {@link #newSegmentFile()}.
+     * @throws IOException if the segment can not be written.
+     */
+    public void append(File segmentFile) throws IOException {
+        synchronized (appendLock) {
+            FileChannel segment = new FileInputStream(segmentFile).getChannel();
+            try {
+                long size = segment.size();
+                long position = 0;
+                while (position < size) {
+                    position += segment.transferTo(position, size - position, journal);
+                }
+            } catch (IOException ex) {
+                rollback();
+                throw ex;
+            } finally {
+                segment.close();
+            }
+            commit();
+        }
+        if (!segmentFile.delete()) {
+            logger.warn("Unable to delete segment file: '{}'", segmentFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return a new, not yet existing, file in the journal directory where a
+     * segment can be written before it is passed to {@link #append(File)}.
+     */
+    public File newSegmentFile() {
+        return new File(directory, SEGMENT_FILE_PREFIX + System.nanoTime() + "-" + Thread.currentThread().getId() + ".exec");
+    }
+
+    /**
+     * Cuts off a partially appended segment.
+     */
+    private void rollback() {
+        try {
+            journal.truncate(committedLength);
+            journal.position(committedLength);
+        } catch (IOException ex) {
+            logger.warn("Unable to truncate journal, the incomplete segment will be discarded when the journal is next opened.");
+        }
+    }
+
+    private void commit() throws IOException {
+        journal.force(false);
+        committedLength = journal.position();
+        writeIndex();
+        if (committedLength >= compactionThreshold) {
+            scheduleCompaction();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        index.seek(0);
+        index.writeLong(committedLength);
+        index.getFD().sync();
+    }
+
+    private void scheduleCompaction() throws IOException {
+        if (compaction != null && !compaction.isDone()) {
+            return;
+        }
+        filesLock.writeLock().lock();
+        try {
+            if (compactingFile.exists()) {
+                // the previous compaction failed, let the next one pick it up
+                return;
+            }
+            journal.close();
+            index.close();
+            // delete the index first, a stale one next to the fresh journal
+            // would make the next append leave a hole in it after a crash
+            if (!indexFile.delete()) {
+                openJournal();
+                throw new IOException("Unable to delete '" + indexFile.getAbsolutePath() + "'");
+            }
+            if (!journalFile.renameTo(compactingFile)) {
+                openJournal();
+                throw new IOException("Unable to rename '" + journalFile.getAbsolutePath() + "' to '" + compactingFile.getAbsolutePath() + "'");
+            }
+            openJournal();
+        } finally {
+            filesLock.writeLock().unlock();
+        }
+        compaction = compactor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (RuntimeException ex) {
+                    logger.warn("Journal compaction failed, it will be retried when the journal is next opened.", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Folds 'compacting.exec' into 'base.exec'.
+     */
+    private void compact() {
+        logger.debug("Compacting journal in: '{}'", directory.getAbsolutePath());
+        ExecutionDataAggregate aggregate = new ExecutionDataAggregate();
+        if (baseFile.exists()) {
+            JaCoCoToGo.loadJaCoCoData(baseFile, aggregate);
+        }
+        JaCoCoToGo.loadJaCoCoData(compactingFile, aggregate);
+        File tempFile = new File(directory, BASE_FILE_NAME + ".tmp");
+        JaCoCoToGo.writeJaCoCoData(aggregate, tempFile);
+        filesLock.writeLock().lock();
+        try {
+            Files.move(tempFile.toPath(), baseFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (!compactingFile.delete()) {
+                logger.warn("Unable to delete '{}'", compactingFile.getAbsolutePath());
+            }
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Unable to replace '" + baseFile.getAbsolutePath() + "'", ex);
+        } finally {
+            filesLock.writeLock().unlock();
+            if (tempFile.exists() && !tempFile.delete()) {
+                logger.warn("Unable to delete temporary file: '{}'", tempFile.getAbsolutePath());
+            }
+        }
+        logger.debug("Compacted journal into {} classes", aggregate.getClassCount());
+    }
+
+    /**
+     * Merges the compacted base and all committed segments into aggregate.
+     *
+     * @param aggregate the {@link ExecutionDataAggregate} to merge into.
+     * @throws IOException if the journal can not be read.
+     */
+    public void load(ExecutionDataAggregate aggregate) throws IOException {
+        filesLock.readLock().lock();
+        try {
+            if (baseFile.exists()) {
+                JaCoCoToGo.loadJaCoCoData(baseFile, aggregate);
+            }
+            if (compactingFile.exists()) {
+                JaCoCoToGo.loadJaCoCoData(compactingFile, aggregate);
+            }
+            // the journal can not be replaced while the read lock is held
+            long length = committedLength;
+            if (length > 0) {
+                BlockReader reader = new BlockReader(new BoundedInputStream(new FileInputStream(journalFile), length), BufferPool.getShared());
+                try {
+                    JaCoCoToGo.readJaCoCoData(reader, aggregate);
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            filesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits for a running compaction and closes the journal.
+     *
+     * @throws IOException if the journal can not be closed.
+     */
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            while (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for journal compaction to finish");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            journal.close();
+            index.close();
+        }
+    }
+
+    /**
+     * Limits the number of bytes read from a stream, so reads stop at the
+     * committed length of the journal.
+     */
+    private static class BoundedInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataReader;
+import org.jacoco.core.data.IExecutionDataVisitor;
+import org.jacoco.core.data.SessionInfoStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges JaCoCo execution data files within a fixed heap budget.
+ *
+ * Input files are streamed into an in-memory {@link ProbeBitsetStore} which
+ * is spilled to a temporary run file, sorted by class id, whenever its
+ * estimated size exceeds the budget.  The runs are then combined with a k-way merge, in
+ * several passes if there are more runs than can be read at once within the
+ * budget.  Session infos are kept in memory, as they are small compared to
+ * the execution data.
+ *
+ * The merged file is identical to the one written by
+ * {@link JaCoCoToGo#mergeJaCoCoData(java.util.List, java.io.File)}.
+ *
+ * @author Matthew C. Jenkins
+ */
+class ExternalMerge {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExternalMerge.class);
+    private static final int MIN_FAN_IN = 2;
+
+    private final long heapBudget;
+    private final File tempDir;
+    private final int fanIn;
+    private final List<File> runs = new ArrayList<File>();
+    private final SessionInfoStore sessionInfoStore = new SessionInfoStore();
+    private final ProbeBitsetStore store = new ProbeBitsetStore();
+    private int runCounter;
+
+    /**
+     * @param heapBudget the approximate number of bytes of heap to use for
+     * execution data while merging.
+     * @param tempDir the directory where temporary run files are written.
+     */
+    ExternalMerge(long heapBudget, File tempDir) {
+        if (heapBudget < 1) {
+            throw new IllegalArgumentException("Invalid heap budget: '" + heapBudget + "'");
+        }
+        this.heapBudget = heapBudget;
+        this.tempDir = tempDir;
+        this.fanIn = (int) Math.max(MIN_FAN_IN, Math.min(Integer.MAX_VALUE, heapBudget / (2 * BufferPool.getShared().getBufferSize())));
+    }
+
+    /**
+     * Merges inputFiles into output.
+     *
+     * @param inputFiles the JaCoCo execution data files to merge.
+     * @param output the {@link MergeOutput} the merged data is written to,
+     * the caller is responsible for finishing it.
+     * @throws IOException if an input can not be read or the output can not be
+     * written.
+     */
+    void merge(List<File> inputFiles, MergeOutput output) throws IOException {
+        try {
+            for (File inputFile : inputFiles) {
+                load(inputFile);
+            }
+            spill();
+            while (runs.size() > fanIn) {
+                mergePass();
+            }
+            logger.debug("Merging {} sorted runs", runs.size());
+            sessionInfoStore.accept(output);
+            mergeRuns(runs, output);
+        } finally {
+            for (File run : runs) {
+                deleteRun(run);
+            }
+            runs.clear();
+        }
+    }
+
+    private void load(File inputFile) throws IOException {
+        logger.debug("Loading data from input file: '{}'", inputFile.getAbsolutePath());
+        InputStream input = BufferPool.getShared().newInputStream(new FileInputStream(inputFile));
+        try {
+            ExecutionDataReader reader = new ExecutionDataReader(input);
+            reader.setSessionInfoVisitor(sessionInfoStore);
+            reader.setExecutionDataVisitor(new IExecutionDataVisitor() {
+                @Override
+                public void visitClassExecution(ExecutionData data) {
+                    store.visitClassExecution(data);
+                    if (store.estimateSize() > heapBudget) {
+                        try {
+                            spill();
+                        } catch (IOException ex) {
+                            throw new JaCoCoToGoException("Error writing temporary merge file", ex);
+                        }
+                    }
+                }
+            });
+            reader.read();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Writes the in-memory store to a new run, sorted by class id.
+     */
+    private void spill() throws IOException {
+        if (store.size() == 0) {
+            return;
+        }
+        File run = newRun();
+        logger.debug("Spilling {} classes to '{}'", store.size(), run.getAbsolutePath());
+        RunWriter writer = new RunWriter(run);
+        try {
+            store.accept(writer);
+        } finally {
+            writer.close();
+        }
+        store.clear();
+        runs.add(run);
+    }
+
+    /**
+     * Replaces the runs by fewer, larger runs, merging up to fanIn runs into
+     * each new run.
+     */
+    private void mergePass() throws IOException {
+        logger.debug("Reducing {} runs with fan-in {}", runs.size(), fanIn);
+        List<File> merged = new ArrayList<File>();
+        try {
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<File> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+                File run = newRun();
+                merged.add(run);
+                RunWriter writer = new RunWriter(run);
+                try {
+                    mergeRuns(group, writer);
+                } finally {
+                    writer.close();
+                }
+            }
+        } catch (IOException ex) {
+            for (File run : merged) {
+                deleteRun(run);
+            }
+            throw ex;
+        }
+        for (File run : runs) {
+            deleteRun(run);
+        }
+        runs.clear();
+        runs.addAll(merged);
+    }
+
+    /**
+     * Performs a k-way merge of the given runs, visiting the execution data of
+     * each class exactly once in ascending class id order.  Every reader
+     * opened is closed at the end, whether or not the merge got through it.
+     */
+    private static void mergeRuns(List<File> group, IExecutionDataVisitor visitor) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, group.size()), new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader o1, RunReader o2) {
+                return compareIds(o1.current.getId(), o2.current.getId());
+            }
+        });
+        List<RunReader> readers = new ArrayList<RunReader>(group.size());
+        try {
+            for (File run : group) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                advance(reader, queue);
+            }
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                ExecutionData data = reader.current;
+                advance(reader, queue);
+                while (!queue.isEmpty() && queue.peek().current.getId() == data.getId()) {
+                    RunReader other = queue.poll();
+                    data.merge(other.current);
+                    advance(other, queue);
+                }
+                visitor.visitClassExecution(data);
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void advance(RunReader reader, PriorityQueue<RunReader> queue) throws IOException {
+        if (reader.next()) {
+            queue.add(reader);
+        }
+    }
+
+    private static int compareIds(long id1, long id2) {
+        return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+    }
+
+    private File newRun() throws IOException {
+        return File.createTempFile("run" + (++runCounter) + "-", ".tmp", tempDir);
+    }
+
+    private static void deleteRun(File run) {
+        if (run.exists() && !run.delete()) {
+            logger.warn("Unable to delete temporary file: '{}'", run.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Writes execution data to a run file.  Probes are stored as a count
+     * followed by the probes packed into bytes.
+     */
+    private static class RunWriter implements IExecutionDataVisitor {
+
+        private final DataOutputStream out;
+
+        RunWriter(File run) throws IOException {
+            out = new DataOutputStream(BufferPool.getShared().newOutputStream(new FileOutputStream(run)));
+        }
+
+        @Override
+        public void visitClassExecution(ExecutionData data) {
+            try {
+                boolean[] probes = data.getProbes();
+                out.writeLong(data.getId());
+                out.writeUTF(data.getName());
+                out.writeInt(probes.length);
+                int buffer = 0;
+                for (int i = 0; i < probes.length; i++) {
+                    if (probes[i]) {
+                        buffer |= 1 << (i & 7);
+                    }
+                    if ((i & 7) == 7) {
+                        out.writeByte(buffer);
+                        buffer = 0;
+                    }
+                }
+                if ((probes.length & 7) != 0) {
+                    out.writeByte(buffer);
+                }
+            } catch (IOException ex) {
+                throw new JaCoCoToGoException("Error writing temporary merge file", ex);
+            }
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads execution data back from a run file, one class at a time.
+     */
+    private static class RunReader {
+
+        private final DataInputStream in;
+        private ExecutionData current;
+
+        RunReader(File run) throws IOException {
+            in = new DataInputStream(BufferPool.getShared().newInputStream(new FileInputStream(run)));
+        }
+
+        boolean next() throws IOException {
+            long id;
+            try {
+                id = in.readLong();
+            } catch (EOFException ex) {
+                current = null;
+                return false;
+            }
+            String name = in.readUTF();
+            boolean[] probes = new boolean[in.readInt()];
+            int buffer = 0;
+            for (int i = 0; i < probes.length; i++) {
+                if ((i & 7) == 0) {
+                    buffer = in.readUnsignedByte();
+                }
+                probes[i] = (buffer & (1 << (i & 7))) != 0;
+            }
+            current = new ExecutionData(id, name, probes);
+            return true;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                // bummer
+            }
+        }
+    }
+}
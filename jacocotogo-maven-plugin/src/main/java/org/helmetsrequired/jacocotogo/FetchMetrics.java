@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+/**
+ * The time spent in each phase of a fetch, and the amount of data fetched.
+ *
+ * A dump received over TCP is decoded and written while it streams in, so
+ * for TCP fetches the dump phase includes decoding and writing, and the
+ * write phase only covers moving the result into place.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class FetchMetrics {
+
+    /**
+     * The phases of a fetch.
+     */
+    enum Phase {
+
+        DNS, CONNECT, DUMP, DECODE, WRITE
+    }
+
+    private final long[] nanos = new long[Phase.values().length];
+    private long bytes;
+    private int classes;
+    private int attempts = 1;
+    private boolean dumpRequested;
+
+    /**
+     * Adds the time since startNanos, as returned by
+     * {@link System#nanoTime()}, to phase.
+     */
+    void record(Phase phase, long startNanos) {
+        add(phase, System.nanoTime() - startNanos);
+    }
+
+    void add(Phase phase, long elapsedNanos) {
+        nanos[phase.ordinal()] += elapsedNanos;
+    }
+
+    long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    void addBytes(long count) {
+        bytes += count;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    void addClasses(int count) {
+        classes += count;
+    }
+
+    int getClasses() {
+        return classes;
+    }
+
+    /**
+     * Records that the dump has been requested, after which a source which
+     * is reset after fetching may have lost its data already.
+     */
+    void setDumpRequested() {
+        dumpRequested = true;
+    }
+
+    boolean isDumpRequested() {
+        return dumpRequested;
+    }
+
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+}
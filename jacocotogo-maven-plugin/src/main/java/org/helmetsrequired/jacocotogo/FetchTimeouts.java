@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connect and read timeouts and the absolute deadline of a fetch.  A
+ * value of 0 means no limit.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class FetchTimeouts {
+
+    /**
+     * No timeouts and no deadline.
+     */
+    static final FetchTimeouts NONE = new FetchTimeouts(0, 0, 0);
+
+    private static ScheduledExecutorService watchdog;
+
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final long deadline;
+
+    /**
+     * @param connectTimeoutMillis the connect timeout.
+     * @param readTimeoutMillis the read timeout.
+     * @param deadline the time, as returned by
+     * {@link System#currentTimeMillis()}, by which the fetch must be done.
+     */
+    FetchTimeouts(long connectTimeoutMillis, long readTimeoutMillis, long deadline) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the timeouts configured for source, with the deadline starting
+     * now.
+     */
+    static FetchTimeouts forSource(Source source) {
+        long deadline = source.getTimeout() > 0 ? System.currentTimeMillis() + source.getTimeout() : 0;
+        return new FetchTimeouts(source.getConnectTimeout(), source.getReadTimeout(), deadline);
+    }
+
+    /**
+     * @return whether the deadline has passed.
+     */
+    boolean isExpired() {
+        return deadline != 0 && System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * @return the milliseconds left until the deadline, at least 1, or 0 if
+     * there is no deadline.
+     */
+    long remainingMillis() {
+        if (deadline == 0) {
+            return 0;
+        }
+        return Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * @return the connect timeout, shortened to the time left until the
+     * deadline, or 0 for no limit.
+     */
+    int connectTimeout() {
+        return (int) Math.min(Integer.MAX_VALUE, shortest(connectTimeoutMillis, remainingMillis()));
+    }
+
+    /**
+     * @return the read timeout, shortened to the time left until the
+     * deadline, or 0 for no limit.
+     */
+    int readTimeout() {
+        return (int) Math.min(Integer.MAX_VALUE, shortest(readTimeoutMillis, remainingMillis()));
+    }
+
+    long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    private static long shortest(long timeout1, long timeout2) {
+        if (timeout1 == 0) {
+            return timeout2;
+        }
+        if (timeout2 == 0) {
+            return timeout1;
+        }
+        return Math.min(timeout1, timeout2);
+    }
+
+    /**
+     * Closes resource once the deadline passes, aborting blocked I/O.
+     *
+     * @return the scheduled close, to be cancelled once the fetch is done, or
+     * null if there is no deadline.
+     */
+    ScheduledFuture<?> closeAtDeadline(final Closeable resource) {
+        if (deadline == 0) {
+            return null;
+        }
+        return getWatchdog().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    resource.close();
+                } catch (IOException ex) {
+                    // bummer
+                }
+            }
+        }, remainingMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getWatchdog() {
+        if (watchdog == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jacocotogo-deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // most fetches finish well before their deadline
+            executor.setRemoveOnCancelPolicy(true);
+            watchdog = executor;
+        }
+        return watchdog;
+    }
+}
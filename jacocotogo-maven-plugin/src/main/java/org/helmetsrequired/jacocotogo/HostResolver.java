@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves hostnames, caching the result for a fixed time so that sources
+ * sharing a host resolve it only once.
+ *
+ * Failed lookups are cached like successful ones, so an unknown host is not
+ * looked up again by every source that names it.  Concurrent lookups of the
+ * same host wait for a single lookup.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class HostResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(HostResolver.class);
+
+    /**
+     * A resolver which does not cache, every call resolves the hostname.
+     */
+    static final HostResolver NONE = new HostResolver(0);
+
+    private final long ttlMillis;
+    private final ConcurrentMap<String, Lookup> lookups = new ConcurrentHashMap<String, Lookup>();
+
+    /**
+     * @param ttlMillis the time a result is cached for, 0 disables caching.
+     */
+    HostResolver(long ttlMillis) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("Invalid DNS cache TTL: '" + ttlMillis + "'");
+        }
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Resolves hostname, or returns the cached result of an earlier lookup.
+     *
+     * @throws UnknownHostException if hostname can not be resolved.
+     */
+    InetAddress resolve(String hostname) throws UnknownHostException {
+        if (ttlMillis == 0) {
+            return InetAddress.getByName(hostname);
+        }
+        String key = hostname.toLowerCase(Locale.ROOT);
+        while (true) {
+            Lookup lookup = lookups.get(key);
+            if (lookup == null || lookup.isExpired()) {
+                Lookup fresh = new Lookup(hostname);
+                boolean installed = lookup == null ? lookups.putIfAbsent(key, fresh) == null : lookups.replace(key, lookup, fresh);
+                if (!installed) {
+                    // another thread started a lookup first, wait for that one
+                    continue;
+                }
+                logger.debug("Resolving hostname: '{}'", hostname);
+                fresh.run();
+                lookup = fresh;
+            }
+            return lookup.getAddress();
+        }
+    }
+
+    /**
+     * A single lookup of a hostname, whose result expires ttlMillis after it
+     * completed.
+     */
+    private class Lookup extends FutureTask<InetAddress> {
+
+        private final String hostname;
+        private volatile long expires = Long.MAX_VALUE;
+
+        Lookup(final String hostname) {
+            super(new Callable<InetAddress>() {
+                @Override
+                public InetAddress call() throws UnknownHostException {
+                    return InetAddress.getByName(hostname);
+                }
+            });
+            this.hostname = hostname;
+        }
+
+        @Override
+        protected void done() {
+            expires = System.currentTimeMillis() + ttlMillis;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+
+        InetAddress getAddress() throws UnknownHostException {
+            try {
+                return get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                UnknownHostException unknown = new UnknownHostException("Interrupted while resolving hostname: '" + hostname + "'");
+                unknown.initCause(ex);
+                throw unknown;
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof UnknownHostException) {
+                    throw (UnknownHostException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new JaCoCoToGoException("Error resolving hostname: '" + hostname + "'", cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.IExecutionDataVisitor;
+import org.jacoco.core.data.ISessionInfoVisitor;
+import org.jacoco.core.data.SessionInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges new execution data into an existing merged file.
+ *
+ * The existing file is streamed block by block into a temporary file next to
+ * it.  Only the blocks of classes contained in the new data are decoded, and
+ * only those whose coverage actually grows are re-encoded; all other blocks
+ * are copied as they are.  Classes which are not contained in the file yet
+ * are inserted in ascending class id order, and new session infos are added
+ * after the existing ones, so accumulating into a file written by this
+ * plugin gives the same classes and probes as merging all data at once.
+ *
+ * Files written by other tools, such as jacocotogo 1.1 or jacoco:merge, need
+ * not be sorted by class id.  If a class id does not ascend while copying,
+ * the existing file is loaded and written sorted to another temporary file
+ * first, and the merge is repeated from there.
+ *
+ * If the new data adds neither classes nor covered probes, the temporary
+ * file is discarded and the existing file, including its session infos, is
+ * left untouched.  Otherwise the temporary file is synced and moved over the
+ * existing file atomically, so the merged file is never left half written.
+ *
+ * @author Matthew C. Jenkins
+ */
+class IncrementalMerge {
+
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalMerge.class);
+
+    private final File mergeFile;
+    private final TreeMap<Long, ExecutionData> pending = new TreeMap<Long, ExecutionData>();
+    private final List<SessionInfo> sessionInfos = new ArrayList<SessionInfo>();
+    private final Set<String> existingSessionInfos = new HashSet<String>();
+    private ExecutionDataWriter writer;
+    private OutputStream output;
+    private boolean sessionInfosWritten;
+    private boolean copiedClasses;
+    private long lastId;
+    private int classCount;
+    private int addedClasses;
+    private int changedClasses;
+
+    /**
+     * @param mergeFile the merged file to accumulate into, which need not
+     * exist yet.
+     */
+    IncrementalMerge(File mergeFile) {
+        this.mergeFile = mergeFile;
+    }
+
+    /**
+     * Merges all data held by aggregate into the merged file.
+     *
+     * @return whether the merged file was rewritten.
+     * @throws IOException if the merged file can not be read or written.
+     * @throws IllegalStateException if a class of aggregate is contained in
+     * the merged file with a different name or probe count.
+     */
+    boolean merge(ExecutionDataAggregate aggregate) throws IOException {
+        try {
+            return merge(aggregate, mergeFile);
+        } catch (UnsortedDataException ex) {
+            logger.info("'{}' is not sorted by class id, sorting it before accumulating", mergeFile.getAbsolutePath());
+        }
+        File sortedFile = JaCoCoToGo.createTempFile(mergeFile);
+        try {
+            ExecutionDataAggregate existing = new ExecutionDataAggregate();
+            JaCoCoToGo.loadJaCoCoData(mergeFile, existing);
+            JaCoCoToGo.writeJaCoCoData(existing, sortedFile);
+            return merge(aggregate, sortedFile);
+        } finally {
+            if (sortedFile.exists() && !sortedFile.delete()) {
+                logger.warn("Unable to delete temporary file: '{}'", sortedFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Merges all data held by aggregate with the blocks of existingFile into
+     * a temporary file, which replaces the merged file if that added
+     * coverage.
+     *
+     * @throws UnsortedDataException if existingFile is not sorted by class
+     * id.
+     */
+    private boolean merge(ExecutionDataAggregate aggregate, File existingFile) throws IOException {
+        pending.clear();
+        sessionInfos.clear();
+        existingSessionInfos.clear();
+        sessionInfosWritten = false;
+        copiedClasses = false;
+        classCount = 0;
+        addedClasses = 0;
+        changedClasses = 0;
+        aggregate.accept(new ISessionInfoVisitor() {
+            @Override
+            public void visitSessionInfo(SessionInfo info) {
+                sessionInfos.add(info);
+            }
+        }, new IExecutionDataVisitor() {
+            @Override
+            public void visitClassExecution(ExecutionData data) {
+                pending.put(Long.valueOf(data.getId()), data);
+            }
+        });
+        File tempFile = JaCoCoToGo.createTempFile(mergeFile);
+        boolean replaced = false;
+        try {
+            FileOutputStream fileOutput = new FileOutputStream(tempFile);
+            output = BufferPool.getShared().newOutputStream(fileOutput);
+            try {
+                writer = new ExecutionDataWriter(output);
+                if (existingFile.exists()) {
+                    copy(existingFile);
+                }
+                writeSessionInfos();
+                writePending(null);
+                output.flush();
+                if (addedClasses + changedClasses > 0) {
+                    fileOutput.getFD().sync();
+                }
+            } finally {
+                output.close();
+            }
+            if (addedClasses + changedClasses == 0) {
+                logger.info("No new coverage, leaving '{}' unchanged", mergeFile.getAbsolutePath());
+                return false;
+            }
+            JaCoCoToGo.replaceWithTempFile(tempFile, mergeFile);
+            replaced = true;
+            logger.info("Accumulated {} new and {} changed classes into '{}'", addedClasses, changedClasses, mergeFile.getAbsolutePath());
+            return true;
+        } finally {
+            if (!replaced && tempFile.exists() && !tempFile.delete()) {
+                logger.warn("Unable to delete temporary file: '{}'", tempFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Streams the blocks of existingFile to the output, merging the pending
+     * classes into their blocks.
+     *
+     * @throws UnsortedDataException if a class id does not ascend.
+     */
+    private void copy(File existingFile) throws IOException {
+        BlockReader reader = new BlockReader(new FileInputStream(existingFile), BufferPool.getShared());
+        try {
+            // the writer has written the header already
+            reader.read(new BlockReader.BlockHandler() {
+                @Override
+                void sessionInfo(byte[] buffer, int offset, int length) throws IOException {
+                    existingSessionInfos.add(key(ExecutionDataBlocks.readSessionInfo(buffer, offset, length)));
+                    output.write(buffer, offset, length);
+                }
+
+                @Override
+                void executionData(byte[] buffer, int offset, int length) throws IOException {
+                    writeSessionInfos();
+                    long classId = ExecutionDataBlocks.readClassId(buffer, offset);
+                    if (copiedClasses && classId <= lastId) {
+                        // pending classes before it have been written already
+                        throw new UnsortedDataException();
+                    }
+                    copiedClasses = true;
+                    lastId = classId;
+                    Long id = Long.valueOf(classId);
+                    writePending(id);
+                    ExecutionData data = pending.remove(id);
+                    if (data == null || !merge(ExecutionDataBlocks.readExecutionData(buffer, offset, length), data)) {
+                        output.write(buffer, offset, length);
+                    }
+                    classCount++;
+                }
+            });
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Merges the probes of data into existing and writes existing if that
+     * added coverage.
+     *
+     * @return whether existing was written.
+     */
+    private boolean merge(ExecutionData existing, ExecutionData data) throws IOException {
+        if (!existing.getName().equals(data.getName())) {
+            throw new IllegalStateException(String.format("Different class names %s and %s for id %016x.", existing.getName(), data.getName(), Long.valueOf(data.getId())));
+        }
+        boolean[] probes = existing.getProbes();
+        boolean[] dataProbes = data.getProbes();
+        if (probes.length != dataProbes.length) {
+            throw new IllegalStateException(String.format("Incompatible execution data for class %s with id %016x.", data.getName(), Long.valueOf(data.getId())));
+        }
+        boolean changed = false;
+        for (int i = 0; i < probes.length; i++) {
+            if (dataProbes[i] && !probes[i]) {
+                probes[i] = true;
+                changed = true;
+            }
+        }
+        if (changed) {
+            writer.visitClassExecution(existing);
+            changedClasses++;
+        }
+        return changed;
+    }
+
+    /**
+     * Writes the new session infos which are not contained in the merged file
+     * yet, once all existing session infos have been copied.
+     */
+    private void writeSessionInfos() {
+        if (sessionInfosWritten) {
+            return;
+        }
+        sessionInfosWritten = true;
+        for (SessionInfo info : sessionInfos) {
+            if (!existingSessionInfos.contains(key(info))) {
+                writer.visitSessionInfo(info);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending classes ordered before id, or all of them if id is
+     * null.
+     */
+    private void writePending(Long id) {
+        Map<Long, ExecutionData> classes = id == null ? pending : pending.headMap(id);
+        Iterator<ExecutionData> iterator = classes.values().iterator();
+        while (iterator.hasNext()) {
+            writer.visitClassExecution(iterator.next());
+            iterator.remove();
+            addedClasses++;
+            classCount++;
+        }
+    }
+
+    private static String key(SessionInfo info) {
+        return info.getId() + '\0' + info.getStartTimeStamp() + '\0' + info.getDumpTimeStamp();
+    }
+
+    /**
+     * @return the number of classes in the merged file.
+     */
+    int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Thrown when the class ids of the existing file do not ascend.
+     */
+    private static class UnsortedDataException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
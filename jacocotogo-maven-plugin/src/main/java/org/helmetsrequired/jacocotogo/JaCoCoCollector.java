@@ -0,0 +1,303 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+import org.jacoco.core.data.IExecutionDataVisitor;
+import org.jacoco.core.data.ISessionInfoVisitor;
+
+/**
+ * A reusable collector of JaCoCo execution data.
+ *
+ * Unlike the static methods of {@link JaCoCoToGo}, a collector runs every
+ * operation on its own {@link Executor} and returns a
+ * {@link CompletableFuture} of the result, so fetches, merges and whatever
+ * the caller does with the results can be pipelined without blocking the
+ * calling thread.  JMX connections are cached in the collector's
+ * {@link JmxConnectionPool}, and resolved hostnames are cached for
+ * {@link #DNS_CACHE_TTL_MILLIS}, so both are shared between all operations
+ * of a collector but not with other collectors, unless they are given the
+ * same pool.
+ *
+ * Every fetch validates its {@link Source} first.  Fetches into a new
+ * aggregate or a file make up to 'retries' more attempts, as configured for
+ * the source, with a backoff of {@link #setRetryBackoff(long)} in between,
+ * and only keep the data of the attempt which succeeded.  Fetches into a
+ * caller's sink make a single attempt, as the sink sees the data as it is
+ * decoded.  All attempts are bounded by the timeouts of the source.
+ * Operations may run concurrently, so a {@link Source} must not be modified
+ * while it is fetched from.
+ *
+ * @author Matthew C. Jenkins
+ * @since 1.2
+ */
+public class JaCoCoCollector implements Closeable {
+
+    /**
+     * The time resolved hostnames are cached for.
+     */
+    public static final long DNS_CACHE_TTL_MILLIS = 30000;
+    /**
+     * The number of threads of the executor created by {@link #JaCoCoCollector()}.
+     */
+    public static final int DEFAULT_PARALLELISM = 8;
+    /**
+     * The backoff before the first retry unless set by
+     * {@link #setRetryBackoff(long)}.
+     */
+    public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 100;
+
+    private final Executor executor;
+    private final JmxConnectionPool connectionPool;
+    private final boolean ownsResources;
+    private final HostResolver resolver = new HostResolver(DNS_CACHE_TTL_MILLIS);
+    private volatile long retryBackoff = DEFAULT_RETRY_BACKOFF_MILLIS;
+    private volatile MemoryBudget budget = MemoryBudget.UNLIMITED;
+
+    /**
+     * Creates a collector with its own executor of
+     * {@link #DEFAULT_PARALLELISM} threads and its own connection pool, both
+     * of which are closed by {@link #close()}.
+     */
+    public JaCoCoCollector() {
+        this(DEFAULT_PARALLELISM, false);
+    }
+
+    /**
+     * Creates a collector with its own executor and its own connection pool,
+     * both of which are closed by {@link #close()}.
+     *
+     * @param parallelism the number of threads of the executor.
+     * @param useVirtualThreads whether the executor should run on virtual
+     * threads, if the JVM supports them.
+     */
+    public JaCoCoCollector(int parallelism, boolean useVirtualThreads) {
+        this(CollectionExecutors.newExecutor(parallelism, useVirtualThreads), new JmxConnectionPool(), true);
+    }
+
+    /**
+     * Creates a collector running its operations on executor and caching JMX
+     * connections in connectionPool.  The caller remains responsible for
+     * shutting down both.
+     *
+     * @param executor the {@link Executor} to run operations on.  An executor
+     * of virtual threads suits fetches best, as they wait on the network most
+     * of the time.
+     * @param connectionPool the {@link JmxConnectionPool} to cache JMX
+     * connections in, which may be shared between collectors.
+     */
+    public JaCoCoCollector(Executor executor, JmxConnectionPool connectionPool) {
+        this(executor, connectionPool, false);
+    }
+
+    private JaCoCoCollector(Executor executor, JmxConnectionPool connectionPool, boolean ownsResources) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        if (connectionPool == null) {
+            throw new IllegalArgumentException("connectionPool is null");
+        }
+        this.executor = executor;
+        this.connectionPool = connectionPool;
+        this.ownsResources = ownsResources;
+    }
+
+    /**
+     * Sets the backoff before the first retry of a fetch, which doubles with
+     * every further retry.  Applies to fetches started afterwards.
+     *
+     * @param retryBackoff the backoff in milliseconds.
+     */
+    public void setRetryBackoff(long retryBackoff) {
+        if (retryBackoff < 0) {
+            throw new IllegalArgumentException("Invalid retry backoff: '" + retryBackoff + "'");
+        }
+        this.retryBackoff = retryBackoff;
+    }
+
+    /**
+     * Limits the number of bytes of fetched dumps held in memory at once by
+     * fetches into a new aggregate or a file.  Every fetch reserves the size
+     * of the last dump of its source, and waits while the budget is
+     * exhausted.  Applies to fetches started afterwards.
+     *
+     * @param memoryBudget the budget in bytes, or 0 for no limit.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Invalid memory budget: '" + memoryBudget + "'");
+        }
+        this.budget = memoryBudget == 0 ? MemoryBudget.UNLIMITED : new MemoryBudget(memoryBudget, 0);
+    }
+
+    /**
+     * Fetches from source and decodes the data into a new aggregate.
+     *
+     * @param source the {@link Source} to fetch from.
+     * @return a future of the {@link ExecutionDataAggregate} holding the
+     * fetched data.
+     */
+    public CompletableFuture<ExecutionDataAggregate> fetch(final Source source) {
+        return supply(new Supplier<ExecutionDataAggregate>() {
+            @Override
+            public ExecutionDataAggregate get() {
+                ExecutionDataAggregate aggregate = new ExecutionDataAggregate();
+                fetch(source, SourceFetcher.Target.toAggregate(aggregate, null, connectionPool));
+                return aggregate;
+            }
+        });
+    }
+
+    /**
+     * Fetches from source and passes the data to sink as it is decoded.  A
+     * sink which is shared between concurrent fetches, such as an
+     * {@link ExecutionDataAggregate}, must be thread safe.
+     *
+     * @param <S> the type of the sink.
+     * @param source the {@link Source} to fetch from.
+     * @param sink the visitor of the fetched session infos and execution
+     * data.
+     * @return a future of sink, completed once all data has been passed to
+     * it.
+     */
+    public <S extends ISessionInfoVisitor & IExecutionDataVisitor> CompletableFuture<S> fetch(final Source source, final S sink) {
+        return supply(new Supplier<S>() {
+            @Override
+            public S get() {
+                try {
+                    source.validate(resolver);
+                    JaCoCoToGo.fetchJaCoCoData(source, sink, sink, FetchTimeouts.forSource(source), new FetchMetrics(), connectionPool);
+                } catch (JaCoCoToGoValidationException ex) {
+                    throw new CompletionException(ex);
+                }
+                return sink;
+            }
+        });
+    }
+
+    /**
+     * Fetches from source and writes the data to outputFile, which must not
+     * exist yet.
+     *
+     * @param source the {@link Source} to fetch from.
+     * @param outputFile the {@link File} to write the fetched data to.
+     * @return a future of outputFile, completed once it has been written.
+     */
+    public CompletableFuture<File> fetch(final Source source, final File outputFile) {
+        return supply(new Supplier<File>() {
+            @Override
+            public File get() {
+                fetch(source, SourceFetcher.Target.toFiles(outputFile, connectionPool));
+                return outputFile;
+            }
+        });
+    }
+
+    /**
+     * Fetches from a source with retries, committing the data of the
+     * successful attempt to target.
+     */
+    private <T> void fetch(Source source, SourceFetcher.Target<T> target) {
+        SourceFetcher<T> fetcher = new SourceFetcher<T>(target, retryBackoff, 0, budget);
+        try {
+            source.validate(resolver);
+            fetcher.fetch(source);
+        } catch (JaCoCoToGoValidationException ex) {
+            throw new CompletionException(ex);
+        } finally {
+            fetcher.close();
+        }
+    }
+
+    /**
+     * Writes all data held by aggregate to outputFile, which must not exist
+     * yet.
+     *
+     * @param aggregate the {@link ExecutionDataAggregate} to write.
+     * @param outputFile the {@link File} to write the data to.
+     * @return a future of outputFile, completed once it has been written.
+     */
+    public CompletableFuture<File> save(final ExecutionDataAggregate aggregate, final File outputFile) {
+        return supply(new Supplier<File>() {
+            @Override
+            public File get() {
+                JaCoCoToGo.saveJaCoCoData(aggregate, outputFile);
+                return outputFile;
+            }
+        });
+    }
+
+    /**
+     * Merges inputFiles into mergeFile, which must not exist yet.
+     *
+     * @param inputFiles the JaCoCo execution data files to merge.
+     * @param mergeFile the {@link File} to write the merged data to.
+     * @return a future of mergeFile, completed once it has been written.
+     */
+    public CompletableFuture<File> merge(List<File> inputFiles, final File mergeFile) {
+        final List<File> files = new ArrayList<File>(inputFiles);
+        return supply(new Supplier<File>() {
+            @Override
+            public File get() {
+                JaCoCoToGo.mergeJaCoCoData(files, mergeFile);
+                return mergeFile;
+            }
+        });
+    }
+
+    /**
+     * Merges all data held by aggregate into mergeFile, which may already
+     * hold merged data, like
+     * {@link JaCoCoToGo#accumulateJaCoCoData(ExecutionDataAggregate, java.io.File)}.
+     *
+     * @param aggregate the {@link ExecutionDataAggregate} to merge.
+     * @param mergeFile the {@link File} to accumulate the data into.
+     * @return a future of whether mergeFile was written.
+     */
+    public CompletableFuture<Boolean> accumulate(final ExecutionDataAggregate aggregate, final File mergeFile) {
+        return supply(new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                return Boolean.valueOf(JaCoCoToGo.accumulateJaCoCoData(aggregate, mergeFile));
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier, executor);
+    }
+
+    /**
+     * Shuts down the executor and closes the connection pool if they were
+     * created by this collector.  Operations which are still running are
+     * interrupted.
+     */
+    @Override
+    public void close() {
+        if (ownsResources) {
+            ((ExecutorService) executor).shutdownNow();
+            connectionPool.close();
+        }
+    }
+}
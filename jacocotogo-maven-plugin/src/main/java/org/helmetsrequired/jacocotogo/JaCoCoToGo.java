@@ -15,30 +15,48 @@
  */
 package org.helmetsrequired.jacocotogo;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.JMRuntimeException;
 import javax.management.MBeanException;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
 import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
-import org.jacoco.core.data.ExecFileLoader;
 import org.jacoco.core.data.ExecutionDataWriter;
-import org.jacoco.core.runtime.RemoteControlReader;
+import org.jacoco.core.data.IExecutionDataVisitor;
+import org.jacoco.core.data.ISessionInfoVisitor;
 import org.jacoco.core.runtime.RemoteControlWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,10 +70,13 @@ import org.slf4j.LoggerFactory;
 public class JaCoCoToGo {
 
     private static final Logger logger = LoggerFactory.getLogger(JaCoCoToGo.class);
-    private static final String JMX_CREDENTIALS_KEY = "jmx.remote.credentials";
     private static final int MAX_PORT = (int) (Math.pow(2, 16) - 1);
     private static final String JACOCO_OBJECT_NAME_STRING = "org.jacoco:type=Runtime";
     private static final String JACOCO_FETCH_METHOD_NAME = "getExecutionData";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static JmxConnectionPool jmxConnectionPool;
+    private static ExecutorService jmxExecutor;
+    private static boolean shutdownHookRegistered;
 
     /**
      * <p>
@@ -75,14 +96,18 @@ public class JaCoCoToGo {
      * there is a problem with the supplied arguments
      */
     public static final void fetchJaCoCoDataOverJmx(String serviceUrl, String username, String password, File outputFile, boolean resetAfterFetch) throws JaCoCoToGoValidationException {
+        fetchJaCoCoDataOverJmx(serviceUrl, username, password, outputFile, resetAfterFetch, FetchTimeouts.NONE, new FetchMetrics(), ClassFilter.ALL, getJmxConnectionPool());
+    }
+
+    static void fetchJaCoCoDataOverJmx(String serviceUrl, String username, String password, File outputFile, boolean resetAfterFetch, FetchTimeouts timeouts, FetchMetrics metrics, ClassFilter filter, JmxConnectionPool pool) throws JaCoCoToGoValidationException {
         // construct JMX Service URL        
         JMXServiceURL url = constructJMXServiceURL(serviceUrl);
 
         // fetch the execution data
-        byte[] executionData = getExecutionDataViaJMX(url, username, password, resetAfterFetch);
+        byte[] executionData = getExecutionDataViaJMX(url, username, password, resetAfterFetch, timeouts, metrics, filter, pool);
 
         // save to file
-        saveExecutionData(executionData, outputFile);
+        saveExecutionData(executionData, outputFile, metrics);
     }
 
     /**
@@ -99,22 +124,211 @@ public class JaCoCoToGo {
      * there is a problem with the supplied arguments.
      */
     public static final void fetchJaCoCoDataOverTcp(String hostname, int port, File outputFile, boolean resetAfterFetch) throws JaCoCoToGoValidationException {
-        InetAddress hostAddress = checkHostname(hostname);
+        fetchJaCoCoDataOverTcp(hostname, port, outputFile, resetAfterFetch, FetchTimeouts.NONE, new FetchMetrics(), ClassFilter.ALL);
+    }
+
+    static void fetchJaCoCoDataOverTcp(String hostname, int port, File outputFile, boolean resetAfterFetch, FetchTimeouts timeouts, FetchMetrics metrics, ClassFilter filter) throws JaCoCoToGoValidationException {
+        InetAddress hostAddress = checkHostname(hostname, metrics);
         checkPort(port);
 
-        // fetch the execution data
-        byte[] executionData = getExecutionDataViaJaCoCoTCPServer(hostAddress, port, resetAfterFetch);
+        // fetch the execution data, streaming it to file
+        fetchExecutionDataViaJaCoCoTCPServer(hostAddress, port, resetAfterFetch, outputFile, timeouts, metrics, filter);
+    }
 
-        // save to file
-        saveExecutionData(executionData, outputFile);
+    /**
+     * <p>
+     * fetchJaCoCoDataOverJmx.</p>
+     *
+     * Decodes the fetched execution data straight into aggregate instead of
+     * writing it to a file.
+     *
+     * @param serviceUrl a {@link java.lang.String} object representing a
+     * {@link javax.management.remote.JMXServiceURL}.
+     * @param username the username to use for the JMX connection if
+     * authentication is enabled.
+     * @param password the password to use for the JMX connection if
+     * authentication is enabled.
+     * @param aggregate the {@link ExecutionDataAggregate} the retrieved jacoco
+     * data should be merged into.
+     * @param resetAfterFetch whether the jacoco data on the remote system
+     * should be reset after fetching.
+     * @throws org.helmetsrequired.jacocotogo.JaCoCoToGoValidationException if
+     * there is a problem with the supplied arguments
+     * @since 1.2
+     */
+    public static final void fetchJaCoCoDataOverJmx(String serviceUrl, String username, String password, ExecutionDataAggregate aggregate, boolean resetAfterFetch) throws JaCoCoToGoValidationException {
+        fetchJaCoCoDataOverJmx(serviceUrl, username, password, aggregate, resetAfterFetch, FetchTimeouts.NONE, new FetchMetrics(), ClassFilter.ALL);
+    }
+
+    static void fetchJaCoCoDataOverJmx(String serviceUrl, String username, String password, ExecutionDataAggregate aggregate, boolean resetAfterFetch, FetchTimeouts timeouts, FetchMetrics metrics, ClassFilter filter) throws JaCoCoToGoValidationException {
+        JMXServiceURL url = constructJMXServiceURL(serviceUrl);
+        byte[] executionData = getExecutionDataViaJMX(url, username, password, resetAfterFetch, timeouts, metrics, filter, getJmxConnectionPool());
+        decodeExecutionData(url, executionData, aggregate, aggregate, metrics);
+    }
+
+    /**
+     * <p>
+     * fetchJaCoCoDataOverTcp.</p>
+     *
+     * Decodes the fetched execution data straight into aggregate instead of
+     * writing it to a file.
+     *
+     * @param hostname the hostname where the remote jvm is running
+     * @param port the port where the JaCoCo java agent TCP Server is listening
+     * @param aggregate the {@link ExecutionDataAggregate} the retrieved jacoco
+     * data should be merged into.
+     * @param resetAfterFetch whether the jacoco data on the remote system
+     * should be reset after fetching.
+     * @throws org.helmetsrequired.jacocotogo.JaCoCoToGoValidationException if
+     * there is a problem with the supplied arguments.
+     * @since 1.2
+     */
+    public static final void fetchJaCoCoDataOverTcp(String hostname, int port, ExecutionDataAggregate aggregate, boolean resetAfterFetch) throws JaCoCoToGoValidationException {
+        fetchJaCoCoDataOverTcp(hostname, port, aggregate, resetAfterFetch, FetchTimeouts.NONE, new FetchMetrics(), ClassFilter.ALL);
+    }
+
+    static void fetchJaCoCoDataOverTcp(String hostname, int port, ExecutionDataAggregate aggregate, boolean resetAfterFetch, FetchTimeouts timeouts, FetchMetrics metrics, ClassFilter filter) throws JaCoCoToGoValidationException {
+        InetAddress hostAddress = checkHostname(hostname, metrics);
+        checkPort(port);
+        fetchExecutionDataViaJaCoCoTCPServer(hostAddress, port, resetAfterFetch, aggregate, aggregate, timeouts, metrics, filter);
+    }
+
+    /**
+     * <p>
+     * fetchJaCoCoData.</p>
+     *
+     * Fetches from a validated {@link Source}, via JMX or TCP depending on its
+     * type, and writes the data to the output file of the source.  The
+     * timeouts of the source apply, but the fetch is not retried.
+     *
+     * @param source the validated {@link Source} to fetch from.
+     * @throws org.helmetsrequired.jacocotogo.JaCoCoToGoValidationException if
+     * there is a problem with the supplied arguments.
+     * @since 1.2
+     */
+    public static final void fetchJaCoCoData(Source source) throws JaCoCoToGoValidationException {
+        fetchJaCoCoData(source, source.getOutputFile(), FetchTimeouts.forSource(source), new FetchMetrics(), getJmxConnectionPool());
+    }
+
+    static void fetchJaCoCoData(Source source, File outputFile, FetchTimeouts timeouts, FetchMetrics metrics, JmxConnectionPool pool) throws JaCoCoToGoValidationException {
+        if (source.getSourceType() == SourceType.JMX) {
+            JMXServiceURL url = constructJMXServiceURL(source.getServiceURL());
+            byte[] executionData = getExecutionDataViaJMX(url, source.getUsername(), source.getPassword(), source.isResetAfterFetch(), timeouts, metrics, source.getClassFilter(), pool);
+            saveExecutionData(executionData, outputFile, metrics);
+        } else if (source.getSourceType() == SourceType.TCP) {
+            fetchExecutionDataViaJaCoCoTCPServer(getAddress(source, metrics), source.getPort(), source.isResetAfterFetch(), outputFile, timeouts, metrics, source.getClassFilter());
+        }
+    }
+
+    /**
+     * <p>
+     * fetchJaCoCoData.</p>
+     *
+     * Fetches from a validated {@link Source}, via JMX or TCP depending on its
+     * type, and merges the data into aggregate.  The timeouts of the source
+     * apply, but the fetch is not retried.
+     *
+     * @param source the validated {@link Source} to fetch from.
+     * @param aggregate the {@link ExecutionDataAggregate} the retrieved jacoco
+     * data should be merged into.
+     * @throws org.helmetsrequired.jacocotogo.JaCoCoToGoValidationException if
+     * there is a problem with the supplied arguments.
+     * @since 1.2
+     */
+    public static final void fetchJaCoCoData(Source source, ExecutionDataAggregate aggregate) throws JaCoCoToGoValidationException {
+        fetchJaCoCoData(source, aggregate, aggregate, FetchTimeouts.forSource(source), new FetchMetrics(), getJmxConnectionPool());
+    }
+
+    /**
+     * Fetches from a validated {@link Source} and passes the data to the
+     * given visitors as it is decoded.
+     */
+    static void fetchJaCoCoData(Source source, ISessionInfoVisitor sessionInfoVisitor, IExecutionDataVisitor executionDataVisitor, FetchTimeouts timeouts, FetchMetrics metrics, JmxConnectionPool pool) throws JaCoCoToGoValidationException {
+        if (source.getSourceType() == SourceType.JMX) {
+            JMXServiceURL url = constructJMXServiceURL(source.getServiceURL());
+            byte[] executionData = getExecutionDataViaJMX(url, source.getUsername(), source.getPassword(), source.isResetAfterFetch(), timeouts, metrics, source.getClassFilter(), pool);
+            decodeExecutionData(url, executionData, sessionInfoVisitor, executionDataVisitor, metrics);
+        } else if (source.getSourceType() == SourceType.TCP) {
+            fetchExecutionDataViaJaCoCoTCPServer(getAddress(source, metrics), source.getPort(), source.isResetAfterFetch(), sessionInfoVisitor, executionDataVisitor, timeouts, metrics, source.getClassFilter());
+        }
+    }
+
+    /**
+     * <p>
+     * fetchJaCoCoData.</p>
+     *
+     * Fetches from a validated {@link Source}, via JMX or TCP depending on its
+     * type, and appends the data to journal as a new segment.  The timeouts
+     * of the source apply, but the fetch is not retried.
+     *
+     * @param source the validated {@link Source} to fetch from.
+     * @param journal the {@link ExecutionDataJournal} the retrieved jacoco
+     * data should be appended to.
+     * @throws org.helmetsrequired.jacocotogo.JaCoCoToGoValidationException if
+     * there is a problem with the supplied arguments.
+     * @since 1.2
+     */
+    public static final void fetchJaCoCoData(Source source, ExecutionDataJournal journal) throws JaCoCoToGoValidationException {
+        FetchTimeouts timeouts = FetchTimeouts.forSource(source);
+        FetchMetrics metrics = new FetchMetrics();
+        JmxConnectionPool pool = getJmxConnectionPool();
+        try {
+            if (source.getSourceType() == SourceType.JMX) {
+                JMXServiceURL url = constructJMXServiceURL(source.getServiceURL());
+                byte[] executionData = getExecutionDataViaJMX(url, source.getUsername(), source.getPassword(), source.isResetAfterFetch(), timeouts, metrics, source.getClassFilter(), pool);
+                if (executionData == null) {
+                    logger.warn("executionData is null, nothing to append");
+                    return;
+                }
+                journal.append(executionData);
+            } else if (source.getSourceType() == SourceType.TCP) {
+                File segmentFile = journal.newSegmentFile();
+                fetchJaCoCoData(source, segmentFile, timeouts, metrics, pool);
+                journal.append(segmentFile);
+            }
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Error appending execution data to journal", ex);
+        }
     }
 
-    private static String[] getCredentials(String username, String password) {
-        return new String[]{username == null ? "" : username, password == null ? "" : password};
+    /**
+     * <p>
+     * closeJmxConnections.</p>
+     *
+     * Closes all JMX connections cached by previous fetches through the
+     * static methods of this class.  Connections are reused between fetches
+     * from the same service URL with the same credentials until they are
+     * closed, or have been idle for
+     * {@link JmxConnectionPool#DEFAULT_IDLE_TIMEOUT_MILLIS}.  The goals and
+     * {@link JaCoCoCollector} use their own pools instead.
+     *
+     * @since 1.2
+     */
+    public static void closeJmxConnections() {
+        JmxConnectionPool pool;
+        synchronized (JaCoCoToGo.class) {
+            pool = jmxConnectionPool;
+            jmxConnectionPool = null;
+        }
+        if (pool != null) {
+            pool.close();
+        }
     }
 
-    private static void populateEnvironmentMapWithCredentials(Map<String, Object> envMap, String username, String password) {
-        envMap.put(JMX_CREDENTIALS_KEY, getCredentials(username, password));
+    private static synchronized JmxConnectionPool getJmxConnectionPool() {
+        if (jmxConnectionPool == null) {
+            jmxConnectionPool = new JmxConnectionPool();
+            if (!shutdownHookRegistered) {
+                Runtime.getRuntime().addShutdownHook(new Thread("jacocotogo-jmx-shutdown") {
+                    @Override
+                    public void run() {
+                        closeJmxConnections();
+                    }
+                });
+                shutdownHookRegistered = true;
+            }
+        }
+        return jmxConnectionPool;
     }
 
     private static JMXServiceURL constructJMXServiceURL(String serviceUrl) throws JaCoCoToGoValidationException {
@@ -126,11 +340,6 @@ public class JaCoCoToGo {
         }
     }
 
-    private static JMXConnector constructJMXConnector(JMXServiceURL url, Map<String, ?> envMap) throws IOException {
-        logger.debug("Constructing JMXConnector for JMXServiceURL: '{}'", url);
-        return JMXConnectorFactory.newJMXConnector(url, envMap);
-    }
-
     private static ObjectName constructJaCoCoObjectName() throws JaCoCoToGoValidationException {
         logger.debug("Constructing JMX ObjectName for JaCoCo MBean, using String: '{}'", JACOCO_OBJECT_NAME_STRING);
         try {
@@ -140,29 +349,22 @@ public class JaCoCoToGo {
         }
     }
 
-    private static void saveExecutionData(byte[] executionData, File outputFile) {
+    /**
+     * Writes a dump, as received from the JaCoCo MBean, to outputFile.
+     */
+    static void saveExecutionData(byte[] executionData, File outputFile) {
         logger.info("Saving JaCoCo execution data to file: '{}'", outputFile.getAbsolutePath());
-        if (outputFile.exists()) {
-            throw new JaCoCoToGoException("outputFile '" + outputFile.getAbsolutePath() + "' already exists.");
-        }
-        File outputFileDir = outputFile.getAbsoluteFile().getParentFile();
-        if (!outputFileDir.exists()) {
-            if (!outputFileDir.mkdirs()) {
-                throw new IllegalArgumentException("Failed to create directory: '" + outputFileDir.getAbsolutePath() + "'");
-            }
-        }
+        prepareOutputFile(outputFile);
 
         if (executionData == null) {
             logger.warn("executionData is null, nothing to save");
             return;
         }
         FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
         try {
+            // a single write of the whole dump, which needs no buffer
             fos = new FileOutputStream(outputFile);
-            bos = new BufferedOutputStream(fos);
-            bos.write(executionData);
-            bos.flush();
+            fos.write(executionData);
         } catch (IOException ex) {
             throw new JaCoCoToGoException("Error saving execution data to file: " + outputFile.getAbsolutePath(), ex);
         } finally {
@@ -173,14 +375,62 @@ public class JaCoCoToGo {
                     // bummer
                 }
             }
-            if (bos != null) {
-                try {
-                    bos.close();
-                } catch (IOException ex) {
-                    // bummer
+        }
+    }
+
+    /**
+     * Writes a dump, as received from the JaCoCo MBean, to outputFile,
+     * recording the time taken in metrics.
+     */
+    private static void saveExecutionData(byte[] executionData, File outputFile, FetchMetrics metrics) {
+        long start = System.nanoTime();
+        CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.SAVE);
+        saveExecutionData(executionData, outputFile);
+        metrics.record(FetchMetrics.Phase.WRITE, start);
+        span.end(outputFile, executionData == null ? 0 : executionData.length, metrics.getClasses());
+    }
+
+    /**
+     * Decodes a dump, as received from the JaCoCo MBean at url, into the
+     * given visitors.
+     */
+    private static void decodeExecutionData(JMXServiceURL url, byte[] executionData, ISessionInfoVisitor sessionInfoVisitor, IExecutionDataVisitor executionDataVisitor, FetchMetrics metrics) {
+        if (executionData == null) {
+            logger.warn("executionData is null, nothing to merge");
+            return;
+        }
+        long start = System.nanoTime();
+        CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.DECODE);
+        DumpSink sink = DumpSink.toVisitors(sessionInfoVisitor, executionDataVisitor);
+        boolean complete = false;
+        try {
+            // frame the blocks in place instead of copying them through a stream
+            int offset = 0;
+            int length;
+            while ((length = ExecutionDataBlocks.blockLength(executionData, offset, executionData.length)) > 0) {
+                byte type = executionData[offset];
+                if (type == ExecutionDataWriter.BLOCK_HEADER) {
+                    ExecutionDataBlocks.checkHeader(executionData, offset);
+                } else if (offset == 0) {
+                    throw new IOException("Invalid execution data file.");
                 }
+                sink.block(type, executionData, offset, length);
+                offset += length;
             }
+            if (offset < executionData.length) {
+                throw new EOFException("Truncated execution data.");
+            }
+            sink.complete();
+            complete = true;
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Error decoding execution data from JMXServiceURL: '" + url + "'", ex);
+        } finally {
+            if (!complete) {
+                sink.abort();
+            }
+            span.end(url, executionData.length, metrics.getClasses());
         }
+        metrics.record(FetchMetrics.Phase.DECODE, start);
     }
 
     /**
@@ -193,23 +443,45 @@ public class JaCoCoToGo {
      * authentication is enabled.
      * @param resetAfterFetch whether the JaCoCo data on the remote system
      * should be reset after fetching.
+     * @param pool the {@link JmxConnectionPool} to get the connection from.
      * @return byte array containing the JaCoCo execution data
      * @throws JaCoCoToGoValidationException if there is a problem with the
      * supplied arguments.
      */
-    private static byte[] getExecutionDataViaJMX(JMXServiceURL url, String username, String password, boolean resetAfterFetch) throws JaCoCoToGoValidationException {
+    private static byte[] getExecutionDataViaJMX(final JMXServiceURL url, final String username, final String password, final boolean resetAfterFetch, FetchTimeouts timeouts, FetchMetrics metrics, ClassFilter filter, final JmxConnectionPool pool) throws JaCoCoToGoValidationException {
+        final ObjectName objectName = constructJaCoCoObjectName();
+        CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.FETCH);
+        long bytes = metrics.getBytes();
+        int classes = metrics.getClasses();
+        JMXConnector connector = null;
         try {
-            Map<String, Object> envMap = new HashMap<String, Object>();
-            populateEnvironmentMapWithCredentials(envMap, username, password);
-            JMXConnector connector = constructJMXConnector(url, envMap);
-            connector.connect();
-            MBeanServerConnection connection = connector.getMBeanServerConnection();
-            ObjectName objectName = constructJaCoCoObjectName();
-            logger.info("Invoking method: '{}' on ObjectName: {}", JACOCO_FETCH_METHOD_NAME, objectName);
-            Object result = connection.invoke(objectName, JACOCO_FETCH_METHOD_NAME, new Object[]{resetAfterFetch}, new String[]{boolean.class.getName()});
+            long start = System.nanoTime();
+            connector = connectViaJMX(pool, url, username, password, timeouts);
+            metrics.record(FetchMetrics.Phase.CONNECT, start);
+            start = System.nanoTime();
+            Object result;
+            metrics.setDumpRequested();
+            try {
+                result = invokeFetch(pool, url, username, password, connector, objectName, resetAfterFetch, timeouts);
+            } catch (InterruptedIOException ex) {
+                // timed out, do not wait a second time
+                throw ex;
+            } catch (IOException ex) {
+                // the cached connection may have gone stale, retry once on a new one
+                logger.debug("Retrying on a new connection after IOException: {}", ex.getMessage());
+                pool.invalidate(url, username, password, connector);
+                connector = connectViaJMX(pool, url, username, password, timeouts);
+                result = invokeFetch(pool, url, username, password, connector, objectName, resetAfterFetch, timeouts);
+            }
             try {
                 byte[] data = (byte[]) result;
+                metrics.record(FetchMetrics.Phase.DUMP, start);
                 logger.debug("{} bytes of JaCoCo execution data received", data.length);
+                metrics.addBytes(data.length);
+                start = System.nanoTime();
+                data = ExecutionDataBlocks.filter(data, filter);
+                metrics.record(FetchMetrics.Phase.DECODE, start);
+                metrics.addClasses(ExecutionDataBlocks.countExecutionData(data));
                 return data;
             } catch (ClassCastException ex) {
                 throw new JaCoCoToGoException("Expected byte[] but got " + result.getClass().getName(), ex);
@@ -220,20 +492,150 @@ public class JaCoCoToGo {
             throw new JaCoCoToGoException("Error fetching execution data from JaCoCo MBean at JMXServiceURL: '" + url + "'", ex);
         } catch (ReflectionException ex) {
             throw new JaCoCoToGoException("Error fetching execution data from JaCoCo MBean at JMXServiceURL: '" + url + "'", ex);
+        } catch (JMRuntimeException ex) {
+            throw new JaCoCoToGoException("Error fetching execution data from JaCoCo MBean at JMXServiceURL: '" + url + "'", ex);
         } catch (IOException ex) {
             throw new JaCoCoToGoException("IOException while communicating with JMXServiceURL: '" + url + "'", ex);
+        } finally {
+            if (connector != null) {
+                pool.release(url, username, password, connector);
+            }
+            span.end(url, metrics.getBytes() - bytes, metrics.getClasses() - classes);
+        }
+    }
+
+    /**
+     * Gets a pooled connection, giving up after the connect timeout.
+     */
+    private static JMXConnector connectViaJMX(final JmxConnectionPool pool, final JMXServiceURL url, final String username, final String password, FetchTimeouts timeouts) throws IOException {
+        try {
+            return callWithTimeout(new Callable<JMXConnector>() {
+                @Override
+                public JMXConnector call() throws IOException {
+                    return pool.getConnector(url, username, password);
+                }
+            }, timeouts.connectTimeout(), "connecting to JMXServiceURL: '" + url + "'");
+        } catch (JMException ex) {
+            throw new JaCoCoToGoException("Unexpected JMX error connecting to JMXServiceURL: '" + url + "'", ex);
+        }
+    }
+
+    /**
+     * Invokes the fetch, giving up after the read timeout.  A connection
+     * which timed out is closed, which also aborts the pending call.
+     */
+    private static Object invokeFetch(JmxConnectionPool pool, JMXServiceURL url, String username, String password, final JMXConnector connector, final ObjectName objectName, final boolean resetAfterFetch, FetchTimeouts timeouts) throws InstanceNotFoundException, MBeanException, ReflectionException, IOException {
+        try {
+            return callWithTimeout(new Callable<Object>() {
+                @Override
+                public Object call() throws JMException, IOException {
+                    return invokeFetch(connector, objectName, resetAfterFetch);
+                }
+            }, timeouts.readTimeout(), "waiting for JMXServiceURL: '" + url + "'");
+        } catch (InterruptedIOException ex) {
+            pool.invalidate(url, username, password, connector);
+            throw ex;
+        } catch (InstanceNotFoundException ex) {
+            throw ex;
+        } catch (MBeanException ex) {
+            throw ex;
+        } catch (ReflectionException ex) {
+            throw ex;
+        } catch (JMException ex) {
+            throw new JaCoCoToGoException("Unexpected JMX error invoking JaCoCo MBean at JMXServiceURL: '" + url + "'", ex);
+        }
+    }
+
+    /**
+     * Runs task on the calling thread if timeoutMillis is 0, or on a pooled
+     * thread for at most timeoutMillis otherwise.
+     *
+     * @throws InterruptedIOException if the task did not finish in time.
+     */
+    private static <T> T callWithTimeout(Callable<T> task, int timeoutMillis, String action) throws JMException, IOException {
+        if (timeoutMillis == 0) {
+            return call(task);
+        }
+        Future<T> future = getJmxExecutor().submit(task);
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            throw new SocketTimeoutException("Timed out after " + timeoutMillis + " ms " + action);
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while " + action);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof JMException) {
+                throw (JMException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new JaCoCoToGoException("Unexpected error " + action, cause);
+        }
+    }
+
+    private static <T> T call(Callable<T> task) throws JMException, IOException {
+        try {
+            return task.call();
+        } catch (JMException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new JaCoCoToGoException("Unexpected error", ex);
+        }
+    }
+
+    private static synchronized ExecutorService getJmxExecutor() {
+        if (jmxExecutor == null) {
+            jmxExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jacocotogo-jmx");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return jmxExecutor;
     }
 
-    private static InetAddress checkHostname(String hostname) throws JaCoCoToGoValidationException {
+    private static Object invokeFetch(JMXConnector connector, ObjectName objectName, boolean resetAfterFetch) throws InstanceNotFoundException, MBeanException, ReflectionException, IOException {
+        MBeanServerConnection connection = connector.getMBeanServerConnection();
+        logger.info("Invoking method: '{}' on ObjectName: {}", JACOCO_FETCH_METHOD_NAME, objectName);
+        return connection.invoke(objectName, JACOCO_FETCH_METHOD_NAME, new Object[]{resetAfterFetch}, new String[]{boolean.class.getName()});
+    }
+
+    private static InetAddress checkHostname(String hostname, FetchMetrics metrics) throws JaCoCoToGoValidationException {
+        long start = System.nanoTime();
         try {
             logger.debug("Verifying that hostname: '{}' can be resolved.", hostname);
             return InetAddress.getByName(hostname);
         } catch (UnknownHostException ex) {
             throw new JaCoCoToGoValidationException("Unable to resolve hostname: '" + hostname + "'", ex);
+        } finally {
+            metrics.record(FetchMetrics.Phase.DNS, start);
         }
     }
 
+    /**
+     * @return the address the hostname of source was resolved to during
+     * validation, resolving it now if it has not been resolved.
+     */
+    private static InetAddress getAddress(Source source, FetchMetrics metrics) throws JaCoCoToGoValidationException {
+        InetAddress address = source.getAddress();
+        return address != null ? address : checkHostname(source.getHostname(), metrics);
+    }
+
     private static void checkPort(int port) throws JaCoCoToGoValidationException {
         if (port < 1 || port > MAX_PORT) {
             throw new JaCoCoToGoValidationException("Invalid port: '" + port + "'");
@@ -241,60 +643,202 @@ public class JaCoCoToGo {
     }    
 
     /**
+     * Streams the JaCoCo execution data dump straight into a temporary file
+     * next to outputFile, which is renamed to outputFile once the dump has
+     * been received completely.  Only the stream buffers are held in memory,
+     * regardless of the size of the dump.
      *
-     * @param hostname the hostname where the remote jvm is running.
+     * @param address the address where the remote jvm is running.
      * @param port the port where the JaCoCo Java Agent TCP Server is listening.
      * @param resetAfterFetch whether JaCoCo coverage data should be reset after
      * fetch
-     * @return a byte array containing the JaCoCo execution data.
+     * @param outputFile the {@link java.io.File} where the execution data
+     * should be written.
+     * @param timeouts the {@link FetchTimeouts} of the fetch.
+     * @param metrics the {@link FetchMetrics} recording the fetch.
      */
-    private static byte[] getExecutionDataViaJaCoCoTCPServer(InetAddress address, int port, boolean resetAfterFetch) throws JaCoCoToGoValidationException {
-        ByteArrayOutputStream output = null;
-        Socket socket = null;
+    private static void fetchExecutionDataViaJaCoCoTCPServer(InetAddress address, int port, boolean resetAfterFetch, File outputFile, FetchTimeouts timeouts, FetchMetrics metrics, ClassFilter filter) {
+        DumpSink sink = DumpSink.toFile(outputFile);
+        boolean complete = false;
         try {
-            // 1. Open socket connection
-            socket = new Socket(address, port);
-            logger.info("Connecting to {}", socket.getRemoteSocketAddress());
-            RemoteControlWriter remoteWriter = new RemoteControlWriter(socket.getOutputStream());
-            RemoteControlReader remoteReader = new RemoteControlReader(socket.getInputStream());
-
-            output = new ByteArrayOutputStream();
-            ExecutionDataWriter outputWriter = new ExecutionDataWriter(output);
-            remoteReader.setSessionInfoVisitor(outputWriter);
-            remoteReader.setExecutionDataVisitor(outputWriter);
-
-            // 2. Request dump
-            remoteWriter.visitDumpCommand(true, resetAfterFetch);
-            remoteReader.read();
+            dumpViaJaCoCoTCPServer(address, port, resetAfterFetch, timeouts, metrics, filter, sink);
+            long start = System.nanoTime();
+            CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.SAVE);
+            // verifies that data was received and moves it into place
+            sink.complete();
+            complete = true;
+            metrics.record(FetchMetrics.Phase.WRITE, start);
+            span.end(outputFile, span.isRecording() ? outputFile.length() : 0, metrics.getClasses());
+        } catch (final IOException e) {
+            throw new JaCoCoToGoException("Unable to dump coverage data", e);
+        } finally {
+            if (!complete) {
+                sink.abort();
+            }
+        }
+    }
 
-            // 3. verify valid JaCoCo execution data
-            byte[] outputBytes = output.toByteArray();
-            if (outputBytes.length <= 5) {
+    /**
+     * Decodes the JaCoCo execution data dump straight into the given
+     * visitors.
+     */
+    private static void fetchExecutionDataViaJaCoCoTCPServer(InetAddress address, int port, boolean resetAfterFetch, ISessionInfoVisitor sessionInfoVisitor, IExecutionDataVisitor executionDataVisitor, FetchTimeouts timeouts, FetchMetrics metrics, ClassFilter filter) {
+        DumpSink sink = DumpSink.toVisitors(sessionInfoVisitor, executionDataVisitor);
+        boolean complete = false;
+        try {
+            if (!dumpViaJaCoCoTCPServer(address, port, resetAfterFetch, timeouts, metrics, filter, sink)) {
                 throw new JaCoCoToGoException("No JaCoCo execution data received.");
             }
-
-            // 4. Return data
-            return outputBytes;
-        } catch (final IOException e) {
-            throw new JaCoCoToGoException("Unable to dump coverage data", e);
+            sink.complete();
+            complete = true;
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Unable to dump coverage data", ex);
         } finally {
-            if (socket != null) {
-                try {
-                    socket.close();
-                } catch (IOException ex) {
-                    // bummer
-                }
+            if (!complete) {
+                sink.abort();
             }
-            if (output != null) {
-                try {
-                    output.close();
-                } catch (IOException ex) {
-                    // bummer
+        }
+    }
+
+    /**
+     * Requests a dump from the JaCoCo Java Agent TCP Server and passes the
+     * received blocks to sink as they are framed.  The socket is read into a
+     * pooled buffer, and blocks are only decoded as far as the filter and the
+     * sink need.  The socket is closed when the deadline of timeouts passes,
+     * which aborts a dump in progress.
+     *
+     * @return whether the dump was received completely.
+     */
+    private static boolean dumpViaJaCoCoTCPServer(InetAddress address, int port, boolean resetAfterFetch, FetchTimeouts timeouts, final FetchMetrics metrics, ClassFilter filter, DumpSink sink) throws IOException {
+        Socket socket = new Socket();
+        ScheduledFuture<?> deadline = timeouts.closeAtDeadline(socket);
+        InetSocketAddress socketAddress = new InetSocketAddress(address, port);
+        CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.FETCH);
+        long bytes = metrics.getBytes();
+        int classes = metrics.getClasses();
+        try {
+            // 1. Open socket connection
+            long start = System.nanoTime();
+            socket.connect(socketAddress, timeouts.connectTimeout());
+            metrics.record(FetchMetrics.Phase.CONNECT, start);
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, timeouts.getReadTimeoutMillis()));
+            logger.info("Connecting to {}", socket.getRemoteSocketAddress());
+            RemoteControlWriter remoteWriter = new RemoteControlWriter(socket.getOutputStream());
+            BlockReader reader = new BlockReader(new FilterInputStream(socket.getInputStream()) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    if (n > 0) {
+                        metrics.addBytes(n);
+                    }
+                    return n;
                 }
+            }, BufferPool.getShared());
+            try {
+                // 2. Request dump
+                start = System.nanoTime();
+                metrics.setDumpRequested();
+                remoteWriter.visitDumpCommand(true, resetAfterFetch);
+                boolean complete = false;
+                boolean headerReceived = false;
+                while (reader.next()) {
+                    byte type = reader.getType();
+                    byte[] buffer = reader.getBuffer();
+                    int offset = reader.getOffset();
+                    if (type == RemoteControlWriter.BLOCK_CMDOK) {
+                        // the agent keeps the connection open, so stop here
+                        complete = true;
+                        break;
+                    }
+                    if (type == ExecutionDataWriter.BLOCK_HEADER) {
+                        ExecutionDataBlocks.checkHeader(buffer, offset);
+                        headerReceived = true;
+                    } else if (!headerReceived) {
+                        throw new IOException("Invalid execution data file.");
+                    } else if (type == RemoteControlWriter.BLOCK_CMDDUMP) {
+                        // not expected from an agent, carries no data
+                        continue;
+                    } else if (type == ExecutionDataWriter.BLOCK_EXECUTIONDATA) {
+                        if (!filter.isAll() && !filter.accepts(ExecutionDataBlocks.readClassName(buffer, offset))) {
+                            continue;
+                        }
+                        metrics.addClasses(1);
+                    }
+                    sink.block(type, buffer, offset, reader.getLength());
+                }
+                metrics.record(FetchMetrics.Phase.DUMP, start);
+                return complete;
+            } finally {
+                // the socket is closed below
+                reader.release();
+            }
+        } catch (IOException ex) {
+            if (timeouts.isExpired()) {
+                IOException timeout = new SocketTimeoutException("Fetch from " + address + ":" + port + " exceeded its deadline");
+                timeout.initCause(ex);
+                throw timeout;
+            }
+            throw ex;
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // bummer
+            }
+            span.end(socketAddress, metrics.getBytes() - bytes, metrics.getClasses() - classes);
+        }
+    }
+
+    /**
+     * Verifies that outputFile does not exist yet and creates its parent
+     * directory if necessary.
+     */
+    static void prepareOutputFile(File outputFile) {
+        if (outputFile.exists()) {
+            throw new JaCoCoToGoException("outputFile '" + outputFile.getAbsolutePath() + "' already exists.");
+        }
+        File outputFileDir = outputFile.getAbsoluteFile().getParentFile();
+        if (!outputFileDir.exists()) {
+            if (!outputFileDir.mkdirs()) {
+                throw new IllegalArgumentException("Failed to create directory: '" + outputFileDir.getAbsolutePath() + "'");
             }
         }
     }
-    
+
+    /**
+     * Creates a temporary file in the same directory as outputFile, so it can
+     * later be renamed to outputFile atomically.
+     */
+    static File createTempFile(File outputFile) {
+        File outputFileDir = outputFile.getAbsoluteFile().getParentFile();
+        try {
+            return File.createTempFile(outputFile.getName() + ".", TEMP_FILE_SUFFIX, outputFileDir);
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Unable to create temporary file in directory: '" + outputFileDir.getAbsolutePath() + "'", ex);
+        }
+    }
+
+    static void moveTempFile(File tempFile, File outputFile) throws IOException {
+        try {
+            Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            logger.debug("Atomic move not supported, falling back to a regular move for: '{}'", outputFile.getAbsolutePath());
+            Files.move(tempFile.toPath(), outputFile.toPath());
+        }
+    }
+
+    static void replaceWithTempFile(File tempFile, File outputFile) throws IOException {
+        try {
+            Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            logger.debug("Atomic move not supported, falling back to a regular move for: '{}'", outputFile.getAbsolutePath());
+            Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     /**
      * <p>
      * mergeJaCoCoData.</p>
@@ -305,12 +849,239 @@ public class JaCoCoToGo {
      * @param mergeFile the {@link java.io.File} where merged data should be written
      */
     public static void mergeJaCoCoData(List<File> inputFiles, File mergeFile) {
-        // check the mergeFile
+        mergeJaCoCoData(inputFiles, mergeFile, 1);
+    }
+
+    /**
+     * <p>
+     * mergeJaCoCoData.</p>
+     *
+     * Combines the specified inputFiles into a single merged file, parsing up
+     * to parallelism files concurrently.  The merged file is identical to the
+     * one written by the sequential merge.
+     *
+     * @param inputFiles a {@link java.util.List} of JaCoCo execution data files to merge.
+     * @param mergeFile the {@link java.io.File} where merged data should be written
+     * @param parallelism the maximum number of files to parse concurrently, 1
+     * merges the files one after another.
+     * @since 1.2
+     */
+    public static void mergeJaCoCoData(List<File> inputFiles, File mergeFile, int parallelism) {
+        mergeJaCoCoData(inputFiles, mergeFile, parallelism, 1, ShardingStrategy.CLASS_ID);
+    }
+
+    /**
+     * <p>
+     * mergeJaCoCoData.</p>
+     *
+     * Combines the specified inputFiles, parsing up to parallelism files
+     * concurrently, and partitions the merged classes over shards files named
+     * after mergeFile.  With more than one shard, 'merged.exec' becomes
+     * 'merged-0.exec', 'merged-1.exec' and so on, and 'merged-manifest.json'
+     * lists the shards.  Every shard holds all session infos.
+     *
+     * With a single shard, classes found in only one of inputFiles are
+     * copied to mergeFile as they were encoded, and only classes found in
+     * several inputs are decoded and merged.
+     *
+     * @param inputFiles a {@link java.util.List} of JaCoCo execution data files to merge.
+     * @param mergeFile the {@link java.io.File} where merged data should be
+     * written, or which names the shards.
+     * @param parallelism the maximum number of files to parse concurrently, 1
+     * merges the files one after another.
+     * @param shards the number of files to partition the merged data over, 1
+     * writes mergeFile only.
+     * @param strategy the {@link ShardingStrategy} distributing the classes
+     * over the shards.
+     * @since 1.2
+     */
+    public static void mergeJaCoCoData(List<File> inputFiles, File mergeFile, int parallelism, int shards, ShardingStrategy strategy) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: '" + parallelism + "'");
+        }
+        checkMergeFile(mergeFile, shards);
+        CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.MERGE);
+        if (shards == 1) {
+            // classes found in a single input are copied without decoding
+            CopyThroughMerge merge = CopyThroughMerge.load(inputFiles, parallelism);
+            logger.info("Writing merged data to '" + mergeFile.getAbsolutePath() + "'");
+            logger.debug("Copied {} classes, merged {} classes found in more than one input", merge.getClassCount() - merge.getMergedClassCount(), merge.getMergedClassCount());
+            writeJaCoCoData(merge, mergeFile);
+            span.end(mergeFile, span.isRecording() ? mergeFile.length() : 0, merge.getClassCount());
+            return;
+        }
+        ExecutionDataAggregate aggregate = loadJaCoCoData(inputFiles, parallelism);
+        logger.info("Writing merged data to '" + mergeFile.getAbsolutePath() + "' in " + shards + " shards");
+        writeJaCoCoData(aggregate, mergeFile, shards, strategy);
+        span.end(mergeFile, span.isRecording() ? getLength(MergeOutput.getFiles(mergeFile, shards)) : 0, aggregate.getClassCount());
+    }
+
+    /**
+     * <p>
+     * mergeJaCoCoDataExternally.</p>
+     *
+     * Combines the specified inputFiles into a single merged file, keeping the
+     * heap used for execution data within heapBudget bytes.  Data which does
+     * not fit is spilled to temporary files in the directory of mergeFile,
+     * sorted by class id, and combined with a k-way merge.  The merged file is
+     * identical to the one written by the in-memory merge.
+     *
+     * @param inputFiles a {@link java.util.List} of JaCoCo execution data files to merge.
+     * @param mergeFile the {@link java.io.File} where merged data should be written
+     * @param heapBudget the approximate number of bytes of heap to use for
+     * execution data while merging.
+     * @since 1.2
+     */
+    public static void mergeJaCoCoDataExternally(List<File> inputFiles, File mergeFile, long heapBudget) {
+        mergeJaCoCoDataExternally(inputFiles, mergeFile, heapBudget, 1, ShardingStrategy.CLASS_ID);
+    }
+
+    /**
+     * <p>
+     * mergeJaCoCoDataExternally.</p>
+     *
+     * Combines the specified inputFiles within heapBudget bytes of heap, like
+     * {@link #mergeJaCoCoDataExternally(java.util.List, java.io.File, long)},
+     * and partitions the merged classes over shards files named after
+     * mergeFile, like
+     * {@link #mergeJaCoCoData(java.util.List, java.io.File, int, int, ShardingStrategy)}.
+     *
+     * @param inputFiles a {@link java.util.List} of JaCoCo execution data files to merge.
+     * @param mergeFile the {@link java.io.File} where merged data should be
+     * written, or which names the shards.
+     * @param heapBudget the approximate number of bytes of heap to use for
+     * execution data while merging.
+     * @param shards the number of files to partition the merged data over, 1
+     * writes mergeFile only.
+     * @param strategy the {@link ShardingStrategy} distributing the classes
+     * over the shards.
+     * @since 1.2
+     */
+    public static void mergeJaCoCoDataExternally(List<File> inputFiles, File mergeFile, long heapBudget, int shards, ShardingStrategy strategy) {
+        checkMergeFile(mergeFile, shards);
+        CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.MERGE);
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDirectory(mergeFile.getAbsoluteFile().getParentFile().toPath(), "jacocotogo-merge").toFile();
+            logger.info("Writing merged data to '" + mergeFile.getAbsolutePath() + "'" + (shards > 1 ? " in " + shards + " shards" : "") + " using a heap budget of " + heapBudget + " bytes");
+            MergeOutput output = new MergeOutput(mergeFile, shards, strategy);
+            try {
+                new ExternalMerge(heapBudget, tempDir).merge(inputFiles, output);
+                output.finish();
+            } finally {
+                output.close();
+            }
+            span.end(mergeFile, span.isRecording() ? getLength(MergeOutput.getFiles(mergeFile, shards)) : 0, output.getClassCount());
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Error merging execution data to file: " + mergeFile.getAbsolutePath(), ex);
+        } finally {
+            if (tempDir != null && !tempDir.delete()) {
+                logger.warn("Unable to delete temporary directory: '{}'", tempDir.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Loads inputFiles into a new aggregate, parsing up to parallelism files
+     * concurrently.
+     */
+    private static ExecutionDataAggregate loadJaCoCoData(List<File> inputFiles, int parallelism) {
+        if (parallelism == 1 || inputFiles.size() < 2) {
+            ExecutionDataAggregate aggregate = new ExecutionDataAggregate();
+            for (File inputFile : inputFiles) {
+                loadJaCoCoData(inputFile, aggregate);
+            }
+            return aggregate;
+        }
+        logger.debug("Loading {} input files using parallelism: {}", inputFiles.size(), parallelism);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new ParallelMerge(new ArrayList<File>(inputFiles), 0, inputFiles.size()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * <p>
+     * accumulateJaCoCoData.</p>
+     *
+     * Merges the specified inputFiles into mergeFile, which may already hold
+     * merged data, parsing up to parallelism files concurrently.  Only the
+     * new data is loaded into memory; the existing classes of mergeFile are
+     * streamed and copied unless the new data adds coverage to them.  If it
+     * adds neither classes nor coverage, mergeFile is left untouched.
+     * Otherwise it is replaced atomically.
+     *
+     * @param inputFiles a {@link java.util.List} of JaCoCo execution data files to merge.
+     * @param mergeFile the {@link java.io.File} to accumulate the data into,
+     * which is created if it does not exist.
+     * @param parallelism the maximum number of files to parse concurrently, 1
+     * parses the files one after another.
+     * @return whether mergeFile was written.
+     * @since 1.2
+     */
+    public static boolean accumulateJaCoCoData(List<File> inputFiles, File mergeFile, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: '" + parallelism + "'");
+        }
+        return accumulateJaCoCoData(loadJaCoCoData(inputFiles, parallelism), mergeFile);
+    }
+
+    /**
+     * <p>
+     * accumulateJaCoCoData.</p>
+     *
+     * Merges all data held by aggregate into mergeFile, which may already
+     * hold merged data, like
+     * {@link #accumulateJaCoCoData(java.util.List, java.io.File, int)}.
+     *
+     * @param aggregate the {@link ExecutionDataAggregate} to merge.
+     * @param mergeFile the {@link java.io.File} to accumulate the data into,
+     * which is created if it does not exist.
+     * @return whether mergeFile was written.
+     * @since 1.2
+     */
+    public static boolean accumulateJaCoCoData(ExecutionDataAggregate aggregate, File mergeFile) {
         if (mergeFile == null) {
             throw new IllegalArgumentException("mergeFile is null");
         }
-        if (mergeFile.exists()) {
-            throw new JaCoCoToGoException("File already exists: '" + mergeFile.getAbsolutePath());
+        File mergeFileDir = mergeFile.getAbsoluteFile().getParentFile();
+        if (!mergeFileDir.exists() && !mergeFileDir.mkdirs()) {
+            throw new JaCoCoToGoException("Error creating directory: '" + mergeFileDir.getAbsolutePath() + "'");
+        }
+        CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.MERGE);
+        logger.info("Accumulating merged data into '" + mergeFile.getAbsolutePath() + "'");
+        IncrementalMerge merge = new IncrementalMerge(mergeFile);
+        try {
+            boolean written = merge.merge(aggregate);
+            span.end(mergeFile, span.isRecording() ? mergeFile.length() : 0, merge.getClassCount());
+            return written;
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Error accumulating execution data into file: " + mergeFile.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Verifies that none of the files written for mergeFile with the given
+     * number of shards, including the manifest, exist yet, and creates their
+     * directory if necessary.
+     */
+    static void checkMergeFile(File mergeFile, int shards) {
+        if (mergeFile == null) {
+            throw new IllegalArgumentException("mergeFile is null");
+        }
+        if (shards < 1) {
+            throw new IllegalArgumentException("Invalid number of shards: '" + shards + "'");
+        }
+        List<File> files = new ArrayList<File>(MergeOutput.getFiles(mergeFile, shards));
+        if (shards > 1) {
+            files.add(MergeOutput.getManifestFile(mergeFile));
+        }
+        for (File file : files) {
+            if (file.exists()) {
+                throw new JaCoCoToGoException("File already exists: '" + file.getAbsolutePath() + "'");
+            }
         }
         File mergeFileDir = mergeFile.getAbsoluteFile().getParentFile();
         if (! mergeFileDir.exists()) {
@@ -318,40 +1089,185 @@ public class JaCoCoToGo {
                 throw new JaCoCoToGoException("Error creating directory: '" + mergeFileDir.getAbsolutePath() + "'");
             }
         }
-        
-        // load data from each file
-        ExecFileLoader execFileLoader = new ExecFileLoader();
-        for (File inputFile : inputFiles) {
-            try {
-                logger.debug("Loading data from input file: '" + inputFile.getAbsolutePath() + "'");
-                execFileLoader.load(inputFile);
-            } catch (IOException ex) {
-                throw new JaCoCoToGoException("Error loading data from file: '" + inputFile.getAbsolutePath() + "'");
+    }
+
+    /**
+     * <p>
+     * saveJaCoCoData.</p>
+     *
+     * Writes all data held by aggregate into a single file.
+     *
+     * @param aggregate the {@link ExecutionDataAggregate} to write.
+     * @param outputFile the {@link java.io.File} where the data should be
+     * written.
+     * @since 1.2
+     */
+    public static void saveJaCoCoData(ExecutionDataAggregate aggregate, File outputFile) {
+        saveJaCoCoData(aggregate, outputFile, 1, ShardingStrategy.CLASS_ID);
+    }
+
+    /**
+     * <p>
+     * saveJaCoCoData.</p>
+     *
+     * Writes all data held by aggregate, partitioned over shards files named
+     * after outputFile, like
+     * {@link #mergeJaCoCoData(java.util.List, java.io.File, int, int, ShardingStrategy)}.
+     *
+     * @param aggregate the {@link ExecutionDataAggregate} to write.
+     * @param outputFile the {@link java.io.File} where the data should be
+     * written, or which names the shards.
+     * @param shards the number of files to partition the data over, 1 writes
+     * outputFile only.
+     * @param strategy the {@link ShardingStrategy} distributing the classes
+     * over the shards.
+     * @since 1.2
+     */
+    public static void saveJaCoCoData(ExecutionDataAggregate aggregate, File outputFile, int shards, ShardingStrategy strategy) {
+        if (outputFile == null) {
+            throw new IllegalArgumentException("outputFile is null");
+        }
+        logger.info("Saving JaCoCo execution data to file: '{}'", outputFile.getAbsolutePath());
+        checkMergeFile(outputFile, shards);
+        writeJaCoCoData(aggregate, outputFile, shards, strategy);
+    }
+
+    /**
+     * Writes all data held by aggregate to outputFile, replacing any existing
+     * file.  The data is written to a temporary file first and moved into
+     * place atomically, so outputFile is never left half written.
+     */
+    static void replaceJaCoCoData(ExecutionDataAggregate aggregate, File outputFile) {
+        File outputFileDir = outputFile.getAbsoluteFile().getParentFile();
+        if (!outputFileDir.exists() && !outputFileDir.mkdirs()) {
+            throw new JaCoCoToGoException("Error creating directory: '" + outputFileDir.getAbsolutePath() + "'");
+        }
+        File tempFile = createTempFile(outputFile);
+        boolean complete = false;
+        try {
+            writeJaCoCoData(aggregate, tempFile);
+            replaceWithTempFile(tempFile, outputFile);
+            complete = true;
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Error replacing execution data file: " + outputFile.getAbsolutePath(), ex);
+        } finally {
+            if (!complete && tempFile.exists() && !tempFile.delete()) {
+                logger.warn("Unable to delete temporary file: '{}'", tempFile.getAbsolutePath());
             }
         }
-        FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
-        logger.info("Writing merged data to '" + mergeFile.getAbsolutePath() + "'");
-        ExecutionDataWriter executionDataWriter;
+    }
+
+    /**
+     * Writes all data held by aggregate to the files of a {@link MergeOutput}.
+     */
+    private static void writeJaCoCoData(ExecutionDataAggregate aggregate, File outputFile, int shards, ShardingStrategy strategy) {
+        if (shards == 1) {
+            writeJaCoCoData(aggregate, outputFile);
+            return;
+        }
+        MergeOutput output = null;
         try {
-            fos = new FileOutputStream(mergeFile);
-            bos = new BufferedOutputStream(fos);
-            executionDataWriter = new ExecutionDataWriter(bos);
-            execFileLoader.getSessionInfoStore().accept(executionDataWriter);
-            execFileLoader.getExecutionDataStore().accept(executionDataWriter);
+            output = new MergeOutput(outputFile, shards, strategy);
+            aggregate.accept(output, output);
+            output.finish();
         } catch (IOException ex) {
-            throw new JaCoCoToGoException("Error saving merged execution data to file: " + mergeFile.getAbsolutePath(), ex);
+            throw new JaCoCoToGoException("Error saving execution data to shards of file: " + outputFile.getAbsolutePath(), ex);
         } finally {
-            if (fos != null) {
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    private static long getLength(List<File> files) {
+        long length = 0;
+        for (File file : files) {
+            length += file.length();
+        }
+        return length;
+    }
+
+    static void loadJaCoCoData(File inputFile, ExecutionDataAggregate aggregate) {
+        logger.debug("Loading data from input file: '" + inputFile.getAbsolutePath() + "'");
+        CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.DECODE);
+        int classes = 0;
+        try {
+            classes = readJaCoCoData(inputFile, aggregateLoader(aggregate));
+        } finally {
+            span.end(inputFile, span.isRecording() ? inputFile.length() : 0, classes);
+        }
+    }
+
+    /**
+     * Reads all blocks of reader into aggregate.  Execution data is merged
+     * without decoding the probes, so classes aggregate already holds cost
+     * no allocation.
+     *
+     * @return the number of classes read.
+     * @throws IOException if the data can not be read or is invalid.
+     */
+    static int readJaCoCoData(BlockReader reader, ExecutionDataAggregate aggregate) throws IOException {
+        return reader.read(aggregateLoader(aggregate));
+    }
+
+    /**
+     * Passes the blocks of inputFile to handler.
+     *
+     * @return the number of classes read.
+     * @throws JaCoCoToGoException if the file can not be read or is invalid.
+     */
+    static int readJaCoCoData(File inputFile, BlockReader.BlockHandler handler) {
+        BlockReader reader = null;
+        try {
+            reader = new BlockReader(new FileInputStream(inputFile), BufferPool.getShared());
+            return reader.read(handler);
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Error loading data from file: '" + inputFile.getAbsolutePath() + "'", ex);
+        } finally {
+            if (reader != null) {
                 try {
-                    fos.close();
+                    reader.close();
                 } catch (IOException ex) {
                     // bummer
                 }
             }
-            if (bos != null) {
+        }
+    }
+
+    private static BlockReader.BlockHandler aggregateLoader(final ExecutionDataAggregate aggregate) {
+        return new BlockReader.BlockHandler() {
+            @Override
+            void sessionInfo(byte[] buffer, int offset, int length) throws IOException {
+                aggregate.visitSessionInfo(ExecutionDataBlocks.readSessionInfo(buffer, offset, length));
+            }
+
+            @Override
+            void executionData(byte[] buffer, int offset, int length) throws IOException {
+                aggregate.mergeBlock(buffer, offset);
+            }
+        };
+    }
+
+    /**
+     * Writes data to outputFile, in the format written by
+     * {@link ExecutionDataWriter}.
+     */
+    static void writeJaCoCoData(WritableExecutionData data, File outputFile) {
+        CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.SAVE);
+        OutputStream output = null;
+        try {
+            CountingOutputStream countingOutput = new CountingOutputStream(new FileOutputStream(outputFile));
+            output = BufferPool.getShared().newOutputStream(countingOutput);
+            data.write(output);
+            output.close();
+            output = null;
+            span.end(outputFile, countingOutput.getCount(), data.getClassCount());
+        } catch (IOException ex) {
+            throw new JaCoCoToGoException("Error saving execution data to file: " + outputFile.getAbsolutePath(), ex);
+        } finally {
+            if (output != null) {
                 try {
-                    bos.close();
+                    output.close();
                 } catch (IOException ex) {
                     // bummer
                 }
@@ -16,8 +16,16 @@
 package org.helmetsrequired.jacocotogo;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -64,7 +72,381 @@ public class JaCoCoToGoBatchMojo extends AbstractMojo {
      * The file where merged JaCoCo execution data should be written.
      */
     @Parameter(defaultValue = "${project.build.directory}/jacocotogo/merged.exec")
-    private File mergeFile;  
+    private File mergeFile;
+
+    /**
+     * The maximum number of files to parse concurrently when merging.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.mergeParallelism", defaultValue = "1")
+    private int mergeParallelism;
+
+    /**
+     * The approximate number of bytes of heap to use for execution data while
+     * merging.  When set, data which does not fit is spilled to temporary
+     * files next to 'mergeFile', so merge memory stays bounded regardless of
+     * the number of sources and classes.  Files are then merged one after
+     * another, regardless of 'mergeParallelism'.  Does not apply when
+     * 'writeSourceFiles' is disabled or 'journalDirectory' is set.  The
+     * default of 0 merges in memory.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.mergeHeapBudget", defaultValue = "0")
+    private long mergeHeapBudget;
+
+    /**
+     * The number of files to partition the merged data over, so several
+     * report workers can process them in parallel.  With more than one shard
+     * 'merged.exec' becomes 'merged-0.exec', 'merged-1.exec' and so on, and
+     * 'merged-manifest.json' lists the shards.  The default of 1 writes
+     * 'mergeFile' only.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.mergeShards", defaultValue = "1")
+    private int mergeShards;
+
+    /**
+     * How classes are distributed over the shards, CLASS_ID spreads them
+     * evenly, PACKAGE keeps each package in a single shard.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.shardBy", defaultValue = "CLASS_ID")
+    private ShardingStrategy shardBy;
+
+    /**
+     * Whether to merge the fetched data into an existing 'mergeFile' instead
+     * of failing when it exists, so coverage can be accumulated over several
+     * runs without keeping or reloading older data.  Only the classes whose
+     * coverage grows are rewritten, and 'mergeFile' is left untouched if
+     * nothing new was covered.  Can not be combined with 'mergeShards' or
+     * 'mergeHeapBudget'.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.accumulate", defaultValue = "false")
+    private boolean accumulate;
+
+    /**
+     * A directory holding an append-only journal of fetched execution data.
+     * When set, the data fetched from each source is appended to the journal
+     * instead of being written to its own file, and older segments are
+     * compacted in the background.  If 'merge' is enabled the merged file is
+     * written from the complete journal.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.journalDirectory")
+    private File journalDirectory;
+
+    /**
+     * The size, in bytes, the journal may grow to before it is compacted.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.journalCompactionThreshold", defaultValue = "67108864")
+    private long journalCompactionThreshold;
+
+    /**
+     * Whether the data fetched from each source should be written to its own
+     * file.  When set to 'false' and 'merge' is enabled, fetched data is
+     * decoded straight into a single in-memory aggregate and only the merged
+     * file is written.  Unless 'accumulate' is enabled, the run then fails
+     * before anything is fetched if the merged file already exists.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.writeSourceFiles", defaultValue = "true")
+    private boolean writeSourceFiles;
+
+    /**
+     * The maximum number of sources to fetch from concurrently.  The default of
+     * 1 fetches from one source at a time, in the order they are listed.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.parallelism", defaultValue = "1")
+    private int parallelism;
+
+    /**
+     * Whether concurrent fetches should run on virtual threads.  Only has an
+     * effect when 'parallelism' is greater than 1 and the build runs on a JVM
+     * which supports virtual threads, otherwise platform threads are used.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.useVirtualThreads", defaultValue = "false")
+    private boolean useVirtualThreads;
+
+    /**
+     * Whether TCP sources should be fetched from a single thread using
+     * non-blocking I/O, instead of with one blocking connection per fetch.
+     * Recommended for large numbers of TCP sources.  JMX sources are fetched
+     * as usual afterwards.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.useNio", defaultValue = "false")
+    private boolean useNio;
+
+    /**
+     * The maximum number of TCP connections to keep open at the same time
+     * when 'useNio' is enabled.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.nioMaxConnections", defaultValue = "256")
+    private int nioMaxConnections;
+
+    /**
+     * A colon separated list of the classes to keep from each dump, unless
+     * configured for the source.  Class names may use the wildcards '*' and
+     * '?', as with the 'includes' of the JaCoCo agent, for example
+     * 'com.mycompany.*'.  Other classes are dropped while the dump is
+     * decoded, before they are written or merged.  By default all classes
+     * are kept.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.includes")
+    private String includes;
+
+    /**
+     * A colon separated list of the classes to drop from each dump, unless
+     * configured for the source, in the same format as 'includes'.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.excludes")
+    private String excludes;
+
+    /**
+     * The maximum number of milliseconds to wait for a connection to a
+     * source, unless configured for the source.  The default of 0 waits
+     * indefinitely.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.connectTimeout", defaultValue = "0")
+    private long connectTimeout;
+
+    /**
+     * The maximum number of milliseconds to wait for data from a source,
+     * unless configured for the source.  The default of 0 waits indefinitely.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.readTimeout", defaultValue = "0")
+    private long readTimeout;
+
+    /**
+     * The maximum number of milliseconds a fetch from a source may take in
+     * total, including retries, unless configured for the source.  The
+     * default of 0 sets no limit.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.fetchTimeout", defaultValue = "0")
+    private long fetchTimeout;
+
+    /**
+     * The number of times a failed fetch is retried, unless configured for
+     * the source.  Sources which are reset after fetching are only retried
+     * if the fetch failed before the dump was requested, for example while
+     * resolving or connecting, since the agent may have reset its data
+     * already and a retry would replace it with an empty dump.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.retries", defaultValue = "0")
+    private int retries;
+
+    /**
+     * The number of milliseconds to back off before the first retry.  The
+     * backoff doubles with every retry, and a random part of it is used, so
+     * retries against a struggling fleet spread out.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.retryBackoff", defaultValue = "100")
+    private long retryBackoff;
+
+    /**
+     * The latency percentile, for example 95, after which a second attempt is
+     * started alongside a slow fetch.  Whichever attempt succeeds first is
+     * kept.  Only applies to sources which are not reset after fetching.  The
+     * default of 0 disables hedging.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.hedgePercentile", defaultValue = "0")
+    private double hedgePercentile;
+
+    /**
+     * The number of bytes of fetched dumps which may be held in memory at
+     * once.  Every fetch reserves the size of the last dump of its source,
+     * and waits while the budget is exhausted, so many large JMX dumps can
+     * not be received at the same time.  The reservation is held until the
+     * dump has been written or merged.  The growth of the merged data itself
+     * is not counted, as it is bounded by the number of distinct classes
+     * rather than by the number of sources.  Does not apply to 'useNio',
+     * which never holds a whole dump.  The default of 0 does not limit
+     * memory.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.memoryBudget", defaultValue = "0")
+    private long memoryBudget;
+
+    /**
+     * The number of reserved bytes above which fetches buffer their dumps in
+     * temporary files in 'outputDir' instead of in memory, until they are
+     * merged.  Only applies when 'writeSourceFiles' is disabled, as source
+     * files are written to disk anyway.  The default of 0 never spills.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.spillThreshold", defaultValue = "0")
+    private long spillThreshold;
+
+    /**
+     * The size in bytes of the I/O buffers used to fetch, save, load and
+     * write execution data.  Buffers are pooled and reused across sources,
+     * so this is also roughly the memory each concurrent fetch or open file
+     * holds besides the data itself.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.bufferSize", defaultValue = "65536")
+    private int bufferSize;
+
+    /**
+     * The maximum number of idle I/O buffers kept for reuse.  Buffers needed
+     * beyond that are allocated as before and left to the garbage collector.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.pooledBuffers", defaultValue = "32")
+    private int pooledBuffers;
+
+    /**
+     * The number of consecutive failed runs after which a source is skipped
+     * for 'circuitBreakerCooldown' seconds.  The failures and latencies of
+     * all sources are remembered across runs in 'healthFile'.  The default
+     * of 0 disables the circuit breakers.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.circuitBreakerThreshold", defaultValue = "0")
+    private int circuitBreakerThreshold;
+
+    /**
+     * The number of seconds a source is skipped once its circuit breaker has
+     * opened.  Afterwards a single probe, without retries, decides whether
+     * the source is fetched again or skipped for twice as long.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.circuitBreakerCooldown", defaultValue = "300")
+    private long circuitBreakerCooldown;
+
+    /**
+     * The connect timeout, in milliseconds, of a probe of a source whose
+     * circuit breaker is half-open.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.circuitBreakerProbeTimeout", defaultValue = "2000")
+    private long circuitBreakerProbeTimeout;
+
+    /**
+     * The file where the health of the sources is kept between runs.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.healthFile", defaultValue = "${project.build.directory}/jacocotogo/health.properties")
+    private File healthFile;
+
+    /**
+     * The file where a JSON report of the run is written.  For each source it
+     * holds the outcome, the number of attempts, the time spent resolving,
+     * connecting, dumping, decoding and writing, and the number of bytes and
+     * classes fetched.  It also holds the duration and size of the merge.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.metricsFile", defaultValue = "${project.build.directory}/jacocotogo/metrics.json")
+    private File metricsFile;
+
+    /**
+     * The number of seconds the resolved address of a hostname is reused for.
+     * Sources sharing a host resolve it once, and hosts which can not be
+     * resolved are not looked up again within this time.  0 resolves the
+     * hostname of every source separately.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.dnsCacheTtl", defaultValue = "30")
+    private long dnsCacheTtl;
+
+    /**
+     * The maximum number of hostnames to resolve concurrently while the
+     * sources are validated, before any data is fetched.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.dnsParallelism", defaultValue = "16")
+    private int dnsParallelism;
+
+    /**
+     * The aggregate fetched data is merged into when 'writeSourceFiles' is
+     * disabled.
+     */
+    private ExecutionDataAggregate aggregate;
+
+    /**
+     * The journal fetched data is appended to when 'journalDirectory' is set.
+     */
+    private ExecutionDataJournal journal;
+
+    /**
+     * Fetches from the sources, with retries and hedging.
+     */
+    private SourceFetcher<?> fetcher;
+
+    /**
+     * The budget fetched dumps are reserved from.
+     */
+    private MemoryBudget budget;
+
+    /**
+     * Caches the JMX connections of this execution.
+     */
+    private JmxConnectionPool connectionPool;
+
+    /**
+     * The health of the sources when circuit breakers are enabled.
+     */
+    private SourceHealthStore health;
+
+    /**
+     * The key of each source in the health store and the report, taken
+     * before the sources are validated.
+     */
+    private Map<Source, String> sourceKeys;
+
+    /**
+     * The metrics of the current run.
+     */
+    private CollectionReport report;
+
+    /**
+     * Resolves the hostnames of the sources.
+     */
+    private HostResolver resolver;
 
     /** {@inheritDoc} */
     @Override
@@ -73,27 +455,187 @@ public class JaCoCoToGoBatchMojo extends AbstractMojo {
             handleError(new IllegalArgumentException("No sources specified."));
             return;
         }
-        for (int i = 0; i < sources.size(); i++) {
+        if (accumulate && (mergeShards != 1 || mergeHeapBudget > 0)) {
+            handleError(new IllegalArgumentException("Parameter 'accumulate' can not be combined with 'mergeShards' or 'mergeHeapBudget'."));
+            return;
+        }
+        if (merge && mergeHeapBudget > 0) {
+            if (journalDirectory != null || !writeSourceFiles) {
+                getLog().warn("Parameter 'mergeHeapBudget' is ignored, it only applies when merging source files.");
+            } else if (mergeParallelism > 1) {
+                getLog().warn("Parameter 'mergeParallelism' is ignored, files are merged one after another when 'mergeHeapBudget' is set.");
+            }
+        }
+        try {
+            BufferPool.configureShared(bufferSize, pooledBuffers);
+        } catch (IllegalArgumentException ex) {
+            handleError(ex);
+            return;
+        }
+        if (journalDirectory != null) {
             try {
-                Source source = sources.get(i);
-                if (source.getOutputFile() == null) {
-                    File outputFile = new File(outputDir, DEFAULT_OUTPUT_FILE_PREFIX + (i + 1) + DEFAULT_OUTPUT_FILE_SUFFIX);
-                    source.setOutputFile(outputFile);
-                }
-                source.validate();
-                getLog().debug(source.toString());
-                if (source.getSourceType() == SourceType.JMX) {
-                    JaCoCoToGo.fetchJaCoCoDataOverJmx(source.getServiceURL(), source.getUsername(), source.getPassword(), source.getOutputFile(), source.isResetAfterFetch());
-                } else if (source.getSourceType() == SourceType.TCP) {
-                    JaCoCoToGo.fetchJaCoCoDataOverTcp(source.getHostname(), source.getPort(), source.getOutputFile(), source.isResetAfterFetch());
+                journal = new ExecutionDataJournal(journalDirectory, journalCompactionThreshold);
+            } catch (IOException ex) {
+                handleError(ex);
+                return;
+            } catch (IllegalArgumentException ex) {
+                handleError(ex);
+                return;
+            }
+        } else if (!writeSourceFiles) {
+            if (!merge) {
+                handleError(new IllegalArgumentException("Parameter 'writeSourceFiles' can only be disabled when 'merge' is enabled."));
+                return;
+            }
+            if (!accumulate) {
+                // nothing but the merged data is kept, so refuse before the
+                // agents are dumped and reset rather than after
+                try {
+                    JaCoCoToGo.checkMergeFile(mergeFile, mergeShards);
+                } catch (JaCoCoToGoException ex) {
+                    handleError(ex);
+                    return;
+                } catch (IllegalArgumentException ex) {
+                    handleError(ex);
+                    return;
                 }
-            } catch (JaCoCoToGoValidationException ex) {
+            }
+            aggregate = new ExecutionDataAggregate();
+        }
+        if (circuitBreakerThreshold > 0) {
+            try {
+                health = new SourceHealthStore(healthFile, circuitBreakerThreshold, circuitBreakerCooldown * 1000);
+            } catch (IOException ex) {
+                closeJournal();
                 handleError(ex);
-            } catch (RuntimeException ex) {
+                return;
+            } catch (IllegalArgumentException ex) {
+                closeJournal();
                 handleError(ex);
+                return;
+            }
+        }
+        try {
+            resolver = new HostResolver(dnsCacheTtl * 1000);
+            if (dnsParallelism < 1) {
+                throw new IllegalArgumentException("Invalid 'dnsParallelism': '" + dnsParallelism + "'");
+            }
+            budget = new MemoryBudget(memoryBudget, spillThreshold);
+            connectionPool = new JmxConnectionPool();
+            if (journal != null) {
+                fetcher = new SourceFetcher<File>(SourceFetcher.Target.toJournal(journal, connectionPool), retryBackoff, hedgePercentile, budget);
+            } else if (aggregate != null) {
+                fetcher = new SourceFetcher<SourceFetcher.Buffered>(SourceFetcher.Target.toAggregate(aggregate, outputDir, connectionPool), retryBackoff, hedgePercentile, budget);
+            } else {
+                fetcher = new SourceFetcher<File>(SourceFetcher.Target.toFiles(null, connectionPool), retryBackoff, hedgePercentile, budget);
+            }
+        } catch (IllegalArgumentException ex) {
+            closeJournal();
+            handleError(ex);
+            return;
+        }
+        try {
+            collect();
+        } finally {
+            fetcher.close();
+            fetcher = null;
+            connectionPool = null;
+            resolver = null;
+            saveHealth();
+            writeReport();
+            closeJournal();
+            aggregate = null;
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                getLog().warn("Error closing journal.  Reason: '" + ex.getMessage() + "'");
+            }
+        }
+        journal = null;
+    }
+
+    private void collect() throws MojoExecutionException {
+        for (int i = 0; i < sources.size(); i++) {
+            Source source = sources.get(i);
+            if (source.getOutputFile() == null) {
+                File outputFile = new File(outputDir, DEFAULT_OUTPUT_FILE_PREFIX + (i + 1) + DEFAULT_OUTPUT_FILE_SUFFIX);
+                source.setOutputFile(outputFile);
+            }
+            source.applyDefaults(connectTimeout, readTimeout, fetchTimeout, retries);
+            source.applyFilterDefaults(includes, excludes);
+        }
+        report = new CollectionReport();
+        sourceKeys = new IdentityHashMap<Source, String>();
+        for (Source source : sources) {
+            sourceKeys.put(source, source.getKey());
+        }
+        List<Source> active = sources;
+        if (health != null) {
+            active = checkCircuitBreakers();
+        }
+        resolveHostnames(active);
+        try {
+            List<Source> remaining = active;
+            if (useNio) {
+                remaining = fetchTcpSourcesWithNio(active);
+            }
+            if (parallelism > 1) {
+                fetchConcurrently(remaining);
+            } else {
+                for (Source source : remaining) {
+                    try {
+                        fetch(source);
+                    } catch (JaCoCoToGoValidationException ex) {
+                        handleError(ex);
+                    } catch (RuntimeException ex) {
+                        handleError(ex);
+                    }
+                }
             }
+        } finally {
+            connectionPool.close();
         }
-        if (merge) {
+        if (health != null) {
+            reportHealth();
+        }
+        if (memoryBudget > 0) {
+            getLog().info("Peak memory reserved for fetched dumps: " + budget.getPeak() + " of " + memoryBudget + " bytes");
+        }
+        long mergeStart = System.currentTimeMillis();
+        if (journal != null) {
+            if (merge) {
+                try {
+                    ExecutionDataAggregate merged = new ExecutionDataAggregate();
+                    journal.load(merged);
+                    if (accumulate) {
+                        JaCoCoToGo.accumulateJaCoCoData(merged, mergeFile);
+                    } else {
+                        JaCoCoToGo.saveJaCoCoData(merged, mergeFile, mergeShards, shardBy);
+                    }
+                    report.merged(System.currentTimeMillis() - mergeStart, Collections.<File>emptyList(), MergeOutput.getFiles(mergeFile, mergeShards));
+                } catch (IOException ex) {
+                    handleError(ex);
+                } catch (RuntimeException ex) {
+                    handleError(ex);
+                }
+            }
+        } else if (aggregate != null) {
+            try {
+                if (accumulate) {
+                    JaCoCoToGo.accumulateJaCoCoData(aggregate, mergeFile);
+                } else {
+                    JaCoCoToGo.saveJaCoCoData(aggregate, mergeFile, mergeShards, shardBy);
+                }
+                report.merged(System.currentTimeMillis() - mergeStart, Collections.<File>emptyList(), MergeOutput.getFiles(mergeFile, mergeShards));
+            } catch (RuntimeException ex) {
+                handleError(ex);
+            }
+        } else if (merge) {
             try {
                 List<File> filesToMerge = new ArrayList<File>();
                 for (Source source : sources) {
@@ -101,13 +643,300 @@ public class JaCoCoToGoBatchMojo extends AbstractMojo {
                         filesToMerge.add(source.getOutputFile());
                     }
                 }
-                JaCoCoToGo.mergeJaCoCoData(filesToMerge, mergeFile);
+                if (accumulate) {
+                    JaCoCoToGo.accumulateJaCoCoData(filesToMerge, mergeFile, mergeParallelism);
+                } else if (mergeHeapBudget > 0) {
+                    JaCoCoToGo.mergeJaCoCoDataExternally(filesToMerge, mergeFile, mergeHeapBudget, mergeShards, shardBy);
+                } else {
+                    JaCoCoToGo.mergeJaCoCoData(filesToMerge, mergeFile, mergeParallelism, mergeShards, shardBy);
+                }
+                report.merged(System.currentTimeMillis() - mergeStart, filesToMerge, MergeOutput.getFiles(mergeFile, mergeShards));
             } catch (RuntimeException ex) {
                 handleError(ex);
             }
         }
     }
-    
+
+    /**
+     * Fetches from a single source, into the journal or aggregate if one is
+     * in use, or into the output file of the source otherwise.
+     */
+    private void fetch(Source source) throws JaCoCoToGoValidationException {
+        long start = System.currentTimeMillis();
+        FetchMetrics metrics;
+        try {
+            long dnsStart = System.nanoTime();
+            source.validate(resolver);
+            long dnsNanos = System.nanoTime() - dnsStart;
+            getLog().debug(source.toString());
+            metrics = fetcher.fetch(source);
+            metrics.add(FetchMetrics.Phase.DNS, dnsNanos);
+        } catch (JaCoCoToGoValidationException ex) {
+            recordFailure(source, System.currentTimeMillis() - start, ex);
+            throw ex;
+        } catch (RuntimeException ex) {
+            recordFailure(source, System.currentTimeMillis() - start, ex);
+            throw ex;
+        }
+        recordSuccess(source, System.currentTimeMillis() - start, metrics);
+    }
+
+    /**
+     * Skips the sources whose circuit breaker is open, and makes the fetch
+     * from sources whose breaker is half-open a cheap probe.
+     *
+     * @return the sources to fetch from.
+     */
+    private List<Source> checkCircuitBreakers() throws MojoExecutionException {
+        List<Source> active = new ArrayList<Source>();
+        for (Source source : sources) {
+            String key = sourceKeys.get(source);
+            SourceHealthStore.State state = health.getState(key);
+            if (state == SourceHealthStore.State.OPEN) {
+                report.skipped(key, source, "circuit breaker open");
+                handleError(new JaCoCoToGoException("Skipping '" + key + "', its circuit breaker is open."));
+                continue;
+            }
+            if (state == SourceHealthStore.State.HALF_OPEN) {
+                getLog().info("Probing '" + key + "', its circuit breaker is half-open.");
+                source.setRetries(0);
+                if (source.getConnectTimeout() == 0 || source.getConnectTimeout() > circuitBreakerProbeTimeout) {
+                    source.setConnectTimeout(circuitBreakerProbeTimeout);
+                }
+            }
+            active.add(source);
+        }
+        return active;
+    }
+
+    private void recordSuccess(Source source, long latencyMillis, FetchMetrics metrics) {
+        String key = sourceKeys.get(source);
+        report.success(key, source, latencyMillis, metrics);
+        if (health != null) {
+            health.success(key, latencyMillis);
+        }
+    }
+
+    private void recordFailure(Source source, long latencyMillis, Exception ex) {
+        String key = sourceKeys.get(source);
+        report.failure(key, source, latencyMillis, ex);
+        if (health != null) {
+            health.failure(key, ex.getMessage());
+        }
+    }
+
+    /**
+     * Logs the state of the circuit breakers after the run.
+     */
+    private void reportHealth() {
+        List<String> keys = new ArrayList<String>();
+        int closed = 0;
+        int open = 0;
+        int halfOpen = 0;
+        for (Source source : sources) {
+            String key = sourceKeys.get(source);
+            keys.add(key);
+            switch (health.getState(key)) {
+                case CLOSED:
+                    closed++;
+                    break;
+                case OPEN:
+                    open++;
+                    break;
+                default:
+                    halfOpen++;
+            }
+        }
+        getLog().info("Circuit breakers: " + closed + " closed, " + open + " open, " + halfOpen + " half-open.");
+        for (String line : health.describe(keys)) {
+            getLog().info("  " + line);
+        }
+    }
+
+    private void saveHealth() {
+        if (health != null) {
+            try {
+                health.save();
+            } catch (IOException ex) {
+                getLog().warn("Unable to save source health to '" + healthFile.getAbsolutePath() + "'.  Reason: '" + ex.getMessage() + "'");
+            }
+        }
+        health = null;
+    }
+
+    private void writeReport() {
+        if (report != null && metricsFile != null) {
+            try {
+                report.write(metricsFile);
+                getLog().debug("Wrote collection metrics to '" + metricsFile.getAbsolutePath() + "'");
+            } catch (IOException ex) {
+                getLog().warn("Unable to write collection metrics to '" + metricsFile.getAbsolutePath() + "'.  Reason: '" + ex.getMessage() + "'");
+            }
+        }
+        report = null;
+        sourceKeys = null;
+    }
+
+    /**
+     * Resolves the hostnames of all sources concurrently, so that the
+     * validation of each source before its fetch finds the address in the
+     * cache.  Sources which fail to validate here are left for their fetch
+     * to report.
+     */
+    private void resolveHostnames(List<Source> sources) throws MojoExecutionException {
+        int threads = Math.min(dnsParallelism, sources.size());
+        if (threads < 2) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        ExecutorService executor = CollectionExecutors.newExecutor(threads, false);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(sources.size());
+            for (final Source source : sources) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        source.validate(resolver);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    // reported when the source is fetched
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while resolving hostnames.", ex);
+        } finally {
+            executor.shutdownNow();
+        }
+        getLog().debug("Validated " + sources.size() + " sources in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Fetches from all TCP sources on a single thread with a
+     * {@link NioTcpCollector}.  Sources which failed are retried with
+     * blocking fetches, if they have retries left.
+     *
+     * @return the sources which still need to be fetched.
+     */
+    private List<Source> fetchTcpSourcesWithNio(List<Source> sources) throws MojoExecutionException {
+        NioTcpCollector collector = new NioTcpCollector(nioMaxConnections);
+        List<NioTcpCollector.Request> requests = new ArrayList<NioTcpCollector.Request>();
+        List<Source> requested = new ArrayList<Source>();
+        List<Source> remaining = new ArrayList<Source>();
+        for (Source source : sources) {
+            try {
+                long dnsStart = System.nanoTime();
+                source.validate(resolver);
+                long dnsNanos = System.nanoTime() - dnsStart;
+                if (source.getSourceType() != SourceType.TCP) {
+                    remaining.add(source);
+                    continue;
+                }
+                getLog().debug(source.toString());
+                DumpSink sink;
+                if (journal != null) {
+                    sink = DumpSink.toJournal(journal);
+                } else if (aggregate != null) {
+                    sink = DumpSink.toVisitors(aggregate, aggregate);
+                } else {
+                    sink = DumpSink.toFile(source.getOutputFile());
+                }
+                NioTcpCollector.Request request = collector.add(source.getAddress(), source.getPort(), source.isResetAfterFetch(),
+                        source.getConnectTimeout(), source.getReadTimeout(), source.getTimeout(), source.getClassFilter(), sink);
+                request.getMetrics().add(FetchMetrics.Phase.DNS, dnsNanos);
+                requests.add(request);
+                requested.add(source);
+            } catch (RuntimeException ex) {
+                recordFailure(source, 0, ex);
+                handleError(ex);
+            }
+        }
+        try {
+            collector.run();
+        } catch (IOException ex) {
+            handleError(ex);
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            NioTcpCollector.Request request = requests.get(i);
+            Source source = requested.get(i);
+            if (request.getFailure() == null) {
+                recordSuccess(source, request.getLatency(), request.getMetrics());
+                continue;
+            }
+            if (!(request.getFailure() instanceof JaCoCoToGoException) || source.getRetries() == 0 || request.getStarted() == 0) {
+                recordFailure(source, request.getStarted() == 0 ? 0 : System.currentTimeMillis() - request.getStarted(), request.getFailure());
+                handleError(request.getFailure());
+                continue;
+            }
+            if (!SourceFetcher.isRetryable(source, request.getMetrics())) {
+                JaCoCoToGoException failure = SourceFetcher.notRetryable(source, request.getFailure());
+                recordFailure(source, System.currentTimeMillis() - request.getStarted(), failure);
+                handleError(failure);
+                continue;
+            }
+            getLog().debug("Retrying " + source + " after: '" + request.getFailure().getMessage() + "'");
+            try {
+                FetchMetrics metrics = fetcher.retry(source, request.getStarted(), 1);
+                recordSuccess(source, System.currentTimeMillis() - request.getStarted(), metrics);
+            } catch (JaCoCoToGoValidationException ex) {
+                recordFailure(source, System.currentTimeMillis() - request.getStarted(), ex);
+                handleError(ex);
+            } catch (RuntimeException ex) {
+                recordFailure(source, System.currentTimeMillis() - request.getStarted(), ex);
+                handleError(ex);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Fetches from all sources using up to 'parallelism' threads.  Errors are
+     * reported in source order once the corresponding fetch has completed, so
+     * 'failOnError' still fails on the first failing source and abandons the
+     * fetches which are still outstanding.
+     */
+    private void fetchConcurrently(List<Source> sources) throws MojoExecutionException {
+        if (sources.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(parallelism, sources.size());
+        getLog().info("Fetching from " + sources.size() + " sources using " + threads + " concurrent fetches.");
+        ExecutorService executor = CollectionExecutors.newExecutor(threads, useVirtualThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(sources.size());
+            for (final Source source : sources) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws JaCoCoToGoValidationException {
+                        fetch(source);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    handleError((Exception) cause);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while fetching JaCoCo execution data.", ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private void handleError(Exception ex) throws MojoExecutionException {
         if (failOnError) {
             throw new MojoExecutionException("Error while running plugin.", ex);
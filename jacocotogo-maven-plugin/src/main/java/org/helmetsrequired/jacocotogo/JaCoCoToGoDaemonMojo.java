@@ -0,0 +1,360 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Continuously collects JaCoCo execution data from multiple sources.
+ *
+ * Every 'pollInterval' seconds each source is asked for a dump and reset, and
+ * the delta is merged into a running in-memory aggregate.  The aggregate is
+ * written to 'outputFile' every 'checkpointInterval' seconds and when the goal
+ * ends, including when the build is stopped with Ctrl-C or SIGTERM, so
+ * coverage gathered over a long soak test survives restarts of the remote
+ * JVMs as well as of the build.  If 'outputFile' already exists it is loaded
+ * on startup and collection continues from there.
+ *
+ * @author Matthew C. Jenkins
+ * @since 1.2
+ */
+@Mojo(name = "daemon")
+public class JaCoCoToGoDaemonMojo extends AbstractMojo {
+
+    /**
+     * The number of seconds a shutdown of the JVM waits for the final
+     * checkpoint.
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+    /**
+     * The number of seconds the end of collection waits for running fetches,
+     * whose dumps have reset their sources already, before the final
+     * checkpoint.  Leaves time within {@link #SHUTDOWN_TIMEOUT_SECONDS} to
+     * write it.
+     */
+    private static final long FETCH_DRAIN_SECONDS = 30;
+
+    /**
+     * a {@link java.util.List} of {@link org.helmetsrequired.jacocotogo.Source}
+     * from which JaCoCo execution data should be collected.  The
+     * 'resetAfterFetch' setting of the sources is ignored, sources are always
+     * reset after fetching.
+     */
+    @Parameter(required = true)
+    private List<Source> sources;
+
+    /**
+     * The file where the aggregated JaCoCo execution data is checkpointed.
+     */
+    @Parameter(property = "jacocotogo.outputFile", defaultValue = "${project.build.directory}/jacocotogo/daemon.exec")
+    private File outputFile;
+
+    /**
+     * The number of seconds between two fetches from the sources.
+     */
+    @Parameter(property = "jacocotogo.pollInterval", defaultValue = "60")
+    private long pollInterval;
+
+    /**
+     * The number of seconds between two checkpoints of the aggregated data.
+     */
+    @Parameter(property = "jacocotogo.checkpointInterval", defaultValue = "600")
+    private long checkpointInterval;
+
+    /**
+     * The number of seconds to collect for.  The default of 0 collects until
+     * the build is interrupted.
+     */
+    @Parameter(property = "jacocotogo.duration", defaultValue = "0")
+    private long duration;
+
+    /**
+     * The maximum number of milliseconds to wait for a connection to a
+     * source, unless configured for the source.
+     */
+    @Parameter(property = "jacocotogo.connectTimeout", defaultValue = "10000")
+    private long connectTimeout;
+
+    /**
+     * The maximum number of milliseconds to wait for data from a source,
+     * unless configured for the source.
+     */
+    @Parameter(property = "jacocotogo.readTimeout", defaultValue = "30000")
+    private long readTimeout;
+
+    /**
+     * The maximum number of milliseconds a fetch from a source may take in
+     * total, unless configured for the source.  A poll waits at most this
+     * long, or the longest timeout configured for a source, for its fetches,
+     * so a hung source can not hold up later polls and checkpoints.
+     */
+    @Parameter(property = "jacocotogo.fetchTimeout", defaultValue = "60000")
+    private long fetchTimeout;
+
+    /**
+     * The maximum number of sources to fetch from concurrently.
+     */
+    @Parameter(property = "jacocotogo.parallelism", defaultValue = "1")
+    private int parallelism;
+
+    /**
+     * Whether concurrent fetches should run on virtual threads, if the JVM
+     * supports them.
+     */
+    @Parameter(property = "jacocotogo.useVirtualThreads", defaultValue = "false")
+    private boolean useVirtualThreads;
+
+    /**
+     * The number of seconds the resolved address of a hostname is reused for,
+     * across polls.  0 resolves the hostname of every source on every poll.
+     */
+    @Parameter(property = "jacocotogo.dnsCacheTtl", defaultValue = "30")
+    private long dnsCacheTtl;
+
+    /**
+     * The size in bytes of the I/O buffers used to fetch and checkpoint
+     * execution data.  Buffers are pooled and reused across polls.
+     */
+    @Parameter(property = "jacocotogo.bufferSize", defaultValue = "65536")
+    private int bufferSize;
+
+    /**
+     * The maximum number of idle I/O buffers kept for reuse across polls.
+     */
+    @Parameter(property = "jacocotogo.pooledBuffers", defaultValue = "32")
+    private int pooledBuffers;
+
+    /**
+     * A colon separated list of the classes to keep from each dump, unless
+     * configured for the source.  Class names may use the wildcards '*' and
+     * '?', as with the 'includes' of the JaCoCo agent.  By default all
+     * classes are kept.
+     */
+    @Parameter(property = "jacocotogo.includes")
+    private String includes;
+
+    /**
+     * A colon separated list of the classes to drop from each dump, unless
+     * configured for the source, in the same format as 'includes'.
+     */
+    @Parameter(property = "jacocotogo.excludes")
+    private String excludes;
+
+    /**
+     * Resolves the hostnames of the sources.
+     */
+    private HostResolver resolver;
+
+    /**
+     * Caches the JMX connections of this execution between polls.
+     */
+    private JmxConnectionPool connectionPool;
+
+    /**
+     * The last fetch of each source, by index.
+     */
+    private List<Future<Void>> running;
+
+    /**
+     * Set by the shutdown hook to end collection.
+     */
+    private volatile boolean stopping;
+
+    /** {@inheritDoc} */
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (sources == null || sources.isEmpty()) {
+            throw new MojoFailureException("No sources specified.");
+        }
+        if (pollInterval < 1 || checkpointInterval < 1 || duration < 0 || dnsCacheTtl < 0) {
+            throw new MojoFailureException("Parameters 'pollInterval' and 'checkpointInterval' must be positive, 'duration' and 'dnsCacheTtl' must not be negative.");
+        }
+        if (connectTimeout < 0 || readTimeout < 0 || fetchTimeout < 1) {
+            throw new MojoFailureException("Parameters 'connectTimeout' and 'readTimeout' must not be negative, 'fetchTimeout' must be positive.");
+        }
+        if (bufferSize < 1 || pooledBuffers < 0) {
+            throw new MojoFailureException("Parameter 'bufferSize' must be positive, 'pooledBuffers' must not be negative.");
+        }
+        BufferPool.configureShared(bufferSize, pooledBuffers);
+        resolver = new HostResolver(TimeUnit.SECONDS.toMillis(dnsCacheTtl));
+        for (Source source : sources) {
+            if (!source.isResetAfterFetch()) {
+                getLog().warn("Ignoring 'resetAfterFetch=false' for source: " + source);
+                source.setResetAfterFetch(true);
+            }
+            source.applyFilterDefaults(includes, excludes);
+            // sources are polled again anyway, and a retry after a reset
+            // would replace the dump with an empty one
+            source.applyDefaults(connectTimeout, readTimeout, fetchTimeout, 0);
+        }
+        running = new ArrayList<Future<Void>>(Collections.<Future<Void>>nCopies(sources.size(), null));
+        long pollTimeout = fetchTimeout;
+        for (Source source : sources) {
+            if (source.getTimeout() > pollTimeout) {
+                pollTimeout = source.getTimeout();
+            }
+        }
+
+        ExecutionDataAggregate aggregate = new ExecutionDataAggregate();
+        if (outputFile.exists()) {
+            getLog().info("Resuming from checkpoint: '" + outputFile.getAbsolutePath() + "'");
+            try {
+                JaCoCoToGo.loadJaCoCoData(outputFile, aggregate);
+            } catch (JaCoCoToGoException ex) {
+                throw new MojoExecutionException("Unable to load checkpoint: '" + outputFile.getAbsolutePath() + "'", ex);
+            }
+        }
+
+        long pollMillis = TimeUnit.SECONDS.toMillis(pollInterval);
+        long checkpointMillis = TimeUnit.SECONDS.toMillis(checkpointInterval);
+        long end = duration == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(duration);
+        ExecutorService executor = CollectionExecutors.newExecutor(Math.max(1, Math.min(parallelism, sources.size())), useVirtualThreads);
+        connectionPool = new JmxConnectionPool();
+        getLog().info("Collecting from " + sources.size() + " sources every " + pollInterval + " seconds, checkpointing to '" + outputFile.getAbsolutePath() + "' every " + checkpointInterval + " seconds.");
+        // Ctrl-C and SIGTERM run the shutdown hooks without interrupting this
+        // thread, so the hook stops the loop and waits for the final checkpoint
+        final Thread collector = Thread.currentThread();
+        final CountDownLatch checkpointed = new CountDownLatch(1);
+        Thread shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopping = true;
+                collector.interrupt();
+                try {
+                    if (!checkpointed.await(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        getLog().warn("Final checkpoint not written within " + SHUTDOWN_TIMEOUT_SECONDS + " seconds.");
+                    }
+                } catch (InterruptedException ex) {
+                    // bummer
+                }
+            }
+        }, "jacocotogo-daemon-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        try {
+            long nextCheckpoint = System.currentTimeMillis() + checkpointMillis;
+            while (!stopping) {
+                long pollStart = System.currentTimeMillis();
+                poll(executor, aggregate, pollTimeout);
+                long now = System.currentTimeMillis();
+                if (now >= end) {
+                    break;
+                }
+                if (now >= nextCheckpoint) {
+                    checkpoint(aggregate);
+                    nextCheckpoint = now + checkpointMillis;
+                }
+                long sleep = Math.min(pollStart + pollMillis, end) - System.currentTimeMillis();
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            getLog().info("Interrupted, writing final checkpoint.");
+        } finally {
+            // fetches still running have reset their sources, so their data
+            // must reach the aggregate before the final checkpoint
+            executor.shutdown();
+            boolean interrupted = Thread.interrupted();
+            try {
+                if (!executor.awaitTermination(FETCH_DRAIN_SECONDS, TimeUnit.SECONDS)) {
+                    getLog().warn("Fetches still running after " + FETCH_DRAIN_SECONDS + " seconds, their data is not checkpointed.");
+                }
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+            executor.shutdownNow();
+            connectionPool.close();
+            checkpoint(aggregate);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            checkpointed.countDown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ex) {
+                // the JVM is shutting down and the hook is running already
+            }
+        }
+    }
+
+    /**
+     * Fetches a delta from every source into aggregate, waiting at most
+     * timeout milliseconds.  Failing sources are logged and retried on the
+     * next poll.  Fetches which are still running when the wait ends merge
+     * their data when they complete, and their sources are skipped until
+     * then.
+     */
+    private void poll(ExecutorService executor, final ExecutionDataAggregate aggregate, long timeout) throws InterruptedException {
+        for (int i = 0; i < sources.size(); i++) {
+            if (running.get(i) != null && !running.get(i).isDone()) {
+                getLog().warn("Still fetching from source " + (i + 1) + ", skipping it in this poll.");
+                continue;
+            }
+            final Source source = sources.get(i);
+            running.set(i, executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws JaCoCoToGoValidationException {
+                    source.validate(resolver);
+                    JaCoCoToGo.fetchJaCoCoData(source, aggregate, aggregate, FetchTimeouts.forSource(source), new FetchMetrics(), connectionPool);
+                    return null;
+                }
+            }));
+        }
+        int failures = 0;
+        long deadline = System.currentTimeMillis() + timeout;
+        for (int i = 0; i < running.size(); i++) {
+            try {
+                running.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ex) {
+                failures++;
+                getLog().warn("Unable to collect from source " + (i + 1) + ".  Reason: '" + ex.getCause().getMessage() + "'");
+            } catch (TimeoutException ex) {
+                failures++;
+                getLog().warn("Fetch from source " + (i + 1) + " did not complete within " + timeout + " ms, not waiting for it.");
+            }
+        }
+        getLog().debug("Poll complete, " + (sources.size() - failures) + " of " + sources.size() + " sources collected, " + aggregate.getClassCount() + " classes aggregated.");
+    }
+
+    private void checkpoint(ExecutionDataAggregate aggregate) {
+        if (aggregate.isEmpty()) {
+            return;
+        }
+        getLog().info("Writing checkpoint to '" + outputFile.getAbsolutePath() + "'");
+        try {
+            JaCoCoToGo.replaceJaCoCoData(aggregate, outputFile);
+        } catch (JaCoCoToGoException ex) {
+            getLog().warn("Unable to write checkpoint.  Reason: '" + ex.getMessage() + "'");
+        }
+    }
+}
@@ -66,6 +66,25 @@ public class JaCoCoToGoJmxMojo extends AbstractMojo {
     @Parameter(property = "jacocotogo.resetAfterFetch", defaultValue = "true")
     private boolean resetAfterFetch;
 
+    /**
+     * A colon separated list of the classes to keep from the dump, which may
+     * use the wildcards '*' and '?', as with the 'includes' of the JaCoCo
+     * agent.  By default all classes are kept.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.includes")
+    private String includes;
+
+    /**
+     * A colon separated list of the classes to drop from the dump, in the
+     * same format as 'includes'.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.excludes")
+    private String excludes;
+
     /** {@inheritDoc} */
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {                                
@@ -77,8 +96,9 @@ public class JaCoCoToGoJmxMojo extends AbstractMojo {
             directory.mkdirs();
         }
         
+        JmxConnectionPool connectionPool = new JmxConnectionPool();
         try {            
-            JaCoCoToGo.fetchJaCoCoDataOverJmx(serviceURL, username, password, file, resetAfterFetch);
+            JaCoCoToGo.fetchJaCoCoDataOverJmx(serviceURL, username, password, file, resetAfterFetch, FetchTimeouts.NONE, new FetchMetrics(), ClassFilter.of(includes, excludes), connectionPool);
         } catch (JaCoCoToGoException ex) {
             getLog().warn("Exception while running plugin.  failOnError = " + failOnError + ". " + ex.getMessage());
             if (failOnError) {                
@@ -89,7 +109,9 @@ public class JaCoCoToGoJmxMojo extends AbstractMojo {
             if (failOnError) {
                 throw new MojoFailureException("Exception while running plugin", ex);
             }
-        }        
+        } finally {
+            connectionPool.close();
+        }
     }
     
     /**
@@ -62,6 +62,25 @@ public class JaCoCoToGoTcpMojo extends AbstractMojo {
     @Parameter(property = "jacocotogo.resetAfterFetch", defaultValue = "true")
     private boolean resetAfterFetch;
 
+    /**
+     * A colon separated list of the classes to keep from the dump, which may
+     * use the wildcards '*' and '?', as with the 'includes' of the JaCoCo
+     * agent.  By default all classes are kept.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.includes")
+    private String includes;
+
+    /**
+     * A colon separated list of the classes to drop from the dump, in the
+     * same format as 'includes'.
+     *
+     * @since 1.2
+     */
+    @Parameter(property = "jacocotogo.excludes")
+    private String excludes;
+
     /** {@inheritDoc} */
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {                                
@@ -74,7 +93,7 @@ public class JaCoCoToGoTcpMojo extends AbstractMojo {
         }
         
         try {            
-            JaCoCoToGo.fetchJaCoCoDataOverTcp(hostname, port, file, resetAfterFetch);
+            JaCoCoToGo.fetchJaCoCoDataOverTcp(hostname, port, file, resetAfterFetch, FetchTimeouts.NONE, new FetchMetrics(), ClassFilter.of(includes, excludes));
         } catch (JaCoCoToGoException ex) {
             getLog().warn("Exception while running plugin.  failOnError = " + failOnError + ". " + ex.getMessage());
             if (failOnError) {
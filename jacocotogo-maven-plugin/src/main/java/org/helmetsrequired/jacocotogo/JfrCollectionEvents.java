@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder events of {@link CollectionEvents}.  This class
+ * refers to the {@code jdk.jfr} API and must only be loaded after it has
+ * been found to be available.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class JfrCollectionEvents {
+
+    private static final String CATEGORY = "JaCoCoToGo";
+
+    /**
+     * The event types, in the order of {@link CollectionEvents.Kind}, so
+     * whether a kind is recorded can be checked without creating an event.
+     */
+    private static final EventType[] TYPES = {
+        EventType.getEventType(FetchEvent.class),
+        EventType.getEventType(DecodeEvent.class),
+        EventType.getEventType(SaveEvent.class),
+        EventType.getEventType(MergeEvent.class)
+    };
+
+    private JfrCollectionEvents() {
+    }
+
+    static CollectionEvents.Span begin(CollectionEvents.Kind kind) {
+        if (!TYPES[kind.ordinal()].isEnabled()) {
+            return CollectionEvents.NONE;
+        }
+        CollectionEvent event;
+        switch (kind) {
+            case FETCH:
+                event = new FetchEvent();
+                break;
+            case DECODE:
+                event = new DecodeEvent();
+                break;
+            case SAVE:
+                event = new SaveEvent();
+                break;
+            default:
+                event = new MergeEvent();
+        }
+        event.begin();
+        return new EventSpan(event);
+    }
+
+    /**
+     * Ends and commits a JFR event.
+     */
+    private static class EventSpan extends CollectionEvents.Span {
+
+        private final CollectionEvent event;
+
+        EventSpan(CollectionEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        boolean isRecording() {
+            return true;
+        }
+
+        @Override
+        void end(Object source, long bytes, int classes) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.source = String.valueOf(source);
+                event.bytes = bytes;
+                event.classes = classes;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * The fields shared by all events.
+     */
+    @Category(CATEGORY)
+    abstract static class CollectionEvent extends Event {
+
+        @Label("Source")
+        @Description("The source, file or address worked on")
+        String source;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Classes")
+        @Description("The number of classes with execution data")
+        int classes;
+    }
+
+    @Name("org.helmetsrequired.jacocotogo.Fetch")
+    @Label("JaCoCo Fetch")
+    @Description("Fetching a dump of execution data from a source")
+    static class FetchEvent extends CollectionEvent {
+    }
+
+    @Name("org.helmetsrequired.jacocotogo.Decode")
+    @Label("JaCoCo Decode")
+    @Description("Decoding execution data into memory")
+    static class DecodeEvent extends CollectionEvent {
+    }
+
+    @Name("org.helmetsrequired.jacocotogo.Save")
+    @Label("JaCoCo Save")
+    @Description("Writing execution data to a file")
+    static class SaveEvent extends CollectionEvent {
+    }
+
+    @Name("org.helmetsrequired.jacocotogo.Merge")
+    @Label("JaCoCo Merge")
+    @Description("Merging execution data files into one")
+    static class MergeEvent extends CollectionEvent {
+    }
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of connected {@link javax.management.remote.JMXConnector}s, keyed
+ * by service URL and credentials.
+ *
+ * Connections are shared between callers, as the underlying
+ * {@link javax.management.MBeanServerConnection} is thread safe.  A connection
+ * which reported a failure, or which has been idle long enough to warrant
+ * checking and does not answer a cheap request, is closed and replaced.
+ * Connections idle for longer than the idle timeout are closed in the
+ * background, unless they are checked out, and all connections are closed by
+ * {@link #close()}.
+ *
+ * @author Matthew C. Jenkins
+ * @since 1.2
+ */
+public class JmxConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(JmxConnectionPool.class);
+    private static final String JMX_CREDENTIALS_KEY = "jmx.remote.credentials";
+
+    /**
+     * The default time after which an unused connection is closed.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    /**
+     * The default time after which an unused connection is checked before it
+     * is handed out again.
+     */
+    public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final long idleTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+    private ScheduledExecutorService evictor;
+    private boolean closed;
+
+    /**
+     * Creates a pool with the default idle timeout and validation interval.
+     */
+    public JmxConnectionPool() {
+        this(DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_VALIDATION_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param idleTimeoutMillis the time after which an unused connection is
+     * closed.
+     * @param validationIntervalMillis the time after which an unused
+     * connection is checked before it is handed out again.
+     */
+    public JmxConnectionPool(long idleTimeoutMillis, long validationIntervalMillis) {
+        if (idleTimeoutMillis < 1) {
+            throw new IllegalArgumentException("Invalid idle timeout: '" + idleTimeoutMillis + "'");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    /**
+     * Returns a connected {@link javax.management.remote.JMXConnector} for the
+     * given service URL and credentials, reusing a cached connection if a
+     * healthy one is available.  The returned connector must not be closed by
+     * the caller, use {@link #invalidate} to discard a broken connection, and
+     * {@link #release} once it is no longer used.
+     *
+     * @param url the {@link javax.management.remote.JMXServiceURL} to connect to.
+     * @param username the username to use if authentication is enabled.
+     * @param password the password to use if authentication is enabled.
+     * @return a connected {@link javax.management.remote.JMXConnector}.
+     * @throws IOException if a new connection can not be established.
+     */
+    public JMXConnector getConnector(JMXServiceURL url, String username, String password) throws IOException {
+        Key key = new Key(url, username, password);
+        Entry entry;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("JmxConnectionPool is closed.");
+            }
+            entry = entries.get(key);
+            if (entry != null) {
+                // keep it from being evicted while it is validated
+                entry.checkouts++;
+            }
+        }
+        if (entry != null) {
+            if (isHealthy(entry)) {
+                entry.lastUsed = System.currentTimeMillis();
+                return entry.connector;
+            }
+            release(url, username, password, entry.connector);
+            invalidate(url, username, password, entry.connector);
+        }
+        return connect(key);
+    }
+
+    /**
+     * Returns a connector obtained from {@link #getConnector}, which may be
+     * evicted once it has been idle for the idle timeout.  Has no effect if
+     * the connector has been invalidated in the meantime.
+     *
+     * @param url the {@link javax.management.remote.JMXServiceURL} of the connector.
+     * @param username the username of the connector.
+     * @param password the password of the connector.
+     * @param connector the {@link javax.management.remote.JMXConnector} no
+     * longer used.
+     */
+    public void release(JMXServiceURL url, String username, String password, JMXConnector connector) {
+        Key key = new Key(url, username, password);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.connector != connector || entry.checkouts == 0) {
+                return;
+            }
+            entry.checkouts--;
+            entry.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Removes connector from the pool and closes it.  Has no effect if a
+     * different connector has been cached for the key in the meantime.
+     *
+     * @param url the {@link javax.management.remote.JMXServiceURL} of the connector.
+     * @param username the username of the connector.
+     * @param password the password of the connector.
+     * @param connector the broken {@link javax.management.remote.JMXConnector}.
+     */
+    public void invalidate(JMXServiceURL url, String username, String password, JMXConnector connector) {
+        Key key = new Key(url, username, password);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.connector != connector) {
+                return;
+            }
+            entries.remove(key);
+        }
+        logger.debug("Discarding JMX connection to: '{}'", url);
+        closeQuietly(connector);
+    }
+
+    private JMXConnector connect(Key key) throws IOException {
+        Map<String, Object> envMap = new HashMap<String, Object>();
+        envMap.put(JMX_CREDENTIALS_KEY, new String[]{key.username, key.password});
+        logger.debug("Connecting to JMXServiceURL: '{}'", key.url);
+        final JMXConnector connector = JMXConnectorFactory.newJMXConnector(key.url, envMap);
+        connector.connect();
+        final Entry entry = new Entry(connector);
+        connector.addConnectionNotificationListener(new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                String type = notification.getType();
+                if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+                    entry.failed = true;
+                }
+            }
+        }, null, null);
+        synchronized (this) {
+            if (closed) {
+                closeQuietly(connector);
+                throw new IllegalStateException("JmxConnectionPool is closed.");
+            }
+            Entry existing = entries.get(key);
+            if (existing == null || existing.failed) {
+                entry.checkouts++;
+                entries.put(key, entry);
+                startEvictor();
+                if (existing != null) {
+                    closeQuietly(existing.connector);
+                }
+                return connector;
+            }
+            // another caller connected concurrently, share its connection
+            existing.checkouts++;
+            existing.lastUsed = System.currentTimeMillis();
+            closeQuietly(connector);
+            return existing.connector;
+        }
+    }
+
+    private boolean isHealthy(Entry entry) {
+        if (entry.failed) {
+            return false;
+        }
+        if (System.currentTimeMillis() - entry.lastUsed < validationIntervalMillis) {
+            return true;
+        }
+        try {
+            entry.connector.getMBeanServerConnection().getDefaultDomain();
+            return true;
+        } catch (IOException ex) {
+            logger.debug("Cached JMX connection failed validation: {}", ex.getMessage());
+            return false;
+        }
+    }
+
+    private void startEvictor() {
+        if (evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jacocotogo-jmx-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes all connections which have not been used within the idle
+     * timeout, except those still checked out.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<JMXConnector> evicted = new ArrayList<JMXConnector>();
+        synchronized (this) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                if (entry.failed || (entry.checkouts == 0 && now - entry.lastUsed > idleTimeoutMillis)) {
+                    it.remove();
+                    evicted.add(entry.connector);
+                }
+            }
+        }
+        if (!evicted.isEmpty()) {
+            logger.debug("Closing {} idle JMX connections", evicted.size());
+        }
+        for (JMXConnector connector : evicted) {
+            closeQuietly(connector);
+        }
+    }
+
+    /**
+     * Closes all pooled connections.  Further calls to
+     * {@link #getConnector} fail.
+     */
+    public void close() {
+        List<JMXConnector> connectors = new ArrayList<JMXConnector>();
+        synchronized (this) {
+            closed = true;
+            for (Entry entry : entries.values()) {
+                connectors.add(entry.connector);
+            }
+            entries.clear();
+            if (evictor != null) {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+        }
+        for (JMXConnector connector : connectors) {
+            closeQuietly(connector);
+        }
+    }
+
+    private static void closeQuietly(JMXConnector connector) {
+        try {
+            connector.close();
+        } catch (IOException ex) {
+            // bummer
+        }
+    }
+
+    private static class Entry {
+
+        private final JMXConnector connector;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean failed;
+        /**
+         * The number of callers using the connector, guarded by the pool.
+         */
+        private int checkouts;
+
+        Entry(JMXConnector connector) {
+            this.connector = connector;
+        }
+    }
+
+    private static class Key {
+
+        private final JMXServiceURL url;
+        private final String username;
+        private final String password;
+
+        Key(JMXServiceURL url, String username, String password) {
+            this.url = url;
+            this.username = username == null ? "" : username;
+            this.password = password == null ? "" : password;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return url.equals(other.url) && username.equals(other.username) && password.equals(other.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return (url.hashCode() * 31 + username.hashCode()) * 31 + password.hashCode();
+        }
+    }
+}
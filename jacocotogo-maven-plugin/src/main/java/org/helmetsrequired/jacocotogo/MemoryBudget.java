@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A budget of heap bytes shared by all fetches of a collection.
+ *
+ * The size of a dump is only known once it has been received, and a dump
+ * from the JaCoCo MBean arrives as a single {@code byte[]}, so every attempt
+ * reserves the size of the last dump of its source up front, or the largest
+ * dump seen so far if the source has not been fetched yet.  Attempts wait
+ * while their reservation does not fit the remaining budget.  An attempt
+ * which does not fit an empty budget on its own still runs, alone.  Once an
+ * attempt has finished its reservation is released and the actual size is
+ * remembered for the next estimate.
+ *
+ * Attempts whose reservation, together with the bytes already reserved,
+ * crosses the spill threshold are told to buffer their data on disk instead
+ * of in memory.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class MemoryBudget {
+
+    private static final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+    /**
+     * The size assumed for a dump before any dump has been received.
+     */
+    static final long DEFAULT_ESTIMATE = 1024 * 1024;
+
+    /**
+     * A budget which never waits and never spills.
+     */
+    static final MemoryBudget UNLIMITED = new MemoryBudget(0, 0);
+
+    private final long capacity;
+    private final long spillThreshold;
+    private final Map<String, Long> sizes = new HashMap<String, Long>();
+    private long largest;
+    private long reserved;
+    private long peak;
+
+    /**
+     * @param capacity the number of bytes which may be reserved at once, or 0
+     * for no limit.
+     * @param spillThreshold the number of reserved bytes above which
+     * attempts spill their data to disk, or 0 to never spill.
+     */
+    MemoryBudget(long capacity, long spillThreshold) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid memory budget: '" + capacity + "'");
+        }
+        if (spillThreshold < 0) {
+            throw new IllegalArgumentException("Invalid spill threshold: '" + spillThreshold + "'");
+        }
+        this.capacity = capacity;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Reserves the estimated size of a dump from source, waiting until it
+     * fits the budget.
+     *
+     * @param source the {@link Source} about to be fetched from.
+     * @param timeouts the timeouts of the attempt, whose deadline bounds the
+     * wait.
+     * @return the reservation, to be passed to
+     * {@link #release(Reservation, long)} once the attempt has finished.
+     * @throws JaCoCoToGoException if the deadline passes or the thread is
+     * interrupted while waiting.
+     */
+    synchronized Reservation reserve(Source source, FetchTimeouts timeouts) {
+        if (this == UNLIMITED) {
+            return new Reservation(source.getKey(), 0, false);
+        }
+        String key = source.getKey();
+        Long size = sizes.get(key);
+        long bytes = size != null ? size.longValue() : Math.max(largest, DEFAULT_ESTIMATE);
+        if (capacity > 0 && reserved > 0 && reserved + bytes > capacity) {
+            logger.debug("Waiting for {} bytes of the memory budget to fetch from {}, {} bytes reserved", bytes, key, reserved);
+            try {
+                while (reserved > 0 && reserved + bytes > capacity) {
+                    if (timeouts.isExpired()) {
+                        throw new JaCoCoToGoException("Timed out waiting for the memory budget to fetch from " + key);
+                    }
+                    wait(timeouts.remainingMillis());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new JaCoCoToGoException("Interrupted while waiting for the memory budget to fetch from " + key, ex);
+            }
+        }
+        boolean spill = spillThreshold > 0 && reserved + bytes > spillThreshold;
+        reserved += bytes;
+        peak = Math.max(peak, reserved);
+        return new Reservation(key, bytes, spill);
+    }
+
+    /**
+     * Releases a reservation.
+     *
+     * @param reservation the reservation of the finished attempt.
+     * @param actualBytes the number of bytes the attempt received, or 0 if
+     * it failed.
+     */
+    synchronized void release(Reservation reservation, long actualBytes) {
+        if (this == UNLIMITED) {
+            return;
+        }
+        reserved -= reservation.bytes;
+        if (actualBytes > 0) {
+            sizes.put(reservation.key, Long.valueOf(actualBytes));
+            largest = Math.max(largest, actualBytes);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the largest number of bytes reserved at once.
+     */
+    synchronized long getPeak() {
+        return peak;
+    }
+
+    /**
+     * The bytes reserved by a single attempt.
+     */
+    static final class Reservation {
+
+        private final String key;
+        private final long bytes;
+        private final boolean spill;
+
+        private Reservation(String key, long bytes, boolean spill) {
+            this.key = key;
+            this.bytes = bytes;
+            this.spill = spill;
+        }
+
+        /**
+         * @return whether the attempt should buffer its data on disk.
+         */
+        boolean isSpill() {
+            return spill;
+        }
+    }
+}
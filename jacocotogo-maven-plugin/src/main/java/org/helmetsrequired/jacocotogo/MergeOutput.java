@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.IExecutionDataVisitor;
+import org.jacoco.core.data.ISessionInfoVisitor;
+import org.jacoco.core.data.SessionInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes merged execution data to a single file, or partitioned over several
+ * shard files next to it.
+ *
+ * With more than one shard, 'merged.exec' becomes 'merged-0.exec',
+ * 'merged-1.exec' and so on, and a manifest 'merged-manifest.json' lists the
+ * shards with their number of classes and bytes.  Every shard holds all
+ * session infos, so each one is a valid execution data file on its own and
+ * several report workers can process the shards in parallel.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class MergeOutput implements ISessionInfoVisitor, IExecutionDataVisitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergeOutput.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String MANIFEST_SUFFIX = "-manifest.json";
+
+    private final File mergeFile;
+    private final ShardingStrategy strategy;
+    private final List<File> files;
+    private final OutputStream[] outputs;
+    private final CountingOutputStream[] counters;
+    private final ExecutionDataWriter[] writers;
+    private final int[] classes;
+    private boolean finished;
+
+    /**
+     * Creates the output files.
+     *
+     * @param mergeFile the file where the merged data is written, or which
+     * names the shard files.
+     * @param shards the number of shard files, 1 writes mergeFile only.
+     * @param strategy how classes are distributed over the shards.
+     * @throws IOException if a file can not be created.
+     */
+    MergeOutput(File mergeFile, int shards, ShardingStrategy strategy) throws IOException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Invalid number of shards: '" + shards + "'");
+        }
+        if (shards > 1 && strategy == null) {
+            throw new IllegalArgumentException("strategy is null");
+        }
+        this.mergeFile = mergeFile;
+        this.strategy = strategy;
+        this.files = getFiles(mergeFile, shards);
+        if (shards > 1 && getManifestFile(mergeFile).exists()) {
+            throw new JaCoCoToGoException("File already exists: '" + getManifestFile(mergeFile).getAbsolutePath() + "'");
+        }
+        for (File file : files) {
+            if (file.exists()) {
+                throw new JaCoCoToGoException("File already exists: '" + file.getAbsolutePath() + "'");
+            }
+        }
+        outputs = new OutputStream[shards];
+        counters = new CountingOutputStream[shards];
+        writers = new ExecutionDataWriter[shards];
+        classes = new int[shards];
+        try {
+            for (int i = 0; i < shards; i++) {
+                counters[i] = new CountingOutputStream(new FileOutputStream(files.get(i)));
+                outputs[i] = BufferPool.getShared().newOutputStream(counters[i]);
+                writers[i] = new ExecutionDataWriter(outputs[i]);
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return the execution data files written for mergeFile with the given
+     * number of shards, without the manifest.
+     */
+    static List<File> getFiles(File mergeFile, int shards) {
+        List<File> files = new ArrayList<File>(shards);
+        if (shards == 1) {
+            files.add(mergeFile);
+            return files;
+        }
+        String name = mergeFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        String extension = dot < 0 ? "" : name.substring(dot);
+        for (int i = 0; i < shards; i++) {
+            files.add(new File(mergeFile.getAbsoluteFile().getParentFile(), base + "-" + i + extension));
+        }
+        return files;
+    }
+
+    /**
+     * @return the manifest written for a sharded mergeFile.
+     */
+    static File getManifestFile(File mergeFile) {
+        String name = mergeFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(mergeFile.getAbsoluteFile().getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + MANIFEST_SUFFIX);
+    }
+
+    @Override
+    public void visitSessionInfo(SessionInfo info) {
+        for (ExecutionDataWriter writer : writers) {
+            writer.visitSessionInfo(info);
+        }
+    }
+
+    @Override
+    public void visitClassExecution(ExecutionData data) {
+        int shard = writers.length == 1 ? 0 : strategy.shardOf(data, writers.length);
+        writers[shard].visitClassExecution(data);
+        classes[shard]++;
+    }
+
+    /**
+     * @return the number of classes written to all files.
+     */
+    int getClassCount() {
+        int count = 0;
+        for (int shardClasses : classes) {
+            count += shardClasses;
+        }
+        return count;
+    }
+
+    /**
+     * Completes the files, and writes the manifest if there is more than one
+     * shard.
+     *
+     * @throws IOException if the files can not be written.
+     */
+    void finish() throws IOException {
+        for (int i = 0; i < outputs.length; i++) {
+            CollectionEvents.Span span = CollectionEvents.begin(CollectionEvents.Kind.SAVE);
+            outputs[i].close();
+            outputs[i] = null;
+            span.end(files.get(i), counters[i].getCount(), classes[i]);
+        }
+        if (outputs.length > 1) {
+            writeManifest();
+        }
+        finished = true;
+    }
+
+    private void writeManifest() throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(getManifestFile(mergeFile)), UTF_8));
+        try {
+            writer.write("{\n");
+            writer.write("  \"strategy\": " + CollectionReport.quote(strategy.name()) + ",\n");
+            writer.write("  \"classes\": " + getClassCount() + ",\n");
+            writer.write("  \"shards\": [");
+            for (int i = 0; i < files.size(); i++) {
+                writer.write(i == 0 ? "\n" : ",\n");
+                writer.write("    {\"file\": " + CollectionReport.quote(files.get(i).getName())
+                        + ", \"classes\": " + classes[i]
+                        + ", \"bytes\": " + counters[i].getCount() + "}");
+            }
+            writer.write("\n  ]\n}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Closes the files which have not been completed by {@link #finish()}.
+     * Unless {@link #finish()} succeeded, all files, including the manifest,
+     * are deleted, so a failed merge does not leave partial shards behind
+     * which would block the next one.
+     */
+    void close() {
+        for (OutputStream output : outputs) {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ex) {
+                    // bummer
+                }
+            }
+        }
+        for (CountingOutputStream counter : counters) {
+            if (counter != null) {
+                try {
+                    counter.close();
+                } catch (IOException ex) {
+                    // bummer
+                }
+            }
+        }
+        if (!finished) {
+            for (File file : files) {
+                deleteFile(file);
+            }
+            if (outputs.length > 1) {
+                deleteFile(getManifestFile(mergeFile));
+            }
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Unable to delete incomplete file: '{}'", file.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.runtime.RemoteControlWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches dumps from many JaCoCo agent TCP servers on a single thread.
+ *
+ * A selector multiplexes non-blocking connections to all agents.  Each
+ * connection sends the dump command and frames the reply into complete blocks
+ * with {@link ExecutionDataBlocks} as bytes arrive, handing them to the
+ * {@link DumpSink} of the request, so neither a thread nor a whole dump is
+ * held per agent.  At most 'maxConnections' connections are open at a time.
+ * The connect, read and total timeouts of each request are checked whenever
+ * the selector wakes up, and a request which exceeds one of them fails.
+ *
+ * @author Matthew C. Jenkins
+ */
+class NioTcpCollector {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioTcpCollector.class);
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    private final int maxConnections;
+    private final List<Request> requests = new ArrayList<Request>();
+
+    /**
+     * @param maxConnections the maximum number of connections to keep open at
+     * the same time.
+     */
+    NioTcpCollector(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Invalid maximum number of connections: '" + maxConnections + "'");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Adds a dump request to be fetched by {@link #run()}.
+     *
+     * @param address the address of the agent.
+     * @param port the port the agent TCP server listens on.
+     * @param resetAfterFetch whether the agent should reset its execution data
+     * after the dump.
+     * @param connectTimeout the connect timeout in milliseconds, 0 for no
+     * limit.
+     * @param readTimeout the maximum number of milliseconds to wait for data,
+     * 0 for no limit.
+     * @param timeout the maximum number of milliseconds the request may take
+     * once it has started connecting, 0 for no limit.
+     * @param filter the {@link ClassFilter} deciding which execution data
+     * blocks are passed to sink.
+     * @param sink the {@link DumpSink} receiving the dump.
+     * @return the request, holding the outcome once {@link #run()} returns.
+     */
+    Request add(InetAddress address, int port, boolean resetAfterFetch, long connectTimeout, long readTimeout, long timeout, ClassFilter filter, DumpSink sink) {
+        Request request = new Request(new InetSocketAddress(address, port), resetAfterFetch, connectTimeout, readTimeout, timeout, filter, sink);
+        requests.add(request);
+        return request;
+    }
+
+    /**
+     * Fetches all requests added so far and returns once every request has
+     * either completed or failed.
+     *
+     * @throws IOException if the selector can not be opened.
+     */
+    void run() throws IOException {
+        Selector selector = Selector.open();
+        Iterator<Request> pending = requests.iterator();
+        int open = 0;
+        try {
+            logger.info("Fetching from {} JaCoCo TCP servers using up to {} connections", requests.size(), maxConnections);
+            while (true) {
+                while (open < maxConnections && pending.hasNext()) {
+                    if (pending.next().connect(selector)) {
+                        open++;
+                    }
+                }
+                if (open == 0) {
+                    break;
+                }
+                selector.select(selectTimeout(selector));
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Request request = (Request) key.attachment();
+                    if (request.handle(key)) {
+                        open--;
+                    }
+                }
+                long now = System.currentTimeMillis();
+                for (SelectionKey key : selector.keys()) {
+                    Request request = (Request) key.attachment();
+                    if (key.isValid() && request.expire(now)) {
+                        open--;
+                    }
+                }
+            }
+        } finally {
+            for (Request request : requests) {
+                request.fail(new IOException("Collector stopped"));
+            }
+            selector.close();
+        }
+    }
+
+    /**
+     * @return how long to wait for readiness before the first open request
+     * expires.
+     */
+    private static long selectTimeout(Selector selector) {
+        long timeout = SELECT_TIMEOUT_MILLIS;
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            long expiry = ((Request) key.attachment()).getExpiry();
+            if (expiry != 0) {
+                timeout = Math.min(timeout, Math.max(1, expiry - now));
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * A dump request and its connection state.
+     */
+    static class Request {
+
+        private final InetSocketAddress address;
+        private final ClassFilter filter;
+        private final DumpSink sink;
+        private final ByteBuffer command;
+        private final long connectTimeout;
+        private final long readTimeout;
+        private final long timeout;
+        private final FetchMetrics metrics = new FetchMetrics();
+        private long phaseStart;
+        private long started;
+        private long finished;
+        private long connectExpiry;
+        private long lastRead;
+        private boolean connected;
+        private final BufferPool pool = BufferPool.getShared();
+        private ByteBuffer buffer;
+        private SocketChannel channel;
+        private boolean headerReceived;
+        private boolean done;
+        private RuntimeException failure;
+
+        Request(InetSocketAddress address, boolean resetAfterFetch, long connectTimeout, long readTimeout, long timeout, ClassFilter filter, DumpSink sink) {
+            this.address = address;
+            this.filter = filter;
+            this.sink = sink;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.timeout = timeout;
+            byte[] header = ExecutionDataWriter.getFileHeader();
+            command = ByteBuffer.allocate(header.length + 3);
+            command.put(header).put(RemoteControlWriter.BLOCK_CMDDUMP).put((byte) 1).put((byte) (resetAfterFetch ? 1 : 0));
+            ((Buffer) command).flip();
+        }
+
+        /**
+         * @return the exception which made this request fail, or null if it
+         * completed.
+         */
+        RuntimeException getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return the time this request started connecting, or 0 if it never
+         * did.
+         */
+        long getStarted() {
+            return started;
+        }
+
+        /**
+         * @return the {@link FetchMetrics} of this request.
+         */
+        FetchMetrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * @return the number of milliseconds it took to complete this request.
+         */
+        long getLatency() {
+            return finished - started;
+        }
+
+        /**
+         * @return the time this request expires unless it makes progress, or
+         * 0 if it has no timeouts.
+         */
+        long getExpiry() {
+            long expiry = timeout > 0 ? started + timeout : 0;
+            if (!connected && connectTimeout > 0) {
+                expiry = earliest(expiry, connectExpiry);
+            }
+            if (connected && readTimeout > 0) {
+                expiry = earliest(expiry, lastRead + readTimeout);
+            }
+            return expiry;
+        }
+
+        private static long earliest(long time1, long time2) {
+            if (time1 == 0) {
+                return time2;
+            }
+            return Math.min(time1, time2);
+        }
+
+        /**
+         * Fails this request if it has expired.
+         *
+         * @return whether the request failed and its connection was closed.
+         */
+        boolean expire(long now) {
+            long expiry = getExpiry();
+            if (done || expiry == 0 || now < expiry) {
+                return false;
+            }
+            String phase = connected ? "reading from" : "connecting to";
+            fail(new SocketTimeoutException("Timed out " + phase + " " + address + " after " + (now - started) + " ms"));
+            return true;
+        }
+
+        /**
+         * Starts connecting.
+         *
+         * @return whether a connection has been opened.
+         */
+        boolean connect(Selector selector) {
+            try {
+                logger.info("Connecting to {}", address);
+                started = System.currentTimeMillis();
+                phaseStart = System.nanoTime();
+                connectExpiry = started + connectTimeout;
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    connected();
+                    channel.register(selector, SelectionKey.OP_WRITE, this);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+                return true;
+            } catch (IOException ex) {
+                fail(ex);
+                return false;
+            }
+        }
+
+        /**
+         * Handles readiness of the connection.
+         *
+         * @return whether the request is done and its connection closed.
+         */
+        boolean handle(SelectionKey key) {
+            try {
+                if (key.isConnectable() && channel.finishConnect()) {
+                    connected();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    metrics.setDumpRequested();
+                    channel.write(command);
+                    if (!command.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            } catch (RuntimeException ex) {
+                fail(ex);
+            }
+            return done;
+        }
+
+        private void connected() {
+            connected = true;
+            // only connected requests hold a buffer
+            buffer = ByteBuffer.wrap(pool.acquire());
+            lastRead = System.currentTimeMillis();
+            metrics.record(FetchMetrics.Phase.CONNECT, phaseStart);
+            phaseStart = System.nanoTime();
+        }
+
+        private void read() throws IOException {
+            int n;
+            while ((n = channel.read(buffer)) > 0) {
+                lastRead = System.currentTimeMillis();
+                metrics.addBytes(n);
+                if (frame()) {
+                    return;
+                }
+            }
+            if (n < 0) {
+                if (!headerReceived) {
+                    throw new JaCoCoToGoException("No JaCoCo execution data received.");
+                }
+                throw new JaCoCoToGoException("Connection closed before the dump was complete.");
+            }
+        }
+
+        /**
+         * Passes all complete blocks in the buffer to the sink.
+         *
+         * @return whether the dump is complete.
+         */
+        private boolean frame() throws IOException {
+            byte[] array = buffer.array();
+            int end = buffer.position();
+            int offset = 0;
+            int length;
+            while ((length = ExecutionDataBlocks.blockLength(array, offset, end)) > 0) {
+                byte type = array[offset];
+                if (type == RemoteControlWriter.BLOCK_CMDOK) {
+                    succeed();
+                    return true;
+                }
+                if (type == ExecutionDataWriter.BLOCK_HEADER) {
+                    ExecutionDataBlocks.checkHeader(array, offset);
+                    headerReceived = true;
+                } else if (!headerReceived) {
+                    throw new IOException("Invalid execution data file.");
+                } else if (type == ExecutionDataWriter.BLOCK_EXECUTIONDATA) {
+                    if (!filter.isAll() && !filter.accepts(ExecutionDataBlocks.readClassName(array, offset))) {
+                        offset += length;
+                        continue;
+                    }
+                    metrics.addClasses(1);
+                }
+                sink.block(type, array, offset, length);
+                offset += length;
+            }
+            ((Buffer) buffer).flip();
+            ((Buffer) buffer).position(offset);
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // a single block is larger than the buffer
+                if (buffer.capacity() >= ExecutionDataBlocks.MAX_BLOCK_LENGTH) {
+                    throw new IOException("Execution data block longer than " + ExecutionDataBlocks.MAX_BLOCK_LENGTH + " bytes.");
+                }
+                ByteBuffer larger = ByteBuffer.allocate((int) Math.min(buffer.capacity() * 2L, ExecutionDataBlocks.MAX_BLOCK_LENGTH));
+                ((Buffer) buffer).flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            return false;
+        }
+
+        private void succeed() throws IOException {
+            close();
+            metrics.record(FetchMetrics.Phase.DUMP, phaseStart);
+            phaseStart = System.nanoTime();
+            sink.complete();
+            metrics.record(FetchMetrics.Phase.WRITE, phaseStart);
+            finished = System.currentTimeMillis();
+            done = true;
+        }
+
+        /**
+         * Marks this request failed, unless it is done already.
+         */
+        void fail(Exception ex) {
+            if (done) {
+                return;
+            }
+            done = true;
+            close();
+            sink.abort();
+            logger.debug("Fetch from {} failed: {}", address, ex.getMessage());
+            failure = ex instanceof RuntimeException ? (RuntimeException) ex : new JaCoCoToGoException("Unable to dump coverage data from " + address, ex);
+        }
+
+        private void close() {
+            if (buffer != null) {
+                // grown buffers are dropped by the pool
+                pool.release(buffer.array());
+                buffer = null;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // bummer
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Loads a range of JaCoCo execution data files into a single
+ * {@link ExecutionDataAggregate}.  Ranges are split in half until a single
+ * file remains, the halves are parsed concurrently and the partial results
+ * are combined pairwise.  The left half is always merged first, so session
+ * infos end up in the same order as when the files are loaded one after
+ * another.
+ *
+ * @author Matthew C. Jenkins
+ */
+class ParallelMerge extends RecursiveTask<ExecutionDataAggregate> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<File> inputFiles;
+    private final int from;
+    private final int to;
+
+    /**
+     * @param inputFiles the files to merge.
+     * @param from index of the first file to merge, inclusive.
+     * @param to index of the last file to merge, exclusive.
+     */
+    ParallelMerge(List<File> inputFiles, int from, int to) {
+        this.inputFiles = inputFiles;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected ExecutionDataAggregate compute() {
+        if (to - from <= 1) {
+            ExecutionDataAggregate aggregate = new ExecutionDataAggregate();
+            if (to > from) {
+                JaCoCoToGo.loadJaCoCoData(inputFiles.get(from), aggregate);
+            }
+            return aggregate;
+        }
+        int middle = (from + to) >>> 1;
+        ParallelMerge left = new ParallelMerge(inputFiles, from, middle);
+        ParallelMerge right = new ParallelMerge(inputFiles, middle, to);
+        left.fork();
+        ExecutionDataAggregate rightResult = right.compute();
+        ExecutionDataAggregate leftResult = left.join();
+        leftResult.merge(rightResult);
+        return leftResult;
+    }
+}
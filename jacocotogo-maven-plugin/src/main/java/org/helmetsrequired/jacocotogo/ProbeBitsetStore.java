@@ -0,0 +1,335 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.IExecutionDataVisitor;
+
+/**
+ * A compact store for JaCoCo execution data, used while merging.
+ *
+ * Classes are kept in an open addressing hash table keyed by the primitive
+ * class id, and probes are packed into {@code long[]} bitsets, so a class
+ * costs one bit per probe instead of one byte, and no boxed keys or
+ * {@link ExecutionData} objects are retained.  Merging ORs the bitsets a word
+ * at a time.
+ *
+ * Instances are not thread safe.
+ *
+ * @author Matthew C. Jenkins
+ * @since 1.2
+ */
+public final class ProbeBitsetStore implements IExecutionDataVisitor {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    /**
+     * An odd multiplier, which permutes the slots of a table.
+     */
+    private static final long SCATTER_MULTIPLIER = 0x9E3779B1L;
+    /**
+     * Rough per class overhead: table slots plus the headers of the bitset
+     * array.
+     */
+    private static final int CLASS_OVERHEAD_ESTIMATE = 48;
+
+    private long[] ids;
+    private String[] names;
+    private long[][] probes;
+    private int[] probeCounts;
+    private int size;
+    private int shift;
+    private long probeWords;
+    /**
+     * The class ids in ascending order, reused while the number of classes
+     * does not change, so writing a store repeatedly allocates nothing.
+     */
+    private long[] sortedIds;
+
+    /**
+     * Creates an empty store.
+     */
+    public ProbeBitsetStore() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        ids = new long[capacity];
+        names = new String[capacity];
+        probes = new long[capacity][];
+        probeCounts = new int[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int slot(long id) {
+        int mask = ids.length - 1;
+        int index = (int) ((id * HASH_MULTIPLIER) >>> shift);
+        while (probes[index] != null && ids[index] != id) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException if the class is already contained with a
+     * different name or probe count.
+     */
+    @Override
+    public void visitClassExecution(ExecutionData data) {
+        boolean[] dataProbes = data.getProbes();
+        int index = slot(data.getId());
+        long[] bits = probes[index];
+        if (bits == null) {
+            bits = new long[wordCount(dataProbes.length)];
+        } else {
+            check(index, data.getId(), data.getName(), dataProbes.length);
+        }
+        for (int i = 0; i < dataProbes.length; i++) {
+            if (dataProbes[i]) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        if (probes[index] == null) {
+            insert(index, data.getId(), data.getName(), bits, dataProbes.length);
+        }
+    }
+
+    /**
+     * Merges a complete execution data block, as framed by
+     * {@link ExecutionDataBlocks}, into this store without decoding it into
+     * an {@link ExecutionData}.  The probe bytes are ORed straight into the
+     * bitset, so nothing is allocated for a class which is already
+     * contained.
+     *
+     * @throws IOException if the class name can not be decoded.
+     * @throws IllegalStateException if the class is already contained with a
+     * different name or probe count.
+     */
+    void mergeBlock(byte[] buffer, int offset) throws IOException {
+        long id = ExecutionDataBlocks.readClassId(buffer, offset);
+        int probeCount = ExecutionDataBlocks.readProbeCount(buffer, offset);
+        int index = slot(id);
+        long[] bits = probes[index];
+        if (bits == null) {
+            bits = new long[wordCount(probeCount)];
+        } else {
+            if (!ExecutionDataBlocks.classNameEquals(buffer, offset, names[index])) {
+                check(index, id, ExecutionDataBlocks.readClassName(buffer, offset), probeCount);
+            }
+            check(index, id, names[index], probeCount);
+        }
+        int position = ExecutionDataBlocks.probesOffset(buffer, offset);
+        int byteCount = (probeCount + 7) >>> 3;
+        for (int i = 0; i < byteCount; i++) {
+            bits[i >>> 3] |= (long) (buffer[position + i] & 0xFF) << ((i & 7) << 3);
+        }
+        if ((probeCount & 63) != 0) {
+            // ignore any bits beyond the last probe
+            bits[bits.length - 1] &= (1L << probeCount) - 1;
+        }
+        if (probes[index] == null) {
+            insert(index, id, ExecutionDataBlocks.readClassName(buffer, offset), bits, probeCount);
+        }
+    }
+
+    /**
+     * Merges the packed probes of a single class, copying bits if the class
+     * is not yet contained.
+     */
+    private void put(long id, String name, long[] bits, int probeCount) {
+        int index = slot(id);
+        long[] existing = probes[index];
+        if (existing == null) {
+            insert(index, id, name, Arrays.copyOf(bits, wordCount(probeCount)), probeCount);
+            return;
+        }
+        check(index, id, name, probeCount);
+        for (int i = 0; i < existing.length; i++) {
+            existing[i] |= bits[i];
+        }
+    }
+
+    private void insert(int index, long id, String name, long[] bits, int probeCount) {
+        ids[index] = id;
+        names[index] = name;
+        probes[index] = bits;
+        probeCounts[index] = probeCount;
+        probeWords += wordCount(probeCount);
+        if (++size > ids.length >>> 1) {
+            rehash();
+        }
+    }
+
+    private void check(int index, long id, String name, int probeCount) {
+        if (!names[index].equals(name)) {
+            throw new IllegalStateException(String.format("Different class names %s and %s for id %016x.", names[index], name, Long.valueOf(id)));
+        }
+        if (probeCounts[index] != probeCount) {
+            throw new IllegalStateException(String.format("Incompatible execution data for class %s with id %016x.", name, Long.valueOf(id)));
+        }
+    }
+
+    private void rehash() {
+        long[] oldIds = ids;
+        String[] oldNames = names;
+        long[][] oldProbes = probes;
+        int[] oldProbeCounts = probeCounts;
+        allocate(oldIds.length << 1);
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldProbes[i] != null) {
+                int index = slot(oldIds[i]);
+                ids[index] = oldIds[i];
+                names[index] = oldNames[i];
+                probes[index] = oldProbes[i];
+                probeCounts[index] = oldProbeCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Merges all classes of other into this store.
+     *
+     * @param other the {@link ProbeBitsetStore} to merge.
+     */
+    public void merge(ProbeBitsetStore other) {
+        int mask = other.ids.length - 1;
+        for (int n = 0; n < other.ids.length; n++) {
+            int i = scatter(n, mask);
+            if (other.probes[i] != null) {
+                put(other.ids[i], other.names[i], other.probes[i], other.probeCounts[i]);
+            }
+        }
+    }
+
+    /**
+     * Maps n to a slot of a table with the given mask, visiting every slot
+     * once as n counts up, but not in slot order.  Both tables use the same
+     * hash, so inserting the classes of a larger table in slot order would
+     * pile them up in a single probe sequence of a smaller one.
+     */
+    static int scatter(int n, int mask) {
+        return (int) ((n * SCATTER_MULTIPLIER) & mask);
+    }
+
+    /**
+     * Visits the execution data of all classes in ascending class id order.
+     *
+     * @param visitor the visitor to pass the execution data to.
+     */
+    public void accept(IExecutionDataVisitor visitor) {
+        for (long id : sortedIds()) {
+            int index = slot(id);
+            long[] bits = probes[index];
+            boolean[] dataProbes = new boolean[probeCounts[index]];
+            for (int i = 0; i < dataProbes.length; i++) {
+                dataProbes[i] = (bits[i >>> 6] & (1L << i)) != 0;
+            }
+            visitor.visitClassExecution(new ExecutionData(id, names[index], dataProbes));
+        }
+    }
+
+    /**
+     * Encodes all classes in ascending class id order straight from their
+     * bitsets, without creating {@link ExecutionData} objects.  The output
+     * is identical to visiting an {@link ExecutionDataWriter}.
+     *
+     * @param output the stream to write the execution data blocks to.
+     * @throws IOException if the data can not be written.
+     */
+    void writeBlocks(DataOutputStream output) throws IOException {
+        for (long id : sortedIds()) {
+            writeBlock(output, id);
+        }
+    }
+
+    /**
+     * Encodes a single class as {@link #writeBlocks(DataOutputStream)} does.
+     *
+     * @throws IllegalArgumentException if the class is not contained.
+     */
+    void writeBlock(DataOutputStream output, long id) throws IOException {
+        int index = slot(id);
+        if (probes[index] == null) {
+            throw new IllegalArgumentException(String.format("No execution data for id %016x.", Long.valueOf(id)));
+        }
+        ExecutionDataBlocks.writeExecutionData(output, id, names[index], probes[index], probeCounts[index]);
+    }
+
+    private long[] sortedIds() {
+        if (sortedIds == null || sortedIds.length != size) {
+            sortedIds = new long[size];
+        }
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (probes[i] != null) {
+                sortedIds[n++] = ids[i];
+            }
+        }
+        Arrays.sort(sortedIds);
+        return sortedIds;
+    }
+
+    /**
+     * Writes all classes in ascending class id order, in the format written by
+     * {@link ExecutionDataWriter}.  No session infos are written.
+     *
+     * @param output the stream to write to.
+     * @throws IOException if the data can not be written.
+     */
+    public void write(OutputStream output) throws IOException {
+        output.write(ExecutionDataWriter.getFileHeader());
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        writeBlocks(dataOutput);
+        dataOutput.flush();
+    }
+
+    /**
+     * @return the number of distinct classes in this store.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the approximate number of bytes of heap used by this store,
+     * not counting class names, which are usually shared with the class
+     * files.
+     */
+    public long estimateSize() {
+        return (long) ids.length * (8 + 4 + 4 + 4) + (long) size * CLASS_OVERHEAD_ESTIMATE + probeWords * 8;
+    }
+
+    /**
+     * Removes all classes from this store.
+     */
+    public void clear() {
+        allocate(INITIAL_CAPACITY);
+        size = 0;
+        probeWords = 0;
+        sortedIds = null;
+    }
+
+    private static int wordCount(int probeCount) {
+        return (probeCount + 63) >>> 6;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import org.jacoco.core.data.ExecutionData;
+
+/**
+ * How the classes of a sharded merge are distributed over the shards.
+ *
+ * @author Matthew C. Jenkins
+ * @since 1.2
+ */
+public enum ShardingStrategy {
+
+    /**
+     * Distributes classes by a hash of their class id, which spreads them
+     * evenly.
+     */
+    CLASS_ID {
+        @Override
+        int shardOf(ExecutionData data, int shards) {
+            long id = data.getId();
+            return (int) ((id ^ (id >>> 32)) & Integer.MAX_VALUE) % shards;
+        }
+    },
+    /**
+     * Distributes classes by a hash of their package name, which keeps each
+     * package in a single shard.
+     */
+    PACKAGE {
+        @Override
+        int shardOf(ExecutionData data, int shards) {
+            String name = data.getName();
+            int end = name.lastIndexOf('/');
+            String packageName = end < 0 ? "" : name.substring(0, end);
+            return (packageName.hashCode() & Integer.MAX_VALUE) % shards;
+        }
+    };
+
+    /**
+     * @return the index of the shard data belongs to, between 0 and shards.
+     */
+    abstract int shardOf(ExecutionData data, int shards);
+}
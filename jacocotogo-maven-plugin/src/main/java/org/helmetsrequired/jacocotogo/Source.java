@@ -83,6 +83,51 @@ public class Source {
      * whether to reset the coverage statistics after fetching the jacoco data
      */
     private boolean resetAfterFetch = true;
+
+    /**
+     * the maximum number of milliseconds to wait for a connection, inherited from
+     * the goal if not set.
+     */
+    private Long connectTimeout;
+
+    /**
+     * the maximum number of milliseconds to wait for data from a connection,
+     * inherited from the goal if not set.
+     */
+    private Long readTimeout;
+
+    /**
+     * the maximum number of milliseconds a fetch may take in total, including
+     * retries, inherited from the goal if not set.
+     */
+    private Long timeout;
+
+    /**
+     * the number of times a failed fetch is retried, inherited from the goal if
+     * not set.  Only failures before the dump was requested are retried if
+     * the source is reset after fetching.
+     */
+    private Integer retries;
+
+    /**
+     * the classes to keep from the dump, inherited from the goal if not set.
+     */
+    private String includes;
+
+    /**
+     * the classes to drop from the dump, inherited from the goal if not set.
+     */
+    private String excludes;
+
+    /**
+     * the address of the hostname, resolved during validation.
+     */
+    private InetAddress address;
+
+    /**
+     * the filter built from includes and excludes during validation.
+     */
+    private ClassFilter classFilter = ClassFilter.ALL;
     
     /**
      * 
@@ -242,10 +287,198 @@ public class Source {
         this.resetAfterFetch = resetAfterFetch;
     }
 
+    /**
+     *
+     * @return the maximum number of milliseconds to wait for a connection, 0 for no limit.
+     * @since 1.2
+     */
+    public long getConnectTimeout() {
+        return connectTimeout == null ? 0 : connectTimeout;
+    }
+
+    /**
+     *
+     * @param connectTimeout the maximum number of milliseconds to wait for a connection, 0 for no limit.
+     * @since 1.2
+     */
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     *
+     * @return the maximum number of milliseconds to wait for data from a connection, 0 for no limit.
+     * @since 1.2
+     */
+    public long getReadTimeout() {
+        return readTimeout == null ? 0 : readTimeout;
+    }
+
+    /**
+     *
+     * @param readTimeout the maximum number of milliseconds to wait for data from a connection, 0 for no limit.
+     * @since 1.2
+     */
+    public void setReadTimeout(long readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     *
+     * @return the maximum number of milliseconds a fetch may take in total, including retries, 0 for no limit.
+     * @since 1.2
+     */
+    public long getTimeout() {
+        return timeout == null ? 0 : timeout;
+    }
+
+    /**
+     *
+     * @param timeout the maximum number of milliseconds a fetch may take in total, including retries, 0 for no limit.
+     * @since 1.2
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     *
+     * @return the number of times a failed fetch is retried.
+     * @since 1.2
+     */
+    public int getRetries() {
+        return retries == null ? 0 : retries;
+    }
+
+    /**
+     *
+     * @param retries the number of times a failed fetch is retried.
+     * @since 1.2
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     *
+     * @return the classes to keep from the dump, or null to keep all classes.
+     * @since 1.2
+     */
+    public String getIncludes() {
+        return includes;
+    }
+
+    /**
+     *
+     * @param includes a colon separated list of the classes to keep from the dump, which may use the
+     *  wildcards '*' and '?', as with the 'includes' of the JaCoCo agent.  For example 'com.mycompany.*'.
+     * @since 1.2
+     */
+    public void setIncludes(String includes) {
+        this.includes = includes;
+    }
+
+    /**
+     *
+     * @return the classes to drop from the dump, or null to drop none.
+     * @since 1.2
+     */
+    public String getExcludes() {
+        return excludes;
+    }
+
+    /**
+     *
+     * @param excludes a colon separated list of the classes to drop from the dump, which may use the
+     *  wildcards '*' and '?', as with the 'excludes' of the JaCoCo agent.
+     * @since 1.2
+     */
+    public void setExcludes(String excludes) {
+        this.excludes = excludes;
+    }
+
+    /**
+     * Sets the class filter patterns which have not been configured for this
+     * source.
+     *
+     * @param includes the default classes to keep from the dump.
+     * @param excludes the default classes to drop from the dump.
+     * @since 1.2
+     */
+    public void applyFilterDefaults(String includes, String excludes) {
+        if (this.includes == null) {
+            this.includes = includes;
+        }
+        if (this.excludes == null) {
+            this.excludes = excludes;
+        }
+    }
+
+    /**
+     * @return the filter built from the includes and excludes during
+     * validation.
+     */
+    ClassFilter getClassFilter() {
+        return classFilter;
+    }
+
+    /**
+     * Sets the timeouts and retries which have not been configured for this
+     * source.
+     *
+     * @param connectTimeout the default connect timeout in milliseconds.
+     * @param readTimeout the default read timeout in milliseconds.
+     * @param timeout the default total timeout in milliseconds.
+     * @param retries the default number of retries.
+     * @since 1.2
+     */
+    public void applyDefaults(long connectTimeout, long readTimeout, long timeout, int retries) {
+        if (this.connectTimeout == null) {
+            this.connectTimeout = connectTimeout;
+        }
+        if (this.readTimeout == null) {
+            this.readTimeout = readTimeout;
+        }
+        if (this.timeout == null) {
+            this.timeout = timeout;
+        }
+        if (this.retries == null) {
+            this.retries = retries;
+        }
+    }
+
+    /**
+     * @return the key identifying this source across runs, in reports and in
+     * the health store.  Computed from the configuration only, so it does not
+     * require the source to be validated.
+     */
+    String getKey() {
+        if (serviceURL != null) {
+            return serviceURL;
+        }
+        return String.valueOf(type).toLowerCase() + "://" + hostname + ":" + port;
+    }
+
+    /**
+     * @return the address the hostname was resolved to during validation, or
+     * null if it has not been resolved.
+     */
+    InetAddress getAddress() {
+        return address;
+    }
+
     /**
      * Validates that valid input parameters are specified.
      */
     public void validate() {
+        validate(HostResolver.NONE);
+    }
+
+    /**
+     * Validates that valid input parameters are specified, resolving the
+     * hostname with resolver.
+     */
+    void validate(HostResolver resolver) {
         if (serviceURL == null) {
             // type is required
             if (type == null) {
@@ -259,24 +492,28 @@ public class Source {
             if (hostname == null) {
                 throw new IllegalArgumentException("Parameter 'hostname' is missing.  It is required if 'serviceURL' is not set.");
             }
-            validateHostname();
+            validateHostname(resolver);
             validatePort();
             if (sourceType == SourceType.JMX) {
                 constructJMXServiceURL();
             }
         } else {
-            parseServiceURL();
+            parseServiceURL(resolver);
+        }
+        if (getConnectTimeout() < 0 || getReadTimeout() < 0 || getTimeout() < 0 || getRetries() < 0) {
+            throw new IllegalArgumentException("Parameters 'connectTimeout', 'readTimeout', 'timeout' and 'retries' must not be negative.");
         }
+        classFilter = ClassFilter.of(includes, excludes);
 
     }
 
-    private InetAddress validateHostname() {
+    private void validateHostname(HostResolver resolver) {
         if (hostname == null || hostname.trim().isEmpty()) {
             throw new IllegalArgumentException("Parameter 'hostname' is not provided.");
         }
         logger.debug("Verifying that hostname: '{}' can be resolved.", hostname);
         try {
-            return InetAddress.getByName(hostname);
+            address = resolver.resolve(hostname);
         } catch (UnknownHostException ex) {
             throw new RuntimeException("Could not resolve hostname: '" + hostname + "'.", ex);
         }
@@ -292,7 +529,7 @@ public class Source {
         serviceURL = DEFAULT_JMX_URL_PREFIX + hostname + ":" + port + DEFAULT_JMX_URL_SUFFIX;
     }
 
-    private void parseServiceURL() {
+    private void parseServiceURL(HostResolver resolver) {
         if (serviceURL == null) {
             throw new IllegalArgumentException("Null 'serviceURL'.  It is required if 'type', 'hostname', and 'port' are not set.");
         }
@@ -301,7 +538,7 @@ public class Source {
             throw new IllegalArgumentException("Invalid 'serviceURL'.");
         }
         if (tokens[0].equalsIgnoreCase("tcp")) {
-            parseTCPServiceURL(tokens);
+            parseTCPServiceURL(tokens, resolver);
         } else if (tokens[0].equals("service") && tokens[1].equals("jmx")) {
             parseJMXServiceURL(tokens);
         } else {
@@ -309,7 +546,7 @@ public class Source {
         }
     }
 
-    private void parseTCPServiceURL(String[] tokens) {
+    private void parseTCPServiceURL(String[] tokens, HostResolver resolver) {
         if (tokens.length > 3) {
             throw new IllegalArgumentException("Invalid 'serviceURL'.  For tcp 'serviceURL' should be in the format of: 'tcp://<hostname>:<portno>'.");
         }
@@ -318,18 +555,19 @@ public class Source {
             throw new IllegalArgumentException("Invalid 'serviceURL'.  For tcp 'serviceURL' should be in the format of: 'tcp://<hostname>:<portno>'.");
         }
         hostname = tokens[1].substring(2);
-        validateHostname();
+        validateHostname(resolver);
         port = Integer.parseInt(tokens[2]);
         validatePort();
     }
 
     private void parseJMXServiceURL(String[] tokens) {
         sourceType = SourceType.JMX;
+        address = null;
     }
 
     @Override
     public String toString() {
-        return "Source{" + "sourceType=" + sourceType + ", type=" + type + ", hostname=" + hostname + ", port=" + port + ", outputFile=" + outputFile + ", username=" + username + ", password=" + (password == null ? null : "*****" ) + ", serviceURL=" + serviceURL + ", resetAfterFetch=" + resetAfterFetch + '}';
+        return "Source{" + "sourceType=" + sourceType + ", type=" + type + ", hostname=" + hostname + ", port=" + port + ", outputFile=" + outputFile + ", username=" + username + ", password=" + (password == null ? null : "*****" ) + ", serviceURL=" + serviceURL + ", resetAfterFetch=" + resetAfterFetch + ", connectTimeout=" + connectTimeout + ", readTimeout=" + readTimeout + ", timeout=" + timeout + ", retries=" + retries + ", includes=" + includes + ", excludes=" + excludes + '}';
     }
 
     
@@ -0,0 +1,558 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches from sources with retries and optional hedging.
+ *
+ * Every attempt fetches into a private result, which is only committed to
+ * the {@link Target} once the attempt has succeeded, so a failed or abandoned
+ * attempt never leaves partial data behind.  Failed attempts are retried up
+ * to 'retries' times after a backoff with full jitter, which doubles with
+ * every attempt.  The total timeout of a source bounds all of its attempts
+ * and backoffs together.  A source which is reset after fetching is only
+ * retried if the attempt failed before the dump was requested, as the agent
+ * may have reset its data already, and a retry would replace it with an
+ * empty dump.
+ *
+ * When hedging is enabled, an attempt which takes longer than the configured
+ * percentile of the latencies seen so far gets a second attempt started
+ * alongside it, and whichever succeeds first is committed.  Only sources
+ * which are not reset after fetching are hedged, since a reset by one attempt
+ * would hide data from the other.
+ *
+ * Every attempt reserves the expected size of its dump from a
+ * {@link MemoryBudget} first, and waits while the budget is exhausted.  The
+ * reservation is held until the result has been committed or discarded, as
+ * the private result stays in memory until then.
+ *
+ * @param <T> the type of the private result of an attempt.
+ * @author Matthew C. Jenkins
+ */
+final class SourceFetcher<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SourceFetcher.class);
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final int MIN_LATENCY_SAMPLES = 10;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private final Target<T> target;
+    private final MemoryBudget budget;
+    private final long backoffMillis;
+    private final double hedgePercentile;
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+    private ExecutorService hedgeExecutor;
+
+    /**
+     * @param target where results are committed.
+     * @param backoffMillis the backoff before the first retry.
+     * @param hedgePercentile the latency percentile, between 0 and 100, after
+     * which a second attempt is started, or 0 to disable hedging.
+     */
+    SourceFetcher(Target<T> target, long backoffMillis, double hedgePercentile) {
+        this(target, backoffMillis, hedgePercentile, MemoryBudget.UNLIMITED);
+    }
+
+    /**
+     * @param target where results are committed.
+     * @param backoffMillis the backoff before the first retry.
+     * @param hedgePercentile the latency percentile, between 0 and 100, after
+     * which a second attempt is started, or 0 to disable hedging.
+     * @param budget the {@link MemoryBudget} attempts reserve their dumps
+     * from.
+     */
+    SourceFetcher(Target<T> target, long backoffMillis, double hedgePercentile, MemoryBudget budget) {
+        if (backoffMillis < 0) {
+            throw new IllegalArgumentException("Invalid backoff: '" + backoffMillis + "'");
+        }
+        if (hedgePercentile < 0 || hedgePercentile >= 100) {
+            throw new IllegalArgumentException("Invalid hedge percentile: '" + hedgePercentile + "'");
+        }
+        this.target = target;
+        this.budget = budget;
+        this.backoffMillis = backoffMillis;
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Fetches from a validated source.
+     *
+     * @return the {@link FetchMetrics} of the successful attempt.
+     * @throws JaCoCoToGoValidationException if the source is invalid.
+     * @throws JaCoCoToGoException if the last attempt failed.
+     */
+    FetchMetrics fetch(Source source) throws JaCoCoToGoValidationException {
+        return retry(source, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Continues fetching from a validated source after previous attempts
+     * failed.
+     *
+     * @param started the time the first attempt was started, which the total
+     * timeout of the source counts from.
+     * @param attempts the number of attempts made so far.
+     * @return the {@link FetchMetrics} of the successful attempt.
+     * @throws JaCoCoToGoValidationException if the source is invalid.
+     * @throws JaCoCoToGoException if the last attempt failed, or no attempts
+     * are left.
+     */
+    FetchMetrics retry(Source source, long started, int attempts) throws JaCoCoToGoValidationException {
+        long deadline = source.getTimeout() > 0 ? started + source.getTimeout() : 0;
+        JaCoCoToGoException failure = null;
+        for (int attempt = attempts; attempt <= source.getRetries(); attempt++) {
+            if (attempt > 0 && !backoff(source, attempt, deadline)) {
+                break;
+            }
+            FetchTimeouts timeouts = new FetchTimeouts(source.getConnectTimeout(), source.getReadTimeout(), deadline);
+            FetchMetrics metrics = new FetchMetrics();
+            try {
+                FetchMetrics committed = attempt(source, timeouts, metrics);
+                committed.setAttempts(attempt + 1);
+                return committed;
+            } catch (JaCoCoToGoException ex) {
+                failure = ex;
+                logger.debug("Attempt {} to fetch from {} failed: {}", attempt + 1, source, ex.getMessage());
+                if (!isRetryable(source, metrics)) {
+                    throw notRetryable(source, ex);
+                }
+            }
+        }
+        if (failure == null) {
+            throw new JaCoCoToGoException("No attempts left to fetch from " + source);
+        }
+        throw failure;
+    }
+
+    /**
+     * @return whether an attempt recorded in metrics may be retried, that is
+     * unless the dump has been requested from a source which is reset after
+     * fetching.
+     */
+    static boolean isRetryable(Source source, FetchMetrics metrics) {
+        return !source.isResetAfterFetch() || !metrics.isDumpRequested();
+    }
+
+    /**
+     * @return the exception ending the fetch from a source whose data may
+     * have been reset by the failed attempt.
+     */
+    static JaCoCoToGoException notRetryable(Source source, Exception cause) {
+        return new JaCoCoToGoException("Fetch from " + source + " failed after the dump was requested, not retrying as the source is reset after fetching: " + cause.getMessage(), cause);
+    }
+
+    /**
+     * Sleeps before the given retry.
+     *
+     * @return whether there is time left for the retry.
+     */
+    private boolean backoff(Source source, int attempt, long deadline) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(attempt - 1, 30));
+        long sleep = ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+        if (deadline != 0 && System.currentTimeMillis() + sleep >= deadline) {
+            logger.debug("No time left to retry fetching from {}", source);
+            return false;
+        }
+        logger.info("Retrying fetch from {} in {} ms", source, sleep);
+        try {
+            Thread.sleep(sleep);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JaCoCoToGoException("Interrupted while waiting to retry.", ex);
+        }
+        return true;
+    }
+
+    /**
+     * Makes an attempt, recording it in metrics, unless a hedged attempt is
+     * committed instead.
+     *
+     * @return the {@link FetchMetrics} of the committed attempt.
+     */
+    private FetchMetrics attempt(Source source, FetchTimeouts timeouts, FetchMetrics metrics) throws JaCoCoToGoValidationException {
+        long hedgeAfter = hedgePercentile > 0 && !source.isResetAfterFetch() ? latencyPercentile() : -1;
+        long start = System.currentTimeMillis();
+        FetchMetrics committed = metrics;
+        if (hedgeAfter < 0) {
+            MemoryBudget.Reservation reservation = budget.reserve(source, timeouts);
+            T result = null;
+            long bytes = 0;
+            try {
+                result = target.fetch(source, timeouts, metrics, reservation.isSpill());
+                bytes = metrics.getBytes();
+                long commitStart = System.nanoTime();
+                target.commit(source, result);
+                metrics.record(FetchMetrics.Phase.WRITE, commitStart);
+                result = null;
+            } catch (IOException ex) {
+                throw new JaCoCoToGoException("Unable to store execution data fetched from " + source, ex);
+            } finally {
+                if (result != null) {
+                    target.discard(result);
+                }
+                budget.release(reservation, bytes);
+            }
+        } else {
+            committed = new Race(source, timeouts).run(hedgeAfter);
+        }
+        recordLatency(System.currentTimeMillis() - start);
+        return committed;
+    }
+
+    private synchronized void recordLatency(long latency) {
+        latencies[latencyCount % LATENCY_SAMPLES] = latency;
+        latencyCount++;
+    }
+
+    /**
+     * @return the configured percentile of the recent latencies, or -1 if too
+     * few fetches have completed to tell.
+     */
+    private synchronized long latencyPercentile() {
+        int count = Math.min(latencyCount, LATENCY_SAMPLES);
+        if (count < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(hedgePercentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    private synchronized ExecutorService getHedgeExecutor() {
+        if (hedgeExecutor == null) {
+            final AtomicInteger counter = new AtomicInteger();
+            hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jacocotogo-hedge-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return hedgeExecutor;
+    }
+
+    /**
+     * Stops attempts which lost a race.  They are bounded by their timeouts
+     * anyway, and discard their results when they finish.
+     */
+    synchronized void close() {
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+            hedgeExecutor = null;
+        }
+    }
+
+    /**
+     * A primary attempt, and possibly a hedged one, of which the first to
+     * succeed is committed.
+     */
+    private class Race {
+
+        private final Source source;
+        private final FetchTimeouts timeouts;
+        private int started;
+        private int finished;
+        private FetchMetrics won;
+        private Exception failure;
+
+        Race(Source source, FetchTimeouts timeouts) {
+            this.source = source;
+            this.timeouts = timeouts;
+        }
+
+        synchronized FetchMetrics run(long hedgeAfter) throws JaCoCoToGoValidationException {
+            try {
+                start();
+                long hedgeAt = System.currentTimeMillis() + hedgeAfter;
+                long now;
+                while (won == null && finished < started && (now = System.currentTimeMillis()) < hedgeAt) {
+                    wait(hedgeAt - now);
+                }
+                if (won == null && finished < started && !timeouts.isExpired()) {
+                    logger.info("Fetch from {} is slower than {} ms, starting a hedged attempt", source, hedgeAfter);
+                    start();
+                }
+                while (won == null && finished < started) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new JaCoCoToGoException("Interrupted while fetching from " + source, ex);
+            }
+            if (won != null) {
+                return won;
+            }
+            if (failure instanceof JaCoCoToGoValidationException) {
+                throw (JaCoCoToGoValidationException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            throw new JaCoCoToGoException("Unable to store execution data fetched from " + source, failure);
+        }
+
+        private void start() {
+            started++;
+            getHedgeExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    attempt();
+                }
+            });
+        }
+
+        private void attempt() {
+            MemoryBudget.Reservation reservation = null;
+            T result = null;
+            long bytes = 0;
+            Exception error = null;
+            try {
+                FetchMetrics metrics = new FetchMetrics();
+                reservation = budget.reserve(source, timeouts);
+                result = target.fetch(source, timeouts, metrics, reservation.isSpill());
+                bytes = metrics.getBytes();
+                synchronized (this) {
+                    if (won == null) {
+                        long commitStart = System.nanoTime();
+                        target.commit(source, result);
+                        metrics.record(FetchMetrics.Phase.WRITE, commitStart);
+                        result = null;
+                        won = metrics;
+                    }
+                }
+            } catch (JaCoCoToGoValidationException ex) {
+                error = ex;
+            } catch (IOException ex) {
+                error = ex;
+            } catch (RuntimeException ex) {
+                error = ex;
+            } finally {
+                if (result != null) {
+                    target.discard(result);
+                }
+                if (reservation != null) {
+                    budget.release(reservation, bytes);
+                }
+                synchronized (this) {
+                    finished++;
+                    if (error != null && failure == null) {
+                        failure = error;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Where the results of successful attempts go.
+     *
+     * @param <R> the type of the private result of an attempt.
+     */
+    abstract static class Target<R> {
+
+        /**
+         * Fetches from source into a new private result, on disk rather than
+         * in memory if spill is set.
+         */
+        abstract R fetch(Source source, FetchTimeouts timeouts, FetchMetrics metrics, boolean spill) throws JaCoCoToGoValidationException;
+
+        /**
+         * Stores the result of a successful attempt.
+         */
+        abstract void commit(Source source, R result) throws IOException;
+
+        /**
+         * Throws away the result of an attempt which lost a race.
+         */
+        abstract void discard(R result);
+
+        /**
+         * @param file the file to write, or null to write each source to its
+         * output file.
+         * @param pool the pool of JMX connections.
+         * @return a target writing to file.
+         */
+        static Target<File> toFiles(final File file, final JmxConnectionPool pool) {
+            final AtomicInteger attempts = new AtomicInteger();
+            return new Target<File>() {
+                @Override
+                File fetch(Source source, FetchTimeouts timeouts, FetchMetrics metrics, boolean spill) throws JaCoCoToGoValidationException {
+                    File outputFile = file != null ? file : source.getOutputFile();
+                    JaCoCoToGo.prepareOutputFile(outputFile);
+                    File attemptFile = new File(outputFile.getAbsoluteFile().getParentFile(), outputFile.getName() + ".attempt" + attempts.incrementAndGet());
+                    if (attemptFile.exists() && !attemptFile.delete()) {
+                        throw new JaCoCoToGoException("Unable to delete stale file: '" + attemptFile.getAbsolutePath() + "'");
+                    }
+                    try {
+                        JaCoCoToGo.fetchJaCoCoData(source, attemptFile, timeouts, metrics, pool);
+                    } catch (RuntimeException ex) {
+                        discard(attemptFile);
+                        throw ex;
+                    }
+                    return attemptFile;
+                }
+
+                @Override
+                void commit(Source source, File result) throws IOException {
+                    JaCoCoToGo.moveTempFile(result, file != null ? file : source.getOutputFile());
+                }
+
+                @Override
+                void discard(File result) {
+                    if (result.exists() && !result.delete()) {
+                        logger.warn("Unable to delete file: '{}'", result.getAbsolutePath());
+                    }
+                }
+            };
+        }
+
+        /**
+         * @param pool the pool of JMX connections.
+         * @return a target merging all sources into aggregate.  Attempts
+         * which are told to spill write their dump to a temporary file in
+         * spillDirectory, which is only loaded into aggregate on commit.
+         * Only the private results count against the {@link MemoryBudget},
+         * the growth of aggregate itself by classes it has not seen before
+         * is never charged to it.
+         */
+        static Target<Buffered> toAggregate(final ExecutionDataAggregate aggregate, final File spillDirectory, final JmxConnectionPool pool) {
+            return new Target<Buffered>() {
+                @Override
+                Buffered fetch(Source source, FetchTimeouts timeouts, FetchMetrics metrics, boolean spill) throws JaCoCoToGoValidationException {
+                    if (!spill) {
+                        ExecutionDataAggregate result = new ExecutionDataAggregate();
+                        JaCoCoToGo.fetchJaCoCoData(source, result, result, timeouts, metrics, pool);
+                        return new Buffered(result, null);
+                    }
+                    Buffered result = new Buffered(null, newSpillFile());
+                    File spillFile = result.file;
+                    logger.debug("Spilling the dump from {} to: '{}'", source, spillFile.getAbsolutePath());
+                    try {
+                        JaCoCoToGo.fetchJaCoCoData(source, spillFile, timeouts, metrics, pool);
+                    } catch (RuntimeException ex) {
+                        discard(result);
+                        throw ex;
+                    }
+                    return result;
+                }
+
+                /**
+                 * @return a file named after a new temporary file, which
+                 * reserves the name until the spill file is discarded.
+                 */
+                private File newSpillFile() {
+                    if (!spillDirectory.exists() && !spillDirectory.mkdirs()) {
+                        throw new JaCoCoToGoException("Failed to create directory: '" + spillDirectory.getAbsolutePath() + "'");
+                    }
+                    try {
+                        File placeholder = File.createTempFile("jacocotogo-spill", "", spillDirectory);
+                        return new File(spillDirectory, placeholder.getName() + ".exec");
+                    } catch (IOException ex) {
+                        throw new JaCoCoToGoException("Unable to create a spill file in: '" + spillDirectory.getAbsolutePath() + "'", ex);
+                    }
+                }
+
+                @Override
+                void commit(Source source, Buffered result) {
+                    if (result.file == null) {
+                        aggregate.merge(result.aggregate);
+                        return;
+                    }
+                    JaCoCoToGo.loadJaCoCoData(result.file, aggregate);
+                    discard(result);
+                }
+
+                @Override
+                void discard(Buffered result) {
+                    if (result.file == null) {
+                        return;
+                    }
+                    deleteSpillFile(result.file);
+                    String name = result.file.getName();
+                    deleteSpillFile(new File(spillDirectory, name.substring(0, name.length() - ".exec".length())));
+                }
+
+                private void deleteSpillFile(File file) {
+                    if (file.exists() && !file.delete()) {
+                        logger.warn("Unable to delete spill file: '{}'", file.getAbsolutePath());
+                    }
+                }
+            };
+        }
+
+        /**
+         * @param pool the pool of JMX connections.
+         * @return a target appending each source to journal as a new segment.
+         */
+        static Target<File> toJournal(final ExecutionDataJournal journal, final JmxConnectionPool pool) {
+            return new Target<File>() {
+                @Override
+                File fetch(Source source, FetchTimeouts timeouts, FetchMetrics metrics, boolean spill) throws JaCoCoToGoValidationException {
+                    File segmentFile = journal.newSegmentFile();
+                    try {
+                        JaCoCoToGo.fetchJaCoCoData(source, segmentFile, timeouts, metrics, pool);
+                    } catch (RuntimeException ex) {
+                        discard(segmentFile);
+                        throw ex;
+                    }
+                    return segmentFile;
+                }
+
+                @Override
+                void commit(Source source, File result) throws IOException {
+                    journal.append(result);
+                }
+
+                @Override
+                void discard(File result) {
+                    if (result.exists() && !result.delete()) {
+                        logger.warn("Unable to delete segment file: '{}'", result.getAbsolutePath());
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * The data of an attempt for an aggregate, held either in memory or in a
+     * spill file.
+     */
+    static final class Buffered {
+
+        private final ExecutionDataAggregate aggregate;
+        private final File file;
+
+        private Buffered(ExecutionDataAggregate aggregate, File file) {
+            this.aggregate = aggregate;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the health of sources across runs, and keeps a circuit breaker
+ * per source.
+ *
+ * After 'threshold' consecutive failures the breaker of a source opens and
+ * the source is skipped for the cooldown period.  Once that has passed the
+ * breaker is half-open, and a single cheap attempt decides whether it closes
+ * again or stays open for twice as long, up to 16 times the cooldown.  The
+ * store is kept in a properties file, with one group of entries per source.
+ *
+ * @author Matthew C. Jenkins
+ */
+final class SourceHealthStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SourceHealthStore.class);
+    private static final int MAX_COOLDOWN_FACTOR = 16;
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final String FAILURES = ".failures";
+    private static final String LAST_SUCCESS = ".lastSuccess";
+    private static final String LAST_FAILURE = ".lastFailure";
+    private static final String LAST_ERROR = ".lastError";
+    private static final String LATENCY = ".latency";
+    private static final String OPEN_UNTIL = ".openUntil";
+    private static final String COOLDOWN = ".cooldown";
+
+    /**
+     * The state of the circuit breaker of a source.
+     */
+    enum State {
+
+        /**
+         * The source is fetched as usual.
+         */
+        CLOSED,
+        /**
+         * The source failed recently and is skipped.
+         */
+        OPEN,
+        /**
+         * The cooldown has passed, the source gets a single probe.
+         */
+        HALF_OPEN
+    }
+
+    private final File file;
+    private final int threshold;
+    private final long cooldownMillis;
+    private final Map<String, Health> entries = new TreeMap<String, Health>();
+
+    /**
+     * Loads the store from file, if it exists.
+     *
+     * @param file the properties file holding the store.
+     * @param threshold the number of consecutive failures which open a
+     * breaker.
+     * @param cooldownMillis the time an opened breaker stays open.
+     * @throws IOException if file exists but can not be read.
+     */
+    SourceHealthStore(File file, int threshold, long cooldownMillis) throws IOException {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Invalid circuit breaker threshold: '" + threshold + "'");
+        }
+        if (cooldownMillis < 0) {
+            throw new IllegalArgumentException("Invalid circuit breaker cooldown: '" + cooldownMillis + "'");
+        }
+        this.file = file;
+        this.threshold = threshold;
+        this.cooldownMillis = cooldownMillis;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * @return the state of the breaker for the source with the given key.
+     */
+    synchronized State getState(String key) {
+        Health health = entries.get(key);
+        if (health == null || health.failures < threshold) {
+            return State.CLOSED;
+        }
+        return System.currentTimeMillis() < health.openUntil ? State.OPEN : State.HALF_OPEN;
+    }
+
+    /**
+     * Records a successful fetch, which closes the breaker.
+     */
+    synchronized void success(String key, long latencyMillis) {
+        Health health = get(key);
+        health.failures = 0;
+        health.openUntil = 0;
+        health.cooldown = 0;
+        health.lastSuccess = System.currentTimeMillis();
+        health.latency = health.latency == 0 ? latencyMillis : Math.round(LATENCY_WEIGHT * latencyMillis + (1 - LATENCY_WEIGHT) * health.latency);
+    }
+
+    /**
+     * Records a failed fetch, which opens the breaker once the threshold is
+     * reached, or reopens it after a failed probe.
+     */
+    synchronized void failure(String key, String error) {
+        Health health = get(key);
+        long now = System.currentTimeMillis();
+        health.failures++;
+        health.lastFailure = now;
+        health.lastError = error;
+        if (health.failures >= threshold) {
+            health.cooldown = health.cooldown == 0 ? cooldownMillis : Math.min(health.cooldown * 2, cooldownMillis * MAX_COOLDOWN_FACTOR);
+            health.openUntil = now + health.cooldown;
+            logger.debug("Opened circuit breaker of '{}' for {} ms after {} failures", key, health.cooldown, health.failures);
+        }
+    }
+
+    private Health get(String key) {
+        Health health = entries.get(key);
+        if (health == null) {
+            health = new Health();
+            entries.put(key, health);
+        }
+        return health;
+    }
+
+    /**
+     * @return one line per given key whose breaker is not closed, describing
+     * its state.
+     */
+    synchronized List<String> describe(List<String> keys) {
+        List<String> lines = new ArrayList<String>();
+        for (String key : keys) {
+            State state = getState(key);
+            if (state == State.CLOSED) {
+                continue;
+            }
+            Health health = entries.get(key);
+            lines.add(key + ": " + state + ", " + health.failures + " consecutive failures, last error: '" + health.lastError + "'"
+                    + (state == State.OPEN ? ", skipped for " + (health.openUntil - System.currentTimeMillis()) / 1000 + " more seconds" : ""));
+        }
+        return lines;
+    }
+
+    private void load() throws IOException {
+        Properties properties = new Properties();
+        InputStream input = new FileInputStream(file);
+        try {
+            properties.load(input);
+        } finally {
+            input.close();
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.endsWith(FAILURES)) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - FAILURES.length());
+            Health health = get(key);
+            try {
+                health.failures = Integer.parseInt(properties.getProperty(key + FAILURES));
+                health.lastSuccess = Long.parseLong(properties.getProperty(key + LAST_SUCCESS, "0"));
+                health.lastFailure = Long.parseLong(properties.getProperty(key + LAST_FAILURE, "0"));
+                health.latency = Long.parseLong(properties.getProperty(key + LATENCY, "0"));
+                health.openUntil = Long.parseLong(properties.getProperty(key + OPEN_UNTIL, "0"));
+                health.cooldown = Long.parseLong(properties.getProperty(key + COOLDOWN, "0"));
+            } catch (NumberFormatException ex) {
+                logger.warn("Ignoring invalid health of '{}' in: '{}'", key, file.getAbsolutePath());
+                entries.remove(key);
+                continue;
+            }
+            health.lastError = properties.getProperty(key + LAST_ERROR);
+        }
+        logger.debug("Loaded health of {} sources from: '{}'", entries.size(), file.getAbsolutePath());
+    }
+
+    /**
+     * Writes the store to its file, replacing it atomically.
+     *
+     * @throws IOException if the store can not be written.
+     */
+    synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Health> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            Health health = entry.getValue();
+            properties.setProperty(key + FAILURES, String.valueOf(health.failures));
+            properties.setProperty(key + LAST_SUCCESS, String.valueOf(health.lastSuccess));
+            properties.setProperty(key + LAST_FAILURE, String.valueOf(health.lastFailure));
+            properties.setProperty(key + LATENCY, String.valueOf(health.latency));
+            properties.setProperty(key + OPEN_UNTIL, String.valueOf(health.openUntil));
+            properties.setProperty(key + COOLDOWN, String.valueOf(health.cooldown));
+            if (health.lastError != null) {
+                properties.setProperty(key + LAST_ERROR, health.lastError);
+            }
+        }
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory: '" + directory.getAbsolutePath() + "'");
+        }
+        File tempFile = File.createTempFile(file.getName() + ".", ".tmp", directory);
+        try {
+            OutputStream output = new FileOutputStream(tempFile);
+            try {
+                properties.store(output, "jacocotogo source health");
+            } finally {
+                output.close();
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                logger.warn("Unable to delete temporary file: '{}'", tempFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * The recorded health of a single source.
+     */
+    private static class Health {
+
+        private int failures;
+        private long lastSuccess;
+        private long lastFailure;
+        private String lastError;
+        private long latency;
+        private long openUntil;
+        private long cooldown;
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2013 Matthew C. Jenkins (matt@helmetsrequired.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.helmetsrequired.jacocotogo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Execution data which can encode itself in the format written by
+ * {@link org.jacoco.core.data.ExecutionDataWriter}.
+ *
+ * @author Matthew C. Jenkins
+ */
+interface WritableExecutionData {
+
+    /**
+     * Writes all session infos, followed by all classes in ascending class
+     * id order.
+     *
+     * @throws IOException if the data can not be written.
+     */
+    void write(OutputStream output) throws IOException;
+
+    /**
+     * @return the number of distinct classes written.
+     */
+    int getClassCount();
+}